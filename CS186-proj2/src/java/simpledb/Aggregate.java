@@ -4,17 +4,19 @@ import java.util.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Any number of aggregates can be computed in one pass over the child,
+ * grouped by any number of columns.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
     private DbIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    //聚合使用的线程数，大于1并且child是HeapFile的SeqScan时用ParallelAggregator
+    private int parallelism;
 
     private TupleDesc child_td;
 
@@ -24,8 +26,6 @@ public class Aggregate extends Operator {
     //聚合的结果通过此AggregatorIterator访问
     private DbIterator aggregateIter;
 
-    //指定了作为分组依据的那一列的值的类型
-    private Type gbFieldType;
     private TupleDesc td;
     /**
      * Constructor.
@@ -42,18 +42,65 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child, new int[]{afield}, new Aggregator.Op[]{aop},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield});
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key. The
+     * output tuples contain the group-by fields in the given order, followed
+     * by one field per aggregate.
+     *
+     * @param child   The DbIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops    The aggregation operator for each column of afields
+     * @param gfields The columns over which we are grouping the result, empty
+     *                if there is no grouping
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, 1);
+    }
+
+    /**
+     * Constructor for an aggregate that may use several threads. When the
+     * child is a sequential scan of a large enough HeapFile, possibly under
+     * Filters, its pages are aggregated by parallelism threads; otherwise the
+     * child is read on the calling thread.
+     *
+     * @param parallelism the number of threads to aggregate with
+     * @see #Aggregate(DbIterator, int[], Aggregator.Op[], int[])
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields,
+                     int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("need one aggregate operator per aggregate field");
+        }
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.gfields = gfields.clone();
+        this.parallelism = parallelism;
         child_td = child.getTupleDesc();
-        Type aggreType = child_td.getFieldType(afield);
-        gbFieldType = (gfield ==Aggregator.NO_GROUPING) ? null : child_td.getFieldType(gfield);
+        aggregator = newAggregator();
+    }
+
+    private Aggregator newAggregator() {
+        //多个聚合或多个分组字段时直接用HashAggregator，所有聚合在同一个哈希表中一起算
+        if (afields.length > 1 || gfields.length > 1) {
+            return new HashAggregator(gfields, afields, aops, child_td, getTupleDesc(),
+                    MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+        }
+        int gfield = groupField();
+        Type gbFieldType = (gfield == Aggregator.NO_GROUPING) ? null : child_td.getFieldType(gfield);
         //字符串或整数型
+        Type aggreType = child_td.getFieldType(afields[0]);
         if(aggreType == Type.INT_TYPE){
-            aggregator = new IntegerAggregator(gfield, gbFieldType, afield, aop, getTupleDesc());
-        } else if (aggreType == Type.STRING_TYPE) {
-            aggregator = new StringAggregator(gfield, gbFieldType, afield, aop, getTupleDesc());
+            return new IntegerAggregator(gfield, gbFieldType, afields[0], aops[0], getTupleDesc());
+        } else {
+            return new StringAggregator(gfield, gbFieldType, afields[0], aops[0], getTupleDesc());
         }
     }
 
@@ -64,7 +111,15 @@ public class Aggregate extends Operator {
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples, empty if
+     * there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -74,8 +129,8 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        if(gfield == Aggregator.NO_GROUPING ) return null;
-        return aggregateIter.getTupleDesc().getFieldName(0);
+        if(gfields.length == 0) return null;
+        return getTupleDesc().getFieldName(0);
     }
 
     /**
@@ -83,7 +138,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the aggregate field indexes in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -92,8 +154,7 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        if(afield == Aggregator.NO_GROUPING ) return null;
-        return aggregateIter.getTupleDesc().getFieldName(1);
+        return getTupleDesc().getFieldName(gfields.length);
     }
 
     /**
@@ -101,7 +162,14 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the aggregate operators, in the order of aggregateFields()
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -111,21 +179,55 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
-        child.open();
-        super.open();
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        //重新打开时从头聚合
+        aggregator.close();
+        HeapFile file = parallelFile();
+        if (file != null) {
+            //不打开child，由各个线程直接读HeapFile的页
+            aggregator = ParallelAggregator.aggregate(ParallelAggregator.scanOf(child).getTransactionId(),
+                    file, ParallelAggregator.predicatesOf(child), gfields, afields, aops, getTupleDesc(),
+                    MemoryBudget.DEFAULT_OPERATOR_MEMORY, parallelism);
+            super.open();
+        } else {
+            child.open();
+            super.open();
+            aggregator = newAggregator();
+            while(child.hasNext()){
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
         }
         aggregateIter =aggregator.iterator();
         aggregateIter.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * @return 可以并行聚合时child扫描的HeapFile，否则null
+     */
+    private HeapFile parallelFile() {
+        if (parallelism <= 1) {
+            return null;
+        }
+        SeqScan scan = ParallelAggregator.scanOf(child);
+        if (scan == null) {
+            return null;
+        }
+        HeapFile file = (HeapFile) Database.getCatalog().getDbFile(scan.getTableId());
+        return file.numPages() >= ParallelAggregator.MIN_PARALLEL_PAGES ? file : null;
+    }
+
+    /**
+     * @return true if open() aggregates the child with several threads
+     */
+    public boolean isParallel() {
+        return parallelFile() != null;
+    }
+
+    /**
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the remaining fields
+     * are the results of computing the aggregates, If there is no group by
+     * field, then the result tuple contains only the aggregates. Should return
+     * null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -136,13 +238,13 @@ public class Aggregate extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         aggregateIter.rewind();
+        super.close();
+        super.open();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate. The group by fields, if any,
+     * come first, followed by one aggregate value column per aggregate.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -152,15 +254,16 @@ public class Aggregate extends Operator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         if(td != null) return td;
-        Type[] types;
-        String[] names;
-        String aggName = child_td.getFieldName(afield);
-        if(gfield == Aggregator.NO_GROUPING){
-            types = new Type[]{Type.INT_TYPE};
-            names = new String[]{aggName};
-        } else {
-            types = new Type[]{gbFieldType, Type.INT_TYPE};
-            names = new String[]{child_td.getFieldName(gfield), aggName};
+        int n = gfields.length + afields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = child_td.getFieldType(gfields[i]);
+            names[i] = child_td.getFieldName(gfields[i]);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            types[gfields.length + j] = Type.INT_TYPE;
+            names[gfields.length + j] = child_td.getFieldName(afields[j]);
         }
         td = new TupleDesc(types, names);
         return td;
@@ -170,6 +273,7 @@ public class Aggregate extends Operator {
         // some code goes here
         super.close();
         aggregateIter.close();
+        aggregator.close();
     }
 
     @Override
@@ -63,4 +63,10 @@ public interface Aggregator extends Serializable {
      */
     public DbIterator iterator();
 
+    /**
+     * Release the resources held by the aggregator, such as temporary files
+     * of groups that did not fit in memory.
+     */
+    public void close();
+
 }
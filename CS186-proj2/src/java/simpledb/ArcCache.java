@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * 使用ARC(Adaptive Replacement Cache)替换策略的缓存(Megiddo and Modha, 2003)
+ * <p>
+ * t1存放只被访问过一次的页，t2存放被访问过至少两次的页，b1和b2分别记住最近从t1和t2淘汰的页的key。
+ * 在b1中命中说明t1太小，在b2中命中说明t2太小，p(t1的目标大小)据此自动调整，不需要手动调参。
+ * 扫描带进来的页只会进入t1，不会挤掉t2中的热页。
+ */
+public class ArcCache<K, V> implements PageCache<K, V> {
+
+    //允许缓存的最大条目数量
+    private final int capacity;
+
+    //t1的目标大小
+    private int p;
+
+    //以下四个列表都是按插入的先后排列的，第一个是最近最少使用的(LRU端)
+    private final LinkedHashMap<K, V> t1;
+    private final LinkedHashMap<K, V> t2;
+    private final LinkedHashSet<K> b1;
+    private final LinkedHashSet<K> b2;
+
+    //淘汰时的建议
+    private EvictionAdvisor<? super V> advisor;
+
+    public ArcCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        t1 = new LinkedHashMap<K, V>();
+        t2 = new LinkedHashMap<K, V>();
+        b1 = new LinkedHashSet<K>();
+        b2 = new LinkedHashSet<K>();
+    }
+
+    public synchronized V get(K key) {
+        V value = t1.remove(key);
+        if (value == null) {
+            value = t2.remove(key);
+        }
+        if (value == null) {
+            return null;
+        }
+        //命中的页都移到t2的MRU端
+        t2.put(key, value);
+        return value;
+    }
+
+    public synchronized V put(K key, V value) {
+        if (key == null | value == null) {//不允许插入null值
+            throw new IllegalArgumentException();
+        }
+        if (t1.containsKey(key)) {
+            t1.put(key, value);
+            return null;
+        }
+        if (t2.containsKey(key)) {
+            t2.put(key, value);
+            return null;
+        }
+        V removed = null;
+        if (b1.contains(key)) {
+            //t1中的页被淘汰得太早了，增大t1的目标大小
+            p = Math.min(capacity, p + Math.max(b2.size() / b1.size(), 1));
+            removed = replace(false);
+            b1.remove(key);
+            t2.put(key, value);
+            return removed;
+        }
+        if (b2.contains(key)) {
+            //t2中的页被淘汰得太早了，减小t1的目标大小
+            p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+            removed = replace(true);
+            b2.remove(key);
+            t2.put(key, value);
+            return removed;
+        }
+        //完全没见过的页
+        if (t1.size() + b1.size() >= capacity) {
+            if (t1.size() < capacity) {
+                removeFirst(b1);
+                removed = replace(false);
+            } else {
+                //b1为空且t1已满，直接淘汰t1的LRU页，不记住它
+                K victim = victimOf(t1);
+                removed = t1.remove(victim);
+            }
+        } else {
+            int total = t1.size() + t2.size() + b1.size() + b2.size();
+            if (total >= capacity) {
+                if (total >= 2 * capacity) {
+                    removeFirst(b2);
+                }
+                removed = replace(false);
+            }
+        }
+        t1.put(key, value);
+        return removed;
+    }
+
+    /**
+     * 缓存已满时从t1或t2淘汰一个页，并把它的key记到b1或b2中
+     *
+     * @param inB2 当前访问的key是否在b2中
+     * @return 被淘汰的条目，缓存未满时返回null
+     */
+    private V replace(boolean inB2) {
+        if (t1.size() + t2.size() < capacity) {
+            return null;
+        }
+        if (!t1.isEmpty() && (t1.size() > p || (inB2 && t1.size() == p) || t2.isEmpty())) {
+            K victim = victimOf(t1);
+            b1.add(victim);
+            return t1.remove(victim);
+        }
+        K victim = victimOf(t2);
+        b2.add(victim);
+        return t2.remove(victim);
+    }
+
+    /**
+     * @return 列表中第一个advisor不反对淘汰的key，都反对时返回第一个key(LRU端)
+     */
+    private K victimOf(LinkedHashMap<K, V> list) {
+        Map.Entry<K, V> victim = null;
+        for (Map.Entry<K, V> e : list.entrySet()) {
+            if (victim == null) {
+                victim = e;
+            }
+            if (advisor == null || !advisor.avoidEviction(e.getValue())) {
+                victim = e;
+                break;
+            }
+        }
+        if (advisor != null && victim != null) {
+            advisor.beforeEviction(victim.getValue());
+        }
+        return victim == null ? null : victim.getKey();
+    }
+
+    private void removeFirst(LinkedHashSet<K> ghosts) {
+        if (!ghosts.isEmpty()) {
+            Iterator<K> it = ghosts.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized V remove(K key) {
+        V removed = t1.remove(key);
+        if (removed == null) {
+            removed = t2.remove(key);
+        }
+        return removed;
+    }
+
+    public synchronized void setEvictionAdvisor(EvictionAdvisor<? super V> advisor) {
+        this.advisor = advisor;
+    }
+
+    public synchronized boolean isCached(K key) {
+        return t1.containsKey(key) || t2.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return t1.size() + t2.size();
+    }
+
+    /**
+     * 返回的是当前缓存的一个快照
+     *
+     * @return 当前缓存的所有value
+     */
+    public synchronized Iterator<V> iterator() {
+        ArrayList<V> values = new ArrayList<V>(size());
+        values.addAll(t1.values());
+        values.addAll(t2.values());
+        return values.iterator();
+    }
+}
@@ -2,7 +2,16 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -34,8 +43,52 @@ public class BufferPool {
     //页的最大数量
     public final int PAGES_NUM;
 
-    //当前的缓存页
-    private LruCache<PageId,Page> lruPagesPool;
+    //未命中时读盘用的分段锁数量
+    private static final int MISS_LOCK_STRIPES = 64;
+
+    /**
+     * Default fraction of frames the background page cleaner tries to keep
+     * clean.
+     */
+    public static final double DEFAULT_CLEAN_FRACTION = 0.25;
+
+    //后台写线程每批最少写的页数和检查的间隔
+    private static final int CLEANER_BATCH_SIZE = 16;
+    private static final long CLEANER_INTERVAL_MILLIS = 100;
+
+    /**
+     * Maximum number of pages read by one read-ahead request.
+     */
+    public static final int MAX_READ_AHEAD_PAGES = 64;
+
+    //当前的缓存页，默认的ClockCache命中时不需要加锁，多个查询线程可以同时访问
+    private PageCache<PageId, Page> pagesPool;
+
+    //使用的替换策略
+    private final ReplacementPolicy policy;
+
+    //命中与未命中的次数，用于比较不同替换策略的效果
+    //LongAdder在多个线程同时累加时不会争用同一个变量
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    //同一个页只允许一个线程从磁盘读取，不同的页按pid散列到不同的锁上
+    private final Object[] missLocks;
+
+    //淘汰时因为找不到干净的页而在读线程上同步写回的次数
+    private final LongAdder evictionWrites = new LongAdder();
+
+    //后台写线程，没有启用时为null
+    private final PageCleaner cleaner;
+
+    //执行预读的后台线程，顺序读一个文件用一个线程就够了
+    private final ExecutorService readAheadExecutor;
+
+    //每写回一个页加一，预读时用来判断读到的数据在放进缓存之前是否已经过期
+    private final AtomicLong writeEpoch = new AtomicLong();
+
+    //通过预读放进缓存的页的数量
+    private final LongAdder prefetchedPages = new LongAdder();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -43,9 +96,78 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.getDefault());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting pages
+     * according to the specified replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the page replacement policy to use
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, DEFAULT_CLEAN_FRACTION);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages. A background
+     * thread writes dirty pages back so that about cleanFraction of the
+     * frames are clean, and eviction prefers clean pages.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param policy        the page replacement policy to use
+     * @param cleanFraction fraction of frames to keep clean, or 0 to disable
+     *                      the background page cleaner
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, double cleanFraction) {
         // some code goes here
         PAGES_NUM = numPages;
-        lruPagesPool = new LruCache<PageId,Page>(PAGES_NUM);
+        this.policy = policy;
+        pagesPool = policy.newCache(PAGES_NUM);
+        //优先淘汰干净的页，淘汰脏页需要在当前线程上写盘
+        pagesPool.setEvictionAdvisor(new EvictionAdvisor<Page>() {
+            @Override
+            public boolean avoidEviction(Page page) {
+                return page.isDirty() != null;
+            }
+
+            @Override
+            public void beforeEviction(Page page) {
+                //所有候选的页都是脏的，只能同步写回，并让后台写线程尽快多清理一些。
+                //写完之前页还在缓存中，其他线程读不到磁盘上的旧数据
+                if (page.isDirty() == null) {
+                    return;
+                }
+                evictionWrites.increment();
+                try {
+                    writeBack(page);
+                } catch (IOException e) {
+                    throw new WriteBackFailed(e);
+                }
+                if (cleaner != null) {
+                    cleaner.wakeUp();
+                }
+            }
+        });
+        missLocks = new Object[MISS_LOCK_STRIPES];
+        for (int i = 0; i < missLocks.length; i++) {
+            missLocks[i] = new Object();
+        }
+        if (cleanFraction > 0) {
+            cleaner = new PageCleaner(this, cleanFraction, CLEANER_BATCH_SIZE, CLEANER_INTERVAL_MILLIS);
+            cleaner.start();
+        } else {
+            cleaner = null;
+        }
+        readAheadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     /**
@@ -67,23 +189,212 @@ public class BufferPool {
             throws TransactionAbortedException, DbException {
         // some code goes here
         // TODO: 17-5-26 怎么用tid和perm？？？？
-        HeapPage page = (HeapPage) lruPagesPool.get(pid);
+        Page page = pagesPool.get(pid);
         if (page != null) {//直接命中
+            hits.increment();
             return page;
         }
-        //未命中，访问磁盘并将其缓存
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
-        HeapPage newPage = (HeapPage) table.readPage(pid);
-        Page removedPage = lruPagesPool.put(pid, newPage);
-        if (removedPage != null) {
+        //未命中，只锁住pid所在的分段，避免两个线程同时把同一个页读进来
+        synchronized (missLocks[stripeOf(pid)]) {
+            page = pagesPool.get(pid);
+            if (page != null) {//等锁的时候已经被其他线程读进来了
+                hits.increment();
+                return page;
+            }
+            misses.increment();
+            //访问磁盘并将其缓存
+            DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+            Page newPage = table.readPage(pid);
             try {
-                flushPage(removedPage);
-            } catch (IOException e) {
-                e.printStackTrace();
+                pagesPool.put(pid, newPage);
+            } catch (WriteBackFailed e) {
+                //被淘汰的脏页没有写成功，它仍然在缓存中
+                throw new DbException("could not write back an evicted page: " + e.getCause().getMessage());
             }
+            return newPage;
+        }
+    }
+
+    /**
+     * 淘汰的脏页写盘失败，从缓存的put中穿出来，由调用者转成受检异常
+     */
+    private static class WriteBackFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WriteBackFailed(IOException cause) {
+            super(cause);
         }
-        return newPage;
+    }
 
+    /**
+     * @return the number of pages a sequential scan should ask to have read
+     * ahead at a time, or 0 if the pool is too small for read-ahead. Two
+     * windows in flight use at most half of the pool.
+     */
+    public int getReadAheadWindow() {
+        int window = Math.min(MAX_READ_AHEAD_PAGES, PAGES_NUM / 4);
+        return window < 2 ? 0 : window;
+    }
+
+    /**
+     * Asynchronously read numPages pages of the file starting at startPage
+     * with one large read and put the ones that are not cached yet into the
+     * buffer pool. Returns immediately.
+     *
+     * @param file      the file to read from
+     * @param startPage the first page to read
+     * @param numPages  the number of pages to read
+     */
+    public void prefetchPages(final HeapFile file, final int startPage, final int numPages) {
+        if (numPages <= 0) {
+            return;
+        }
+        try {
+            readAheadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadPages(file, startPage, numPages);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (RuntimeException e) {
+                        //表可能已经从Catalog中删除了，预读失败不影响正常的读取
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //已经shutdown
+        }
+    }
+
+    /**
+     * 把一段连续的页读进缓存，已经缓存的页不会被覆盖
+     *
+     * @return 放进缓存的页的数量
+     */
+    int loadPages(HeapFile file, int startPage, int numPages) throws IOException {
+        int start = Math.max(0, startPage);
+        int end = Math.min(startPage + numPages, file.numPages());
+        //两端已经缓存的页不用读
+        while (start < end && pagesPool.isCached(new HeapPageId(file.getId(), start))) {
+            start++;
+        }
+        while (end > start && pagesPool.isCached(new HeapPageId(file.getId(), end - 1))) {
+            end--;
+        }
+        if (start >= end) {
+            return 0;
+        }
+        long epoch = writeEpoch.get();
+        List<Page> pages = file.readPages(start, end - start);
+        int loaded = 0;
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            synchronized (missLocks[stripeOf(pid)]) {
+                //读的时候有页被写回了，磁盘上的数据可能比读到的新，剩下的页交给getPage去读
+                if (writeEpoch.get() != epoch) {
+                    break;
+                }
+                if (pagesPool.isCached(pid)) {
+                    continue;
+                }
+                try {
+                    pagesPool.put(pid, page);
+                } catch (WriteBackFailed e) {
+                    throw (IOException) e.getCause();
+                }
+                loaded++;
+            }
+        }
+        prefetchedPages.add(loaded);
+        return loaded;
+    }
+
+    /**
+     * @return the replacement policy used by this buffer pool
+     */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of getPage calls served from the buffer pool
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return hits / (hits + misses), or 0 if no page has been requested yet
+     */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the number of dirty pages that had to be written back by the
+     * reading thread because no clean page could be evicted
+     */
+    public long getEvictionWriteCount() {
+        return evictionWrites.sum();
+    }
+
+    /**
+     * @return the number of pages put into the buffer pool by read-ahead
+     */
+    public long getPrefetchedPageCount() {
+        return prefetchedPages.sum();
+    }
+
+    /**
+     * @return the background page cleaner, or null if it is disabled
+     */
+    public PageCleaner getPageCleaner() {
+        return cleaner;
+    }
+
+    /**
+     * Reset the hit and miss counters, e.g. after warming up the pool.
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictionWrites.reset();
+        prefetchedPages.reset();
+    }
+
+    /**
+     * Stop the background page cleaner and the read-ahead thread. Dirty
+     * pages are not written back.
+     */
+    public void shutdown() {
+        if (cleaner != null) {
+            cleaner.shutdown();
+        }
+        //不能用shutdownNow()，中断正在读FileChannel的线程会关闭这个FileChannel
+        readAheadExecutor.shutdown();
+    }
+
+    /**
+     * @return 当前缓存的所有页，供后台写线程使用
+     */
+    Iterator<Page> cachedPages() {
+        return pagesPool.iterator();
+    }
+
+    private static int stripeOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % MISS_LOCK_STRIPES;
     }
 
     /**
@@ -155,6 +466,7 @@ public class BufferPool {
         for (Page page : affectedPages) {
             page.markDirty(true, tid);
         }
+        TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -178,6 +490,7 @@ public class BufferPool {
         HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableId);
         Page affectedPage = table.deleteTuple(tid, t);
         affectedPage.markDirty(true,tid);
+        TableStats.tupleDeleted(tableId, t);
     }
 
     /**
@@ -192,9 +505,25 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-        Iterator<Page> it = lruPagesPool.iterator();
+        Iterator<Page> it = pagesPool.iterator();
+        HashSet<Integer> tables = new HashSet<Integer>();
         while (it.hasNext()) {
-            flushPage(it.next());
+            Page page = it.next();
+            tables.add(page.getId().getTableId());
+            flushPage(page);
+        }
+        flushFreeSpaceMaps(tables);
+    }
+
+    /**
+     * 页写回时只在内存中更新空闲空间的记录，这里把这些表的记录写到.fsm文件中
+     */
+    void flushFreeSpaceMaps(Collection<Integer> tableIds) throws IOException {
+        for (int tableId : tableIds) {
+            DbFile file = Database.getCatalog().getDbFile(tableId);
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).getFreeSpaceMap().flush();
+            }
         }
     }
 
@@ -207,13 +536,14 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for proj1
+        pagesPool.remove(pid);
     }
 
     /**
      * Flushes a certain page to disk
      *
      * //@param  pid an ID indicating the page to flush
-     * 我改了方法参数，因为想用自己写的LruCache来实现替换策略，而不是将相关代码嵌入到这个类的设计中
+     * 我改了方法参数，因为想用自己写的缓存类(现在是ClockCache)来实现替换策略，而不是将相关代码嵌入到这个类的设计中
      */
     // TODO: 17-6-10 改了原来的方法参数
 //    private synchronized void flushPage(PageId pid) throws IOException {
@@ -222,8 +552,43 @@ public class BufferPool {
         // not necessary for proj1
         HeapPage dirty_page = (HeapPage) page;
         HeapFile table = (HeapFile) Database.getCatalog().getDbFile(page.getId().getTableId());
-        table.writePage(dirty_page);
-        dirty_page.markDirty(false, null);
+        synchronized (dirty_page) {
+            table.writePage(dirty_page);
+            writeEpoch.incrementAndGet();
+            dirty_page.markDirty(false, null);
+        }
+    }
+
+    /**
+     * 后台写线程用来写回一个脏页
+     * HeapFile修改页时会锁住这个页，所以写盘和清除脏标记之间页不会被修改
+     *
+     * @return 是否写了这个页
+     */
+    boolean cleanPage(Page page) throws IOException {
+        if (!pagesPool.isCached(page.getId())) {
+            return false;
+        }
+        return writeBack(page);
+    }
+
+    /**
+     * 写回一个脏页。不锁BufferPool：淘汰时缓存持有自己的锁调用这里，
+     * 而flushAllPages持有BufferPool的锁遍历缓存，两个都锁会死锁
+     *
+     * @return 是否写了这个页
+     */
+    private boolean writeBack(Page page) throws IOException {
+        DbFile table = Database.getCatalog().getDbFile(page.getId().getTableId());
+        synchronized (page) {
+            if (page.isDirty() == null) {
+                return false;
+            }
+            table.writePage(page);
+            writeEpoch.incrementAndGet();
+            page.markDirty(false, null);
+        }
+        return true;
     }
 
     /**
@@ -238,7 +603,7 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * 这个方法不实现了，具体的替换策略已经在LruCache中体现了，标志deprecated好了
+     * 这个方法不实现了，具体的替换策略已经在ClockCache中体现了，标志deprecated好了
      */
     @Deprecated
     private synchronized void evictPage() throws DbException {
@@ -0,0 +1,351 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 批量导入：把行直接编码成HeapPage格式的页，在内存中攒满多个页后一次追加到HeapFile的末尾
+ * <p>
+ * 不经过BufferPool，也不经过insertTuple，所以不会逐页查找空位、不会产生脏页和事务日志。
+ * 已有的页不会被修改，新行只写到新追加的页中。导入结束时(finish)写回空闲空间映射，
+ * 并重新计算这个表的统计信息。
+ * <p>
+ * 典型的用法：
+ * <pre>
+ * BulkLoader loader = new BulkLoader(heapFile);
+ * loader.loadCsv(csvFile, ',');
+ * loader.finish();
+ * </pre>
+ */
+public class BulkLoader {
+
+    //默认攒够多少页写一次，256页即1MB
+    public static final int DEFAULT_WRITE_PAGES = 256;
+
+    //读取输入文件的缓冲区大小
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final HeapFile file;
+
+    private final TupleDesc td;
+
+    //每个tuple的字节数
+    private final int tupleSize;
+
+    //每页的slot数和header的字节数，和HeapPage中的计算相同
+    private final int slotsPerPage;
+    private final int headerSize;
+
+    //每个字段在tuple中的偏移
+    private final int[] fieldOffsets;
+
+    //攒着的页，写完后清零重新使用
+    private final ByteBuffer batch;
+
+    //batch中每个页的空slot数量
+    private final int[] emptySlots;
+
+    //batch中已经写满的页数，当前正在写的是第pagesInBatch页
+    private int pagesInBatch;
+
+    //当前页中下一个要写的slot
+    private int slot;
+
+    private long rowsLoaded;
+
+    private boolean finished;
+
+    public BulkLoader(HeapFile file) {
+        this(file, DEFAULT_WRITE_PAGES);
+    }
+
+    /**
+     * @param file       导入的目标表
+     * @param writePages 攒够多少页写一次磁盘
+     */
+    public BulkLoader(HeapFile file, int writePages) {
+        if (writePages < 1) {
+            throw new IllegalArgumentException("writePages must be positive");
+        }
+        this.file = file;
+        this.td = file.getTupleDesc();
+        this.tupleSize = td.getSize();
+        this.slotsPerPage = (BufferPool.PAGE_SIZE * 8) / (tupleSize * 8 + 1);
+        this.headerSize = (slotsPerPage + 7) / 8;
+        this.fieldOffsets = new int[td.numFields()];
+        for (int i = 1; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
+        }
+        this.batch = ByteBuffer.allocate(writePages * BufferPool.PAGE_SIZE);
+        this.emptySlots = new int[writePages];
+    }
+
+    /**
+     * @return 到目前为止导入的行数
+     */
+    public long getRowsLoaded() {
+        return rowsLoaded;
+    }
+
+    /**
+     * 导入一个tuple
+     *
+     * @throws DbException 如果tuple的TupleDesc和表不一致
+     */
+    public void add(Tuple t) throws DbException, IOException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple " + t + " does not match the table's TupleDesc");
+        }
+        checkNotFinished();
+        int row = rowOffset();
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                batch.putInt(row + fieldOffsets[i], ((IntField) f).getValue());
+            } else {
+                String value = ((StringField) f).getValue();
+                putString(row + fieldOffsets[i], value, 0, value.length());
+            }
+        }
+        rowDone();
+    }
+
+    /**
+     * 导入一个文本文件，每行一个tuple，字段之间用separator分隔，格式和HeapFileEncoder的输入相同
+     *
+     * @return 这个文件中导入的行数
+     * @throws DbException 如果某一行的字段数量不对或者整数不合法
+     */
+    public long loadCsv(File csv, char separator) throws DbException, IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(csv), READ_BUFFER_SIZE);
+        try {
+            return loadCsv(reader, separator);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 从reader中导入文本行，见{@link #loadCsv(File, char)}
+     */
+    public long loadCsv(BufferedReader reader, char separator) throws DbException, IOException {
+        long before = rowsLoaded;
+        long lineNo = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            int end = line.length();
+            if (end > 0 && line.charAt(end - 1) == '\r') {
+                end--;
+            }
+            if (end == 0) {
+                continue;
+            }
+            checkNotFinished();
+            int row = rowOffset();
+            try {
+                parseLine(line, end, row, separator, lineNo);
+            } catch (DbException e) {
+                //清掉写了一半的行，之前导入的行不受影响
+                Arrays.fill(batch.array(), batch.arrayOffset() + row, batch.arrayOffset() + row + tupleSize, (byte) 0);
+                throw e;
+            }
+            rowDone();
+        }
+        return rowsLoaded - before;
+    }
+
+    private void parseLine(String line, int end, int row, char separator, long lineNo) throws DbException {
+        int start = 0;
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            int stop = line.indexOf(separator, start);
+            if (stop < 0 || stop > end) {
+                stop = end;
+            }
+            if (i == fieldOffsets.length - 1 ? stop != end : stop == end) {
+                throw new DbException("line " + lineNo + " does not have " + fieldOffsets.length + " fields: " + line);
+            }
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                batch.putInt(row + fieldOffsets[i], parseInt(line, start, stop, lineNo));
+            } else {
+                //和HeapFileEncoder一样去掉字符串两边的空白
+                int from = start;
+                int to = stop;
+                while (from < to && line.charAt(from) <= ' ') {
+                    from++;
+                }
+                while (to > from && line.charAt(to - 1) <= ' ') {
+                    to--;
+                }
+                putString(row + fieldOffsets[i], line, from, to);
+            }
+            start = stop + 1;
+        }
+    }
+
+    /**
+     * 导入一个二进制文件，其中的行是一个接一个的tuple，每个tuple的编码和它在HeapPage中相同
+     * (即依次是每个字段的serialize结果)，所以可以直接复制到slot中
+     *
+     * @return 这个文件中导入的行数
+     * @throws DbException 如果文件的长度不是tuple大小的整数倍
+     */
+    public long loadBinary(File rows) throws DbException, IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(rows), READ_BUFFER_SIZE);
+        try {
+            return loadBinary(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 从in中导入二进制的行，见{@link #loadBinary(File)}
+     */
+    public long loadBinary(InputStream in) throws DbException, IOException {
+        long before = rowsLoaded;
+        byte[] buf = batch.array();
+        while (true) {
+            checkNotFinished();
+            //先读到当前slot中，读到文件末尾时再撤销
+            int row = batch.arrayOffset() + rowOffset();
+            int read = 0;
+            while (read < tupleSize) {
+                int n = in.read(buf, row + read, tupleSize - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            if (read == 0) {
+                break;
+            }
+            if (read < tupleSize) {
+                Arrays.fill(buf, row, row + read, (byte) 0);
+                throw new DbException("truncated row after " + (rowsLoaded - before) + " rows");
+            }
+            rowDone();
+        }
+        return rowsLoaded - before;
+    }
+
+    /**
+     * 写出最后一个不满的页和攒着的页，写回空闲空间映射，更新统计信息
+     * 调用之后这个BulkLoader不能再使用
+     *
+     * @return 导入的总行数
+     */
+    public long finish() throws IOException {
+        if (finished) {
+            return rowsLoaded;
+        }
+        finished = true;
+        if (slot > 0) {
+            finishPage();
+        }
+        flush();
+        file.getFreeSpaceMap().writeAll();
+        //没有经过日志，结束时把数据刷到磁盘上
+        Database.getCatalog().getFileChannels().getChannel(file.getFile()).force(false);
+
+        //不同步扫描整个表，行数和页数马上更新，直方图在后台重新统计
+        TableStats.tuplesLoaded(file.getId(), rowsLoaded);
+        return rowsLoaded;
+    }
+
+    /**
+     * @return 当前slot在batch中的偏移
+     */
+    private int rowOffset() {
+        return pagesInBatch * BufferPool.PAGE_SIZE + headerSize + slot * tupleSize;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("loader already finished");
+        }
+    }
+
+    /**
+     * 当前slot的内容已经写好，在header中标记它已使用，然后移到下一个slot
+     */
+    private void rowDone() throws IOException {
+        int headerByte = pagesInBatch * BufferPool.PAGE_SIZE + slot / 8;
+        batch.put(headerByte, (byte) (batch.get(headerByte) | (1 << (slot % 8))));
+        rowsLoaded++;
+        if (++slot == slotsPerPage) {
+            finishPage();
+        }
+    }
+
+    private void finishPage() throws IOException {
+        emptySlots[pagesInBatch] = slotsPerPage - slot;
+        pagesInBatch++;
+        slot = 0;
+        if (pagesInBatch == emptySlots.length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (pagesInBatch == 0) {
+            return;
+        }
+        int bytes = pagesInBatch * BufferPool.PAGE_SIZE;
+        batch.limit(bytes).position(0);
+        file.appendPages(batch, emptySlots, pagesInBatch);
+        batch.clear();
+        //没有写到的slot和填充必须是0
+        Arrays.fill(batch.array(), batch.arrayOffset(), batch.arrayOffset() + bytes, (byte) 0);
+        pagesInBatch = 0;
+    }
+
+    /**
+     * 和StringField.serialize相同的编码：长度，然后是每个字符的低8位，超过Type.STRING_LEN的部分截掉
+     * 剩下的字节已经是0了
+     */
+    private void putString(int offset, String s, int start, int stop) {
+        int len = Math.min(stop - start, Type.STRING_LEN);
+        batch.putInt(offset, len);
+        for (int i = 0; i < len; i++) {
+            batch.put(offset + 4 + i, (byte) s.charAt(start + i));
+        }
+    }
+
+    /**
+     * 不创建子串地解析line[start, stop)中的整数，两边的空白被忽略
+     */
+    private static int parseInt(String line, int start, int stop, long lineNo) throws DbException {
+        while (start < stop && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (stop > start && line.charAt(stop - 1) <= ' ') {
+            stop--;
+        }
+        boolean negative = false;
+        if (start < stop && (line.charAt(start) == '-' || line.charAt(start) == '+')) {
+            negative = line.charAt(start) == '-';
+            start++;
+        }
+        if (start == stop) {
+            throw new DbException("bad integer on line " + lineNo + ": " + line);
+        }
+        //按负数累加，这样Integer.MIN_VALUE也能表示
+        long value = 0;
+        for (int i = start; i < stop; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new DbException("bad integer on line " + lineNo + ": " + line);
+            }
+            value = value * 10 - digit;
+            if (value < Integer.MIN_VALUE) {
+                throw new DbException("integer out of range on line " + lineNo + ": " + line);
+            }
+        }
+        if (!negative && value == Integer.MIN_VALUE) {
+            throw new DbException("integer out of range on line " + lineNo + ": " + line);
+        }
+        return (int) (negative ? value : -value);
+    }
+}
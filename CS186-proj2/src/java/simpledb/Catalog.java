@@ -29,6 +29,9 @@ public class Catalog {
     //建立表的名称到tableid的映射
     private HashMap<String, Integer> name2id;
 
+    //所有表文件的FileChannel，同时打开的数量有上限
+    private final FileChannelCache fileChannels;
+
 
     /**
      * Constructor.
@@ -40,6 +43,8 @@ public class Catalog {
         id2pkey = new HashMap<Integer, String>();
         id2name = new HashMap<Integer, String>();
         name2id = new HashMap<String, Integer>();
+        fileChannels = new FileChannelCache(Integer.getInteger("simpledb.MaxOpenFiles",
+                FileChannelCache.DEFAULT_MAX_OPEN_FILES));
     }
 
     /**
@@ -148,6 +153,15 @@ public class Catalog {
         return id2name.get(id);
     }
 
+    /**
+     * Returns the cache of open file handles shared by all tables. The
+     * number of files open at the same time is bounded by the system
+     * property simpledb.MaxOpenFiles.
+     */
+    public FileChannelCache getFileChannels() {
+        return fileChannels;
+    }
+
     private boolean isIdValid(int id, HashMap<?, ?> map) {
         return map.containsKey(id);
     }
@@ -161,6 +175,7 @@ public class Catalog {
         id2pkey.clear();
         id2file.clear();
         name2id.clear();
+        fileChannels.closeAll();
     }
 
     /**
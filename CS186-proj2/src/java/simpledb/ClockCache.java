@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 使用CLOCK(second chance)替换策略的缓存，可以被多个线程同时使用
+ * <p>
+ * LruCache在每次get时都要调整链表，所以只能被一个线程使用。这里命中时只需要
+ * 在ConcurrentHashMap中查找并设置引用位，不需要任何锁；只有在未命中需要插入新的条目
+ * (可能需要淘汰一个条目)时才会获取evictLock。
+ */
+public class ClockCache<K, V> implements PageCache<K, V> {
+
+    //存放当前缓存的条目
+    private final ConcurrentHashMap<K, Frame<K, V>> cachedEntries;
+
+    //允许缓存的最大条目数量
+    private final int capacity;
+
+    //环形的帧数组，时钟指针在上面转动，只在持有evictLock时访问
+    private final Frame<K, V>[] frames;
+
+    //空闲的帧的下标
+    private final ArrayDeque<Integer> freeSlots;
+
+    //时钟指针
+    private int hand;
+
+    //保护frames、freeSlots和hand
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    //淘汰时的建议
+    private volatile EvictionAdvisor<? super V> advisor;
+
+    private static class Frame<K, V> {
+        final K key;
+        volatile V value;
+        //引用位，命中时置为true，时钟指针经过时清零
+        volatile boolean referenced;
+        final int slot;
+
+        Frame(K key, V value, int slot) {
+            this.key = key;
+            this.value = value;
+            this.slot = slot;
+            this.referenced = true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public ClockCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        cachedEntries = new ConcurrentHashMap<K, Frame<K, V>>(capacity * 2);
+        frames = (Frame<K, V>[]) new Frame<?, ?>[capacity];
+        freeSlots = new ArrayDeque<Integer>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            freeSlots.add(i);
+        }
+    }
+
+    /**
+     * @param key
+     * @return 返回存在与缓存中的条目，不存在则返回null
+     */
+    public V get(K key) {
+        Frame<K, V> f = cachedEntries.get(key);
+        if (f == null) {
+            return null;
+        }
+        //已经置位的话就不再写，避免多个线程反复写同一个缓存行
+        if (!f.referenced) {
+            f.referenced = true;
+        }
+        return f.value;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return 被删除出缓存的条目，如果没有，返回null
+     */
+    public V put(K key, V value) {
+        if (key == null | value == null) {//不允许插入null值
+            throw new IllegalArgumentException();
+        }
+        evictLock.lock();
+        try {
+            Frame<K, V> f = cachedEntries.get(key);
+            if (f != null) {
+                //已经存在则更新其值，没有被删除的条目
+                f.value = value;
+                f.referenced = true;
+                return null;
+            }
+            V removed = null;
+            int slot;
+            if (!freeSlots.isEmpty()) {
+                slot = freeSlots.poll();
+            } else {
+                Frame<K, V> victim = nextVictim();
+                EvictionAdvisor<? super V> advisor = this.advisor;
+                if (advisor != null) {
+                    advisor.beforeEviction(victim.value);
+                }
+                slot = victim.slot;
+                cachedEntries.remove(victim.key);
+                removed = victim.value;
+            }
+            f = new Frame<K, V>(key, value, slot);
+            frames[slot] = f;
+            cachedEntries.put(key, f);
+            return removed;
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    /**
+     * 转动时钟指针直到找到一个引用位为0的帧，经过的帧的引用位被清零
+     * 最多转两圈就一定能找到
+     * <p>
+     * 设置了advisor时跳过它反对淘汰的帧(但仍然清除引用位)，转满两圈还没有找到的话
+     * 就淘汰遇到的第一个引用位为0的帧
+     */
+    private Frame<K, V> nextVictim() {
+        EvictionAdvisor<? super V> advisor = this.advisor;
+        Frame<K, V> fallback = null;
+        for (int step = 0; ; step++) {
+            Frame<K, V> f = frames[hand];
+            hand = (hand + 1) % capacity;
+            if (f == null) {
+                continue;
+            }
+            if (f.referenced) {
+                f.referenced = false;
+            } else if (advisor == null || !advisor.avoidEviction(f.value)) {
+                return f;
+            } else if (fallback == null) {
+                fallback = f;
+            }
+            if (fallback != null && step >= 2 * capacity) {
+                return fallback;
+            }
+        }
+    }
+
+    /**
+     * 从缓存中删除一个条目
+     *
+     * @return 被删除的条目，不存在则返回null
+     */
+    public V remove(K key) {
+        evictLock.lock();
+        try {
+            Frame<K, V> f = cachedEntries.remove(key);
+            if (f == null) {
+                return null;
+            }
+            frames[f.slot] = null;
+            freeSlots.add(f.slot);
+            return f.value;
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    public void setEvictionAdvisor(EvictionAdvisor<? super V> advisor) {
+        this.advisor = advisor;
+    }
+
+    public boolean isCached(K key) {
+        return cachedEntries.containsKey(key);
+    }
+
+    public int size() {
+        return cachedEntries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 遍历时其他线程仍然可以修改缓存，返回的是弱一致性的视图
+     *
+     * @return 当前缓存的所有value
+     */
+    public Iterator<V> iterator() {
+        final Iterator<Frame<K, V>> it = cachedEntries.values().iterator();
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next().value;
+            }
+        };
+    }
+}
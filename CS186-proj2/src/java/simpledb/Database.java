@@ -50,12 +50,33 @@ public class Database {
      buffer pool and return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        _instance._bufferpool.shutdown();
         _instance._bufferpool = new BufferPool(pages);
         return _instance._bufferpool;
     }
 
+    /** Create a new instance of the buffer pool that uses the specified
+     replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        _instance._bufferpool.shutdown();
+        _instance._bufferpool = new BufferPool(pages, policy);
+        return _instance._bufferpool;
+    }
+
+    /** Create a new instance of the buffer pool whose background page
+     cleaner keeps the specified fraction of frames clean (0 disables it)
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy, double cleanFraction) {
+        _instance._bufferpool.shutdown();
+        _instance._bufferpool = new BufferPool(pages, policy, cleanFraction);
+        return _instance._bufferpool;
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
+        _instance._bufferpool.shutdown();
+        _instance._catalog.getFileChannels().closeAll();
         _instance = new Database();
     }
 
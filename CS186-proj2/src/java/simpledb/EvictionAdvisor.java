@@ -0,0 +1,22 @@
+package simpledb;
+
+/**
+ * 在缓存需要淘汰条目时给出建议
+ * <p>
+ * BufferPool用它让缓存优先淘汰干净的页：淘汰脏页需要先写盘，
+ * 这个写操作会发生在读取新页的线程上。
+ */
+public interface EvictionAdvisor<V> {
+
+    /**
+     * @return true表示这个条目现在最好不要被淘汰，缓存会先尝试淘汰其他条目；
+     * 如果所有候选条目都返回true，仍然会按替换策略淘汰一个
+     */
+    public boolean avoidEviction(V value);
+
+    /**
+     * 缓存选中value淘汰之后、把它删除之前调用，此时其他线程仍然能通过get找到它。
+     * 抛出异常时这次put失败，缓存中的条目不变(只有替换策略自己的统计可能已经更新)
+     */
+    public void beforeEviction(V value);
+}
@@ -0,0 +1,264 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 外部归并排序：在内存上限以内排序，放不下时把排好序的一段(run)写到SpillFile，
+ * 最后用一个堆对所有run做k路归并
+ * <p>
+ * 先用add加入所有tuple，然后finish，之后可以用hasNext/next读出排好序的tuple，
+ * rewind从头再读一遍，close删除临时文件。排序是稳定的：比较相等的tuple保持加入的顺序。
+ * <p>
+ * 指定limit时只需要最前面的limit个tuple，每个run只写前limit个，归并到limit个就停止。
+ */
+public class ExternalSort {
+
+    /**
+     * 一次归并最多同时打开的run，每个run的Reader有自己的缓冲区。
+     * run更多时先把它们分批归并成更长的run
+     */
+    public static final int MAX_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final MemoryBudget budget;
+    private final long tupleBytes;
+    private final int limit;
+
+    //还在内存中的tuple，finish之后是最后一段run
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private int runCount;
+    private int mergePasses;
+    private boolean finished;
+
+    //正在读的各个run，按当前tuple排序
+    private PriorityQueue<Run> heap;
+    private ArrayList<Run> open = new ArrayList<Run>();
+    private int returned;
+
+    /**
+     * @param td          the TupleDesc of the tuples to sort
+     * @param comparator  the sort order
+     * @param memoryBytes the memory the buffered tuples may take
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, long memoryBytes) {
+        this(td, comparator, memoryBytes, -1);
+    }
+
+    /**
+     * @param td          the TupleDesc of the tuples to sort
+     * @param comparator  the sort order
+     * @param memoryBytes the memory the buffered tuples may take
+     * @param limit       only the first limit tuples of the sorted output are
+     *                    returned, or -1 for all of them
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, long memoryBytes, int limit) {
+        this.td = td;
+        this.comparator = comparator;
+        this.budget = new MemoryBudget(memoryBytes);
+        this.tupleBytes = MemoryBudget.estimateTupleBytes(td);
+        this.limit = limit;
+    }
+
+    public void add(Tuple t) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("sort is already finished");
+        }
+        //至少在内存中保存一个tuple
+        if (!budget.tryReserve(tupleBytes) && !buffer.isEmpty()) {
+            spill();
+            budget.tryReserve(tupleBytes);
+        }
+        buffer.add(t);
+    }
+
+    /**
+     * 把内存中的tuple排序后写成一个run
+     */
+    private void spill() throws IOException {
+        Collections.sort(buffer, comparator);
+        SpillFile run = new SpillFile(td);
+        runs.add(run);
+        runCount++;
+        int n = limit < 0 ? buffer.size() : Math.min(limit, buffer.size());
+        for (int i = 0; i < n; i++) {
+            run.add(buffer.get(i));
+        }
+        buffer.clear();
+        budget.release(budget.getUsed());
+    }
+
+    /**
+     * Ends the input and positions the sort at its first tuple.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        Collections.sort(buffer, comparator);
+        if (limit >= 0 && buffer.size() > limit) {
+            buffer.subList(limit, buffer.size()).clear();
+        }
+        //run太多时先把相邻的run分批归并成更长的run，减少最后一次归并同时打开的文件
+        //合并后的run还在原来的位置，比较相等时按run的顺序输出，保持稳定
+        while (runs.size() > MAX_FAN_IN) {
+            mergePasses++;
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<SpillFile> batch = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                if (batch.size() == 1) {
+                    merged.add(batch.get(0));
+                    continue;
+                }
+                SpillFile run = new SpillFile(td);
+                startMerge(batch, null);
+                while (hasNext()) {
+                    run.add(next());
+                }
+                closeRuns();
+                for (SpillFile f : batch) {
+                    f.delete();
+                }
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        if (!runs.isEmpty()) {
+            mergePasses++;
+        }
+        rewind();
+    }
+
+    /**
+     * Restarts reading the sorted tuples from the first one.
+     */
+    public void rewind() throws IOException {
+        if (!finished) {
+            throw new IllegalStateException("sort is not finished");
+        }
+        closeRuns();
+        startMerge(runs, buffer);
+    }
+
+    private void startMerge(List<SpillFile> files, List<Tuple> memory) throws IOException {
+        heap = new PriorityQueue<Run>(Math.max(1, files.size() + 1), new Comparator<Run>() {
+            public int compare(Run r1, Run r2) {
+                int c = comparator.compare(r1.head, r2.head);
+                return c != 0 ? c : r1.order - r2.order;
+            }
+        });
+        returned = 0;
+        int order = 0;
+        for (SpillFile f : files) {
+            open.add(new Run(order++, f.reader(), null));
+        }
+        if (memory != null && !memory.isEmpty()) {
+            //内存中的tuple是最后加入的，排在所有run之后
+            open.add(new Run(order, null, memory.iterator()));
+        }
+        for (Run r : open) {
+            if (r.advance()) {
+                heap.add(r);
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        return heap != null && !heap.isEmpty() && (limit < 0 || returned < limit);
+    }
+
+    public Tuple next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Run r = heap.poll();
+        Tuple t = r.head;
+        if (r.advance()) {
+            heap.add(r);
+        }
+        returned++;
+        return t;
+    }
+
+    private void closeRuns() {
+        for (Run r : open) {
+            r.close();
+        }
+        open.clear();
+        heap = null;
+    }
+
+    /**
+     * Deletes the temporary files and drops the buffered tuples.
+     */
+    public void close() {
+        closeRuns();
+        for (SpillFile f : runs) {
+            f.delete();
+        }
+        runs.clear();
+        buffer = new ArrayList<Tuple>();
+        budget.release(budget.getUsed());
+    }
+
+    /**
+     * @return the number of sorted runs written to disk
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return the number of merge passes over on-disk runs, including the
+     * final one that produces the output
+     */
+    public int getMergePassCount() {
+        return mergePasses;
+    }
+
+    /**
+     * @return the peak number of bytes of tuples held in memory
+     */
+    public long getPeakMemory() {
+        return budget.getPeak();
+    }
+
+    /**
+     * 归并中的一个run，从文件或者内存中读
+     */
+    private static class Run {
+        final int order;
+        final SpillFile.Reader reader;
+        final Iterator<Tuple> it;
+        Tuple head;
+
+        Run(int order, SpillFile.Reader reader, Iterator<Tuple> it) {
+            this.order = order;
+            this.reader = reader;
+            this.it = it;
+        }
+
+        /**
+         * 读下一个tuple到head
+         *
+         * @return 是否还有tuple
+         */
+        boolean advance() throws IOException {
+            if (reader != null) {
+                head = reader.hasNext() ? reader.next() : null;
+            } else {
+                head = it.hasNext() ? it.next() : null;
+            }
+            return head != null;
+        }
+
+        void close() {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 管理打开的文件，由Catalog持有
+ * <p>
+ * 每个文件只打开一个FileChannel并一直复用，读写都使用带位置的read/write，
+ * 不依赖文件指针，所以多个线程可以同时使用同一个FileChannel。
+ * 同时打开的文件数量有上限，超过时关闭最近最少使用的那个，下次访问时再重新打开。
+ */
+public class FileChannelCache {
+
+    /**
+     * Default maximum number of files kept open at the same time.
+     */
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+    //允许同时打开的文件数量
+    private final int maxOpenFiles;
+
+    //按访问顺序排列，第一个是最近最少使用的
+    private final LinkedHashMap<File, FileChannel> channels;
+
+    public FileChannelCache(int maxOpenFiles) {
+        if (maxOpenFiles <= 0) {
+            throw new IllegalArgumentException("maxOpenFiles must be positive");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        channels = new LinkedHashMap<File, FileChannel>(16, 0.75f, true);
+    }
+
+    /**
+     * @return 文件对应的FileChannel，没有打开的话先打开它
+     */
+    public synchronized FileChannel getChannel(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        FileChannel channel = channels.get(key);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        if (channels.size() >= maxOpenFiles) {
+            Iterator<Map.Entry<File, FileChannel>> it = channels.entrySet().iterator();
+            FileChannel eldest = it.next().getValue();
+            it.remove();
+            //其他线程可能正在使用它，那次读写会得到ClosedChannelException并重试
+            eldest.close();
+        }
+        channel = FileChannel.open(key.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channels.put(key, channel);
+        return channel;
+    }
+
+    /**
+     * 从文件的position处开始读满buf，文件剩余的内容不够时buf的剩余部分保持不变
+     * 文件被关闭时(例如被挤出缓存)会重新打开再试一次
+     *
+     * @return 实际读取的字节数
+     */
+    public int read(File f, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        try {
+            readFully(getChannel(f), buf, position);
+        } catch (ClosedByInterruptException e) {
+            //是当前线程被中断导致的，重试也会失败
+            throw e;
+        } catch (ClosedChannelException e) {
+            buf.position(start);
+            readFully(getChannel(f), buf, position);
+        }
+        return buf.position() - start;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                break;
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * 把buf的剩余内容全部写到文件的position处
+     * 文件被关闭时(例如被挤出缓存)会重新打开再试一次
+     */
+    public void write(File f, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        try {
+            writeFully(getChannel(f), buf, position);
+        } catch (ClosedByInterruptException e) {
+            //是当前线程被中断导致的，重试也会失败
+            throw e;
+        } catch (ClosedChannelException e) {
+            buf.position(start);
+            writeFully(getChannel(f), buf, position);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * 关闭文件，例如在删除文件之前
+     */
+    public synchronized void close(File f) throws IOException {
+        FileChannel channel = channels.remove(f.getAbsoluteFile());
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * 关闭所有打开的文件
+     */
+    public synchronized void closeAll() {
+        for (FileChannel channel : new ArrayList<FileChannel>(channels.values())) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        channels.clear();
+    }
+
+    /**
+     * @return 当前打开的文件数量
+     */
+    public synchronized int getOpenCount() {
+        return channels.size();
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+}
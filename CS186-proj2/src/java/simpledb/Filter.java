@@ -14,9 +14,6 @@ public class Filter extends Operator {
 
     private DbIterator child;
 
-    //缓存过滤结果，加快hasNext和next方法
-    private TupleIterator filterResult;
-
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -48,31 +45,20 @@ public class Filter extends Operator {
         // some code goes here
         child.open();
         super.open();
-        filterResult = filter(child, predicate);
-        filterResult.open();
-    }
-
-    private TupleIterator filter(DbIterator child, Predicate predicate) throws DbException, TransactionAbortedException {
-        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            if (predicate.filter(t)) {
-                tuples.add(t);
-            }
-        }
-        return new TupleIterator(getTupleDesc(), tuples);
     }
 
     public void close() {
         // some code goes here
         super.close();
         child.close();
-        filterResult = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        filterResult.rewind();
+        //不缓存结果，从头再读一遍child；重新open自己以丢掉hasNext()预取的tuple
+        child.rewind();
+        super.close();
+        super.open();
     }
 
 
@@ -89,9 +75,19 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        if(filterResult.hasNext())
-            return filterResult.next();
-        else return null;
+        //边读边过滤，第一个满足条件的tuple不用等到整个child读完
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (predicate.filter(t)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isSortedOn(int field) {
+        return isSortedOn(child, field);
     }
 
     @Override
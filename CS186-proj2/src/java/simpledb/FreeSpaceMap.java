@@ -0,0 +1,280 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.TreeMap;
+
+/**
+ * 记录HeapFile每个页还有多少空的slot，让insertTuple不需要从第0页开始逐页查找
+ * <p>
+ * 内存中的记录随页的插入和删除更新；磁盘上的记录保存在数据文件旁边的&lt;文件名&gt;.fsm中。
+ * 页被写回磁盘时只在内存中记下它写回时的空slot数量，由{@link #flush()}一次写入.fsm，
+ * 所以淘汰时写回页不会多出对.fsm的写操作，而.fsm中的记录和flush时磁盘上的数据页是一致的。
+ * 文件格式：4字节的魔数，4字节的记录数，8字节的数据文件长度，8字节的数据文件修改时间，
+ * 然后每页2字节的空slot数量(-1表示不知道)。
+ * <p>
+ * 数据文件的长度或者修改时间和头部记录的不一样时(例如数据文件被替换了，或者页写回之后没有flush就退出了)，
+ * 不相信.fsm中的记录，而是扫描数据页的header重建。
+ * .fsm文件丢失时，没有记录的页被当作"可能有空位"，insertTuple读到这个页发现已满时再修正。
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d32;//"FSM2"
+
+    private static final int HEADER_SIZE = 24;
+
+    //重建时每次读取的页数
+    private static final int REBUILD_BATCH_PAGES = 64;
+
+    //没有记录的页的空slot数量，表示不知道
+    private static final int UNKNOWN = -1;
+
+    private final File dataFile;
+
+    private final File fsmFile;
+
+    //每页的slot数量，和HeapPage的计算方式一样
+    private final int slotsPerPage;
+
+    //每页空slot的数量，UNKNOWN表示不知道
+    private int[] freeSlots;
+
+    //页数
+    private int numPages;
+
+    //.fsm文件中已经有记录的页数
+    private int persistedPages;
+
+    //可能有空slot的页(包括不知道的页)
+    private final BitSet hasFreeSpace = new BitSet();
+
+    //已经写回磁盘、但还没有写到.fsm文件中的页和它写回时的空slot数量，按页号排序
+    private final TreeMap<Integer, Integer> unsaved = new TreeMap<Integer, Integer>();
+
+    /**
+     * 读取数据文件对应的.fsm文件
+     *
+     * @param dataFile HeapFile的数据文件
+     * @param td       数据文件中元组的TupleDesc
+     * @param numPages 数据文件当前的页数
+     */
+    public FreeSpaceMap(File dataFile, TupleDesc td, int numPages) {
+        this.dataFile = dataFile;
+        this.fsmFile = fileFor(dataFile);
+        this.slotsPerPage = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        this.numPages = numPages;
+        freeSlots = new int[Math.max(16, numPages)];
+        for (int i = 0; i < numPages; i++) {
+            freeSlots[i] = UNKNOWN;
+        }
+        hasFreeSpace.set(0, numPages);
+        try {
+            load();
+        } catch (IOException e) {
+            //只是提示，读不了的话就当作都不知道
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return 数据文件对应的.fsm文件
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    private void load() throws IOException {
+        if (!fsmFile.exists() || fsmFile.length() < HEADER_SIZE) {
+            return;
+        }
+        FileChannelCache channels = Database.getCatalog().getFileChannels();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channels.read(fsmFile, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return;
+        }
+        int count = header.getInt();
+        if (header.getLong() != dataFile.length() || header.getLong() != dataFile.lastModified()) {
+            //数据文件在最后一次写.fsm之后被改过
+            rebuild();
+            return;
+        }
+        persistedPages = (int) Math.min(count, (fsmFile.length() - HEADER_SIZE) / 2);
+        //只相信数据文件中确实存在的页的记录
+        int recorded = Math.min(persistedPages, numPages);
+        if (recorded <= 0) {
+            return;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(recorded * 2);
+        channels.read(fsmFile, entries, HEADER_SIZE);
+        entries.flip();
+        for (int i = 0; i < recorded; i++) {
+            int free = entries.getShort();
+            freeSlots[i] = free;
+            hasFreeSpace.set(i, free != 0);
+        }
+    }
+
+    /**
+     * 读取每个数据页的header统计空slot，然后把整个记录写回.fsm文件
+     */
+    private void rebuild() throws IOException {
+        FileChannelCache channels = Database.getCatalog().getFileChannels();
+        ByteBuffer pages = ByteBuffer.allocate(REBUILD_BATCH_PAGES * BufferPool.PAGE_SIZE);
+        for (int first = 0; first < numPages; first += REBUILD_BATCH_PAGES) {
+            int count = Math.min(REBUILD_BATCH_PAGES, numPages - first);
+            pages.clear();
+            pages.limit(count * BufferPool.PAGE_SIZE);
+            channels.read(dataFile, pages, (long) first * BufferPool.PAGE_SIZE);
+            for (int i = 0; i < count; i++) {
+                int free = slotsPerPage - usedSlots(pages, i * BufferPool.PAGE_SIZE);
+                freeSlots[first + i] = free;
+                hasFreeSpace.set(first + i, free != 0);
+            }
+        }
+        writeAll();
+    }
+
+    /**
+     * @return 从offset开始的页的header中被使用的slot数量
+     */
+    private int usedSlots(ByteBuffer pages, int offset) {
+        int used = 0;
+        for (int slot = 0; slot < slotsPerPage; slot += 8) {
+            int bits = pages.get(offset + slot / 8) & 0xff;
+            //最后一个字节中高位不对应slot
+            if (slotsPerPage - slot < 8) {
+                bits &= (1 << (slotsPerPage - slot)) - 1;
+            }
+            used += Integer.bitCount(bits);
+        }
+        return used;
+    }
+
+    /**
+     * @return 第一个可能有空slot的页的页号，没有的话返回-1
+     */
+    public synchronized int findPageWithFreeSpace() {
+        return hasFreeSpace.nextSetBit(0);
+    }
+
+    /**
+     * @return 第一个在fromPage之后(包括fromPage)可能有空slot的页的页号，没有的话返回-1
+     */
+    public synchronized int findPageWithFreeSpace(int fromPage) {
+        return hasFreeSpace.nextSetBit(fromPage);
+    }
+
+    /**
+     * 在内存中更新一个页的空slot数量，页数会随之增长
+     */
+    public synchronized void setFreeSlots(int pageNo, int free) {
+        if (pageNo >= numPages) {
+            grow(pageNo + 1);
+        }
+        freeSlots[pageNo] = free;
+        hasFreeSpace.set(pageNo, free != 0);
+    }
+
+    /**
+     * @return 记录的页的空slot数量，不知道的话返回-1
+     */
+    public synchronized int getFreeSlots(int pageNo) {
+        if (pageNo >= numPages) {
+            return UNKNOWN;
+        }
+        return freeSlots[pageNo];
+    }
+
+    private void grow(int newNumPages) {
+        if (newNumPages > freeSlots.length) {
+            int[] bigger = new int[Math.max(newNumPages, freeSlots.length * 2)];
+            System.arraycopy(freeSlots, 0, bigger, 0, numPages);
+            freeSlots = bigger;
+        }
+        for (int i = numPages; i < newNumPages; i++) {
+            freeSlots[i] = UNKNOWN;
+            hasFreeSpace.set(i);
+        }
+        numPages = newNumPages;
+    }
+
+    /**
+     * 一个页被写回磁盘时调用，只更新内存中的记录，.fsm文件在flush()时再写
+     */
+    public synchronized void pageWritten(int pageNo, int free) {
+        setFreeSlots(pageNo, free);
+        unsaved.put(pageNo, free);
+    }
+
+    /**
+     * 把写回过的页的记录写到.fsm文件中，连续的页用一次写操作，最后写一次头部
+     */
+    public synchronized void flush() throws IOException {
+        if (unsaved.isEmpty()) {
+            return;
+        }
+        FileChannelCache channels = Database.getCatalog().getFileChannels();
+        int runStart = -1;
+        int runEnd = -1;
+        for (int pageNo : unsaved.keySet()) {
+            if (runStart >= 0 && pageNo != runEnd) {
+                writeEntries(channels, runStart, runEnd);
+                runStart = -1;
+            }
+            if (runStart < 0) {
+                //中间还没有写过的页写入内存中的记录(可能是不知道)，不能让文件中的0被当作已满
+                runStart = pageNo >= persistedPages ? Math.min(pageNo, persistedPages) : pageNo;
+            }
+            runEnd = pageNo + 1;
+        }
+        writeEntries(channels, runStart, runEnd);
+        unsaved.clear();
+        writeHeader();
+    }
+
+    /**
+     * 写入[from, to)这些页的记录，写回过的页用写回时的数量，其他页用内存中的记录
+     */
+    private void writeEntries(FileChannelCache channels, int from, int to) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(2 * (to - from));
+        for (int i = from; i < to; i++) {
+            Integer written = unsaved.get(i);
+            entries.putShort((short) (written != null ? written : freeSlots[i]));
+        }
+        entries.flip();
+        channels.write(fsmFile, entries, HEADER_SIZE + 2L * from);
+        persistedPages = Math.max(persistedPages, to);
+    }
+
+    /**
+     * 在记录之后写头部，记下数据文件此时的长度和修改时间
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(persistedPages).putLong(dataFile.length()).putLong(dataFile.lastModified()).flip();
+        Database.getCatalog().getFileChannels().write(fsmFile, header, 0);
+    }
+
+    /**
+     * 把内存中的全部记录写到.fsm文件中，例如在批量导入之后
+     */
+    public synchronized void writeAll() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 * numPages);
+        for (int i = 0; i < numPages; i++) {
+            buf.putShort((short) freeSlots[i]);
+        }
+        buf.flip();
+        Database.getCatalog().getFileChannels().write(fsmFile, buf, HEADER_SIZE);
+        persistedPages = numPages;
+        unsaved.clear();
+        writeHeader();
+    }
+
+    public File getFile() {
+        return fsmFile;
+    }
+}
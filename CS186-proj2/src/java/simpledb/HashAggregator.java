@@ -0,0 +1,562 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 哈希聚合：IntegerAggregator和StringAggregator的实际实现，多个聚合、多个分组字段时Aggregate直接使用
+ * <p>
+ * 分组用开放寻址的哈希表，整数分组值直接存在int数组中，字符串分组值每个不同的值只保存一个引用；
+ * 每个分组有一个从0开始的编号，聚合的中间结果(和、个数、最小值、最大值)按编号存在基本类型数组里，
+ * 所以每个tuple的聚合不需要装箱，也不会产生新的对象。
+ * <p>
+ * 分组数超过内存上限后，不属于已有分组的tuple按分组值的哈希写到分区的SpillFile中，
+ * 已有的分组继续在内存中聚合。iterator()时每个分区单独再聚合一次(分区的分组仍然太多时再分区)。
+ * <p>
+ * 输出的tuple先是各个分组字段，然后是各个聚合值。
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 分组太多时写出的分区数
+     */
+    public static final int NUM_PARTITIONS = 16;
+
+    /**
+     * 分区最多再分几次，之后不管内存上限，全部在内存中聚合
+     */
+    public static final int MAX_RECURSION_DEPTH = 3;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int[] groupFields;
+    private final boolean[] keyIsInt;
+    private final int[] aggFields;
+    private final Aggregator.Op[] ops;
+    private final TupleDesc td;
+    private final long memoryBytes;
+    private final int level;
+
+    //内存中最多的分组数，由memoryBytes算出
+    private final int maxGroups;
+
+    //哈希表：slots中存分组编号+1，0表示空位置
+    private int[] slots;
+    private int mask;
+
+    //按分组编号保存的分组值和它们的哈希值
+    private int numGroups;
+    private int[] hashes;
+    private int[][] intKeys;
+    private String[][] stringKeys;
+
+    //按分组编号保存的聚合中间结果：SUM和AVG是和，COUNT是个数，MIN和MAX是当前的最小值和最大值
+    private long[][] values;
+    //AVG的个数
+    private int[][] counts;
+
+    //写出去的分区，每个分区可能有多个文件(iterator()读过之后再写会新建一个文件)
+    private TupleDesc spillTd;
+    private transient ArrayList<ArrayList<SpillFile>> partitions;
+    private transient SpillFile[] writing;
+    private long spilledTuples;
+
+    /**
+     * @param groupFields the indexes of the group-by fields in the input
+     *                    tuples, empty if there is no grouping
+     * @param aggFields   the indexes of the aggregated fields in the input
+     *                    tuples
+     * @param ops         the aggregate operator for each aggregated field; on
+     *                    a STRING_TYPE field only COUNT is allowed
+     * @param inputTd     the TupleDesc of the input tuples
+     * @param td          the TupleDesc of the result tuples: the group-by
+     *                    fields followed by one INT_TYPE field per aggregate
+     * @param memoryBytes the memory the groups may take before tuples of new
+     *                    groups are written to disk
+     */
+    public HashAggregator(int[] groupFields, int[] aggFields, Aggregator.Op[] ops,
+                          TupleDesc inputTd, TupleDesc td, long memoryBytes) {
+        this(groupFields, aggFields, ops, inputTd, td, memoryBytes, 0);
+    }
+
+    private HashAggregator(int[] groupFields, int[] aggFields, Aggregator.Op[] ops,
+                           TupleDesc inputTd, TupleDesc td, long memoryBytes, int level) {
+        if (aggFields.length != ops.length) {
+            throw new IllegalArgumentException("need one aggregate operator per aggregate field");
+        }
+        this.groupFields = groupFields.clone();
+        this.aggFields = aggFields.clone();
+        this.ops = ops.clone();
+        this.td = td;
+        this.memoryBytes = memoryBytes;
+        this.level = level;
+
+        keyIsInt = new boolean[groupFields.length];
+        long groupBytes = 4 + 4 + 8;
+        for (int i = 0; i < groupFields.length; i++) {
+            keyIsInt[i] = inputTd.getFieldType(groupFields[i]) == Type.INT_TYPE;
+            groupBytes += keyIsInt[i] ? 4 : 64 + Type.STRING_LEN;
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            if (ops[j] != Aggregator.Op.COUNT && inputTd.getFieldType(aggFields[j]) != Type.INT_TYPE) {
+                throw new IllegalArgumentException("only COUNT is supported on " + inputTd.getFieldType(aggFields[j]));
+            }
+            groupBytes += ops[j] == Aggregator.Op.AVG ? 12 : 8;
+        }
+        //太深的分区不再限制内存
+        maxGroups = level >= MAX_RECURSION_DEPTH ? Integer.MAX_VALUE
+                : (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, memoryBytes / groupBytes));
+
+        Type[] spillTypes = new Type[groupFields.length + aggFields.length];
+        for (int i = 0; i < groupFields.length; i++) {
+            spillTypes[i] = inputTd.getFieldType(groupFields[i]);
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            spillTypes[groupFields.length + j] = inputTd.getFieldType(aggFields[j]);
+        }
+        spillTd = new TupleDesc(spillTypes);
+
+        slots = new int[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+        allocateGroups(INITIAL_CAPACITY);
+    }
+
+    private void allocateGroups(int n) {
+        hashes = hashes == null ? new int[n] : Arrays.copyOf(hashes, n);
+        if (intKeys == null) {
+            intKeys = new int[groupFields.length][];
+            stringKeys = new String[groupFields.length][];
+            values = new long[aggFields.length][];
+            counts = new int[aggFields.length][];
+        }
+        for (int i = 0; i < groupFields.length; i++) {
+            if (keyIsInt[i]) {
+                intKeys[i] = intKeys[i] == null ? new int[n] : Arrays.copyOf(intKeys[i], n);
+            } else {
+                stringKeys[i] = stringKeys[i] == null ? new String[n] : Arrays.copyOf(stringKeys[i], n);
+            }
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            values[j] = values[j] == null ? new long[n] : Arrays.copyOf(values[j], n);
+            if (ops[j] == Aggregator.Op.AVG) {
+                counts[j] = counts[j] == null ? new int[n] : Arrays.copyOf(counts[j], n);
+            }
+        }
+    }
+
+    /**
+     * Merges a tuple into the aggregate of its group, creating the group if
+     * it has not been seen yet.
+     */
+    public void add(Tuple t) throws IOException {
+        add(t, groupFields, aggFields);
+    }
+
+    /**
+     * @param gfields 分组字段在t中的位置
+     * @param afields 聚合字段在t中的位置
+     */
+    private void add(Tuple t, int[] gfields, int[] afields) throws IOException {
+        int hash = hash(t, gfields, level);
+        int group = find(t, gfields, hash);
+        if (group < 0) {
+            if (numGroups >= maxGroups) {
+                spill(t, hash, gfields, afields);
+                return;
+            }
+            group = insert(t, hash, gfields);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            long[] v = values[j];
+            switch (ops[j]) {
+                case COUNT:
+                    v[group]++;
+                    break;
+                case SUM:
+                    v[group] += ((IntField) t.getField(afields[j])).getValue();
+                    break;
+                case AVG:
+                    v[group] += ((IntField) t.getField(afields[j])).getValue();
+                    counts[j][group]++;
+                    break;
+                case MIN:
+                    v[group] = Math.min(v[group], ((IntField) t.getField(afields[j])).getValue());
+                    break;
+                case MAX:
+                    v[group] = Math.max(v[group], ((IntField) t.getField(afields[j])).getValue());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 分组值的哈希，不同的level用不同的种子，这样再分区时同一个分区的tuple能分开
+     */
+    private int hash(Tuple t, int[] fields, int seed) {
+        int h = seed * 0x9E3779B9;
+        for (int i = 0; i < fields.length; i++) {
+            Field f = t.getField(fields[i]);
+            int k = keyIsInt[i] ? ((IntField) f).getValue() : ((StringField) f).getValue().hashCode();
+            h = (h ^ k) * 0x01000193;
+        }
+        //MurmurHash3的fmix32，让高位和低位都均匀
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return 分组编号，没有这个分组时返回-1
+     */
+    private int find(Tuple t, int[] fields, int hash) {
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int g = slots[i] - 1;
+            if (g < 0) {
+                return -1;
+            }
+            if (hashes[g] == hash && keyEquals(g, t, fields)) {
+                return g;
+            }
+        }
+    }
+
+    private boolean keyEquals(int g, Tuple t, int[] fields) {
+        for (int i = 0; i < fields.length; i++) {
+            Field f = t.getField(fields[i]);
+            if (keyIsInt[i]) {
+                if (intKeys[i][g] != ((IntField) f).getValue()) {
+                    return false;
+                }
+            } else if (!stringKeys[i][g].equals(((StringField) f).getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insert(Tuple t, int hash, int[] gfields) {
+        int g = newGroup(hash);
+        for (int i = 0; i < groupFields.length; i++) {
+            Field f = t.getField(gfields[i]);
+            if (keyIsInt[i]) {
+                intKeys[i][g] = ((IntField) f).getValue();
+            } else {
+                stringKeys[i][g] = ((StringField) f).getValue();
+            }
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            if (ops[j] == Aggregator.Op.MIN) {
+                values[j][g] = Long.MAX_VALUE;
+            } else if (ops[j] == Aggregator.Op.MAX) {
+                values[j][g] = Long.MIN_VALUE;
+            }
+        }
+        place(g, hash);
+        return g;
+    }
+
+    /**
+     * 分配一个新的分组编号，分组值和聚合结果由调用者填写，之后调用place
+     */
+    private int newGroup(int hash) {
+        int g = numGroups++;
+        if (g == hashes.length) {
+            allocateGroups(hashes.length * 2);
+        }
+        hashes[g] = hash;
+        return g;
+    }
+
+    private void place(int g, int hash) {
+        //负载因子不超过1/2
+        if (numGroups * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            placeSlot(g, hash);
+        }
+    }
+
+    private void placeSlot(int g, int hash) {
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = g + 1;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int g = 0; g < numGroups; g++) {
+            placeSlot(g, hashes[g]);
+        }
+    }
+
+    /**
+     * 把tuple的分组字段和聚合字段写到它的分区
+     */
+    private void spill(Tuple t, int hash, int[] gfields, int[] afields) throws IOException {
+        if (partitions == null) {
+            partitions = new ArrayList<ArrayList<SpillFile>>();
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                partitions.add(new ArrayList<SpillFile>());
+            }
+            writing = new SpillFile[NUM_PARTITIONS];
+        }
+        //哈希表用低位，分区用高位
+        int p = (hash >>> 24) % NUM_PARTITIONS;
+        if (writing[p] == null) {
+            writing[p] = new SpillFile(spillTd);
+            partitions.get(p).add(writing[p]);
+        }
+        Tuple s = new Tuple(spillTd);
+        for (int i = 0; i < groupFields.length; i++) {
+            s.setField(i, t.getField(gfields[i]));
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            s.setField(groupFields.length + j, t.getField(afields[j]));
+        }
+        writing[p].add(s);
+        spilledTuples++;
+    }
+
+    /**
+     * Merges the partial aggregates of other aggregators, built with the same
+     * fields and operators over different parts of the input, into this one.
+     * MIN and MAX take the minimum and maximum, SUM and COUNT add up, and AVG
+     * adds up sums and counts separately, so the averages come out as if all
+     * input had been added to this aggregator.
+     * <p>
+     * The groups the partials hold in memory are taken over first, even
+     * beyond this aggregator's memory limit: partials given a share of the
+     * memory each do not hold more groups together than fit in the whole.
+     * Then the tuples the partials wrote to disk are added as usual. This
+     * aggregator must not have written anything to disk before the call.
+     *
+     * @param partials the aggregators to merge; they are not closed
+     */
+    public void merge(List<HashAggregator> partials) throws IOException {
+        if (partitions != null) {
+            throw new IllegalStateException("cannot merge into an aggregator that has spilled");
+        }
+        for (HashAggregator other : partials) {
+            if (other.level != level || other.groupFields.length != groupFields.length
+                    || !Arrays.equals(other.ops, ops)) {
+                throw new IllegalArgumentException("partial aggregate of a different aggregation");
+            }
+            for (int g = 0; g < other.numGroups; g++) {
+                mergeGroup(other, g);
+            }
+        }
+        //分区文件中的tuple都不属于它们的aggregator在内存中的分组，但可能属于别的aggregator的分组
+        int[] keys = new int[groupFields.length];
+        int[] aggs = new int[aggFields.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        for (int j = 0; j < aggs.length; j++) {
+            aggs[j] = keys.length + j;
+        }
+        for (HashAggregator other : partials) {
+            if (other.partitions == null) {
+                continue;
+            }
+            Arrays.fill(other.writing, null);
+            for (ArrayList<SpillFile> files : other.partitions) {
+                for (SpillFile f : files) {
+                    SpillFile.Reader reader = f.reader();
+                    try {
+                        while (reader.hasNext()) {
+                            add(reader.next(), keys, aggs);
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 把other的第og个分组合并进来
+     */
+    private void mergeGroup(HashAggregator other, int og) {
+        int hash = other.hashes[og];
+        int g = -1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int c = slots[i] - 1;
+            if (c < 0) {
+                break;
+            }
+            if (hashes[c] == hash && sameKey(c, other, og)) {
+                g = c;
+                break;
+            }
+        }
+        if (g < 0) {
+            g = newGroup(hash);
+            for (int i = 0; i < groupFields.length; i++) {
+                if (keyIsInt[i]) {
+                    intKeys[i][g] = other.intKeys[i][og];
+                } else {
+                    stringKeys[i][g] = other.stringKeys[i][og];
+                }
+            }
+            for (int j = 0; j < aggFields.length; j++) {
+                values[j][g] = other.values[j][og];
+                if (ops[j] == Aggregator.Op.AVG) {
+                    counts[j][g] = other.counts[j][og];
+                }
+            }
+            place(g, hash);
+            return;
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            long v = other.values[j][og];
+            switch (ops[j]) {
+                case MIN:
+                    values[j][g] = Math.min(values[j][g], v);
+                    break;
+                case MAX:
+                    values[j][g] = Math.max(values[j][g], v);
+                    break;
+                case AVG:
+                    counts[j][g] += other.counts[j][og];
+                    values[j][g] += v;
+                    break;
+                default:
+                    values[j][g] += v;
+            }
+        }
+    }
+
+    private boolean sameKey(int g, HashAggregator other, int og) {
+        for (int i = 0; i < groupFields.length; i++) {
+            if (keyIsInt[i]) {
+                if (intKeys[i][g] != other.intKeys[i][og]) {
+                    return false;
+                }
+            } else if (!stringKeys[i][g].equals(other.stringKeys[i][og])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        try {
+            add(tup);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DbIterator iterator() {
+        try {
+            return new TupleIterator(td, results());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of groups held in memory
+     */
+    public int getGroupCount() {
+        return numGroups;
+    }
+
+    /**
+     * @return the number of input tuples written to disk, not counting
+     * tuples written again when a partition is split
+     */
+    public long getSpilledTupleCount() {
+        return spilledTuples;
+    }
+
+    /**
+     * Returns the aggregate of every group seen so far. More tuples may be
+     * added afterwards.
+     */
+    public ArrayList<Tuple> results() throws IOException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
+            tuples.add(result(g));
+        }
+        if (partitions == null) {
+            return tuples;
+        }
+        //之后再写的tuple放到新的文件中
+        Arrays.fill(writing, null);
+        int[] keys = new int[groupFields.length];
+        int[] aggs = new int[aggFields.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        for (int j = 0; j < aggs.length; j++) {
+            aggs[j] = keys.length + j;
+        }
+        for (ArrayList<SpillFile> files : partitions) {
+            if (files.isEmpty()) {
+                continue;
+            }
+            HashAggregator sub = new HashAggregator(keys, aggs, ops, spillTd, td, memoryBytes, level + 1);
+            try {
+                for (SpillFile f : files) {
+                    SpillFile.Reader reader = f.reader();
+                    try {
+                        while (reader.hasNext()) {
+                            sub.add(reader.next());
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+                tuples.addAll(sub.results());
+            } finally {
+                sub.close();
+            }
+        }
+        return tuples;
+    }
+
+    private Tuple result(int g) {
+        Tuple t = new Tuple(td);//该tuple不必setRecordId，因为RecordId对进行操作后的tuple没有意义
+        for (int i = 0; i < groupFields.length; i++) {
+            if (keyIsInt[i]) {
+                t.setField(i, new IntField(intKeys[i][g]));
+            } else {
+                t.setField(i, new StringField(stringKeys[i][g], Type.STRING_LEN));
+            }
+        }
+        for (int j = 0; j < aggFields.length; j++) {
+            long v = values[j][g];
+            if (ops[j] == Aggregator.Op.AVG) {
+                v = v / counts[j][g];
+            }
+            t.setField(groupFields.length + j, new IntField((int) v));
+        }
+        return t;
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    public void close() {
+        if (partitions != null) {
+            for (ArrayList<SpillFile> files : partitions) {
+                for (SpillFile f : files) {
+                    f.delete();
+                }
+            }
+            partitions = null;
+            writing = null;
+        }
+    }
+}
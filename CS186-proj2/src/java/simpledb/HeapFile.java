@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -21,6 +24,18 @@ public class HeapFile implements DbFile {
 
     private int numPage;
 
+    //内存映射模式下每一段映射包含的页数，文件增长时只需要重新映射最后一段
+    private static final int MAP_CHUNK_PAGES = 1024;
+
+    //是否通过内存映射读取页
+    private final boolean memoryMapped;
+
+    //第i段映射从第i*MAP_CHUNK_PAGES页开始，只有最后一段可能不满
+    private volatile MappedByteBuffer[] mappedChunks = new MappedByteBuffer[0];
+
+    //每个页的空slot数量，insertTuple用它直接找到有空位的页
+    private final FreeSpaceMap freeSpace;
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -28,10 +43,53 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file. If memoryMapped
+     * is true, the file is mapped into memory and pages are decoded straight
+     * from the mapping, so pages evicted from the BufferPool are read back
+     * from the OS page cache without copying. Pages are still written
+     * through the file channel.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this heap file.
+     * @param memoryMapped whether to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         file = f;
         numPage = (int) (file.length() / BufferPool.PAGE_SIZE);
         tupleDesc = td;
+        this.memoryMapped = memoryMapped;
+        freeSpace = new FreeSpaceMap(f, td, numPage);
+    }
+
+    /**
+     * @return the free-space map that tracks the empty slots of each page
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * Whether sequential scans may prefetch pages of this file into the
+     * BufferPool. Prefetched pages are read in batches without going through
+     * {@link #readPage(PageId)}, so subclasses that override readPage should
+     * return false here.
+     *
+     * @return whether scans of this file read ahead
+     */
+    protected boolean supportsReadAhead() {
+        return true;
+    }
+
+    /**
+     * @return whether pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -88,11 +146,17 @@ public class HeapFile implements DbFile {
 
 
         try  {
-            RandomAccessFile raf = new RandomAccessFile(getFile(), "r");
+            if (memoryMapped) {
+                ByteBuffer region = mappedRegion(pid.pageNumber());
+                if (region != null) {
+                    return new HeapPage((HeapPageId) pid, region);
+                }
+                //这个页还不在文件中，按普通方式读(得到一个空页)
+            }
             // page在HeapFile的偏移量
-            int pos = pid.pageNumber() * BufferPool.PAGE_SIZE;
-            raf.seek(pos);
-            raf.read(data, 0, data.length);
+            long pos = (long) pid.pageNumber() * BufferPool.PAGE_SIZE;
+            //使用Catalog管理的FileChannel按位置读取，不用每次都打开文件，多个线程也可以同时读
+            Database.getCatalog().getFileChannels().read(file, ByteBuffer.wrap(data), pos);
             page = new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             e.printStackTrace();
@@ -101,18 +165,118 @@ public class HeapFile implements DbFile {
     }
 
 
+    /**
+     * 用一次读操作读取从startPage开始的连续numPages个页，供BufferPool预读使用
+     * 和readPage一样，其他地方应该通过BufferPool访问page
+     *
+     * @return 读到的页，超出文件范围的部分不会返回
+     */
+    public List<Page> readPages(int startPage, int numPages) throws IOException {
+        int end = Math.min(startPage + numPages, numPages());
+        ArrayList<Page> pages = new ArrayList<Page>(Math.max(0, end - startPage));
+        if (startPage >= end) {
+            return pages;
+        }
+        ByteBuffer data = null;
+        if (!memoryMapped) {
+            data = ByteBuffer.allocate((end - startPage) * BufferPool.PAGE_SIZE);
+            Database.getCatalog().getFileChannels().read(file, data, (long) startPage * BufferPool.PAGE_SIZE);
+        }
+        for (int i = startPage; i < end; i++) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            ByteBuffer region;
+            if (memoryMapped) {
+                region = mappedRegion(i);
+                if (region == null) {
+                    break;
+                }
+            } else {
+                data.limit((i - startPage + 1) * BufferPool.PAGE_SIZE);
+                data.position((i - startPage) * BufferPool.PAGE_SIZE);
+                region = data.slice();
+            }
+            pages.add(new HeapPage(pid, region));
+        }
+        return pages;
+    }
+
+    /**
+     * @return 第pageNo页在映射中的区域，这个页超出了文件的范围时返回null
+     */
+    private ByteBuffer mappedRegion(int pageNo) throws IOException {
+        int chunk = pageNo / MAP_CHUNK_PAGES;
+        int offset = (pageNo % MAP_CHUNK_PAGES) * BufferPool.PAGE_SIZE;
+        MappedByteBuffer[] chunks = mappedChunks;
+        if (!isMapped(chunks, chunk, offset)) {
+            //文件增长了(例如insertTuple添加了新的页)，需要重新映射
+            chunks = remap();
+            if (!isMapped(chunks, chunk, offset)) {
+                return null;
+            }
+        }
+        ByteBuffer region = chunks[chunk].duplicate();
+        region.limit(offset + BufferPool.PAGE_SIZE);
+        region.position(offset);
+        return region.slice();
+    }
+
+    private static boolean isMapped(MappedByteBuffer[] chunks, int chunk, int offset) {
+        return chunk < chunks.length && chunks[chunk].capacity() >= offset + BufferPool.PAGE_SIZE;
+    }
+
+    /**
+     * 按文件当前的大小重新映射，已经映射满的段保持不变
+     * 映射在FileChannel关闭后仍然有效，所以不受Catalog关闭文件的影响
+     */
+    private synchronized MappedByteBuffer[] remap() throws IOException {
+        FileChannel channel = Database.getCatalog().getFileChannels().getChannel(file);
+        long chunkBytes = (long) MAP_CHUNK_PAGES * BufferPool.PAGE_SIZE;
+        long size = channel.size() / BufferPool.PAGE_SIZE * BufferPool.PAGE_SIZE;
+        int numChunks = (int) ((size + chunkBytes - 1) / chunkBytes);
+        MappedByteBuffer[] old = mappedChunks;
+        MappedByteBuffer[] chunks = Arrays.copyOf(old, Math.max(numChunks, old.length));
+        for (int i = 0; i < numChunks; i++) {
+            long length = Math.min(chunkBytes, size - i * chunkBytes);
+            if (i < old.length && old[i].capacity() == length) {
+                continue;
+            }
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * chunkBytes, length);
+        }
+        mappedChunks = chunks;
+        return chunks;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
 
-        try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            raf.seek(page.getId().pageNumber() * BufferPool.PAGE_SIZE);
-            byte[] data = page.getPageData();
-            raf.write(data);
-        }catch (IOException e) {
-            e.printStackTrace();
+        long pos = (long) page.getId().pageNumber() * BufferPool.PAGE_SIZE;
+        byte[] data = page.getPageData();
+        Database.getCatalog().getFileChannels().write(file, ByteBuffer.wrap(data), pos);
+        if (page instanceof HeapPage) {
+            //.fsm文件中的记录和磁盘上的页保持一致
+            freeSpace.pageWritten(page.getId().pageNumber(), ((HeapPage) page).getNumEmptySlots());
+        }
+    }
+
+    /**
+     * 把已经编码好的连续count个页用一次写操作追加到文件末尾，不经过BufferPool，供BulkLoader使用
+     * 和insertTuple添加新页一样锁住这个HeapFile，两者不会写到同一个页号
+     *
+     * @param data       count个页的数据
+     * @param emptySlots 每个页的空slot数量
+     * @return 第一个写入的页的页号
+     */
+    int appendPages(ByteBuffer data, int[] emptySlots, int count) throws IOException {
+        synchronized (this) {
+            int first = numPage;
+            Database.getCatalog().getFileChannels().write(file, data, (long) first * BufferPool.PAGE_SIZE);
+            for (int i = 0; i < count; i++) {
+                freeSpace.setFreeSlots(first + i, emptySlots[i]);
+            }
+            numPage += count;
+            return first;
         }
     }
 
@@ -129,30 +293,44 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> affectedPages = new ArrayList<Page>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPageId pid = new HeapPageId(getId(), i);
+        //通过空闲空间映射直接找到有空位的页，不用从第0页开始逐页读取
+        int pageNo = freeSpace.findPageWithFreeSpace();
+        while (pageNo >= 0 && pageNo < numPages()) {
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() != 0) {
-                //page的insertTuple已经负责修改tuple信息表明其存储在该page上
-                page.insertTuple(t);
-                page.markDirty(true, tid);
-                affectedPages.add(page);
-                break;
+            //修改和标记脏页时锁住这个页，后台写线程不会在两者之间把它写回
+            synchronized (page) {
+                if (page.getNumEmptySlots() != 0) {
+                    //page的insertTuple已经负责修改tuple信息表明其存储在该page上
+                    page.insertTuple(t);
+                    page.markDirty(true, tid);
+                    freeSpace.setFreeSlots(pageNo, page.getNumEmptySlots());
+                    affectedPages.add(page);
+                    return affectedPages;
+                }
             }
+            //记录是过期的(例如.fsm文件丢失)，修正后继续找
+            freeSpace.setFreeSlots(pageNo, 0);
+            pageNo = freeSpace.findPageWithFreeSpace(pageNo + 1);
         }
-        if (affectedPages.size() == 0) {//说明page都已经满了
-            //创建一个新的空白的Page
-            HeapPageId npid = new HeapPageId(getId(), numPages());
+        //说明page都已经满了
+        //创建一个新的空白的Page，两个线程不能同时在表尾添加页
+        HeapPageId npid;
+        synchronized (this) {
+            npid = new HeapPageId(getId(), numPages());
             HeapPage blankPage = new HeapPage(npid, HeapPage.createEmptyPageData());
             numPage++;
             //将其写入磁盘
             writePage(blankPage);
-            //通过BufferPool来访问该新的page
-            HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, npid, Permissions.READ_WRITE);
+        }
+        //通过BufferPool来访问该新的page
+        HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, npid, Permissions.READ_WRITE);
+        synchronized (newPage) {
             newPage.insertTuple(t);
             newPage.markDirty(true, tid);
-            affectedPages.add(newPage);
+            freeSpace.setFreeSlots(npid.pageNumber(), newPage.getNumEmptySlots());
         }
+        affectedPages.add(newPage);
         return affectedPages;
         // not necessary for proj1
     }
@@ -166,7 +344,11 @@ public class HeapFile implements DbFile {
         for (int i = 0; i < numPages(); i++) {
             if (i == pid.pageNumber()) {
                 affectedPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                affectedPage.deleteTuple(t);
+                synchronized (affectedPage) {
+                    affectedPage.deleteTuple(t);
+                    affectedPage.markDirty(true, tid);
+                    freeSpace.setFreeSlots(i, affectedPage.getNumEmptySlots());
+                }
             }
         }
         if (affectedPage == null) {
@@ -236,10 +418,13 @@ public class HeapFile implements DbFile {
             if (current.hasNext()) {//判断当前访问的Page是否还有tuple未访问
                 return true;
             }
-            if (index+1 < cachePages.size()) {//判断是否还有缓存的Page未访问
+            //判断是否还有缓存的Page未访问，跳过没有tuple的Page(例如tuple都被删除了)
+            while (index+1 < cachePages.size()) {
                 index++;
                 current = cachePages.get(index);
-                return current.hasNext();
+                if (current.hasNext()) {
+                    return true;
+                }
             }
             return false;
         }
@@ -283,6 +468,12 @@ public class HeapFile implements DbFile {
 
         private TransactionId tid;
 
+        //每次预读的页数，为0时不预读
+        private int readAheadWindow;
+
+        //已经请求预读到的位置(不包括)
+        private int prefetchedUpTo;
+
         public HeapFileIterator(TransactionId tid) {
             this.tid = tid;
         }
@@ -290,6 +481,8 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             initPos = 0;
+            readAheadWindow = supportsReadAhead() ? Database.getBufferPool().getReadAheadWindow() : 0;
+            prefetchedUpTo = 0;
             cachePool = new OneOffCachePages(cacheRate, numPage);
             initPos += fillCache(initPos);//缓存Pages并修改initPos为下一次需要作为起始缓存的Page偏移量
         }
@@ -306,6 +499,7 @@ public class HeapFile implements DbFile {
             cachePool.clear();
             int pagePos = initPos;
             for (; pagePos < numPage && addNum < cachePool.getNum(); ) {
+                readAhead(pagePos);
                 HeapPageId pid = new HeapPageId(getId(), pagePos);
                 Iterator<Tuple> tuples = getTuplesInPage(pid);
                 cachePool.addPage(tuples);
@@ -317,6 +511,26 @@ public class HeapFile implements DbFile {
             return addNum;
         }
 
+        /**
+         * 顺序扫描时保持前面有两个窗口的页在预读：
+         * 读到上一个预读窗口的开头时，请求预读下一个窗口
+         *
+         * @param pagePos 将要读取的页
+         */
+        private void readAhead(int pagePos) {
+            if (readAheadWindow == 0) {
+                return;
+            }
+            if (pagePos >= prefetchedUpTo) {
+                //第一次读或者跳过了预读的范围，从当前位置重新开始
+                prefetchedUpTo = pagePos;
+            }
+            while (prefetchedUpTo < numPage && pagePos + readAheadWindow >= prefetchedUpTo) {
+                Database.getBufferPool().prefetchPages(HeapFile.this, prefetchedUpTo, readAheadWindow);
+                prefetchedUpTo += readAheadWindow;
+            }
+        }
+
         /**
          * 由HeapPageId得到该Page的所有Tuple，以迭代器形式返回
          *
@@ -340,14 +554,18 @@ public class HeapFile implements DbFile {
             if (cachePool.hasNext()) {//如果缓存还访问完
                 return true;
             }
-            //从上一个if出来说明当前缓存访问完了，所以加载新的Page到缓存
-            int addNum = fillCache(initPos);
-            //实际缓存的page数量为0，说明这个HeapFile已经访问完
-            if (addNum == 0) {
-                return false;
+            //从上一个if出来说明当前缓存访问完了，所以加载新的Page到缓存，直到缓存中有tuple
+            while (true) {
+                int addNum = fillCache(initPos);
+                //实际缓存的page数量为0，说明这个HeapFile已经访问完
+                if (addNum == 0) {
+                    return false;
+                }
+                initPos += addNum;
+                if (cachePool.hasNext()) {
+                    return true;
+                }
             }
-            initPos += addNum;
-            return true;
         }
 
         @Override
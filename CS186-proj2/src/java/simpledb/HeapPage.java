@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -15,13 +16,26 @@ public class HeapPage implements Page {
     private HeapPageId pid;
     private TupleDesc td;
     private byte header[];
+    //已经解码的tuple，slot在使用但对应的元素为null表示还没有解码，需要时再从raw中解码
     private Tuple tuples[];
     private int numSlots;
+    //空的slot数量，在插入和删除时维护
+    private int emptySlots;
     private TransactionId lastDirtyOperation;
 
+    //从磁盘读到的原始数据(可能是内存映射的区域)，只读，从下标0开始
+    private ByteBuffer raw;
+
+    //每个字段在一个tuple中的偏移量
+    private int[] fieldOffsets;
+
+    //读进来之后是否修改过，没有修改过的页getPageData()直接复制raw
+    private boolean modified;
+
     // oldData的作用见setBeforeImage()和getBeforeImage()方法
     // 如果一个HeapPage在修改前调用setBeforeImage(),就能将当前的数据保留下来
     // 在修改后，通过getBeforeImage()获得修改前的HeapPage
+    // 为null时表示还没有被修改过，修改前的数据就是raw，第一次修改时才复制一份(copy-on-write)
     byte[] oldData;
 
     /**
@@ -42,27 +56,65 @@ public class HeapPage implements Page {
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the BufferPool.PAGE_SIZE bytes of data starting
+     * at the current position of the buffer, e.g. a region of a memory mapped
+     * HeapFile. The position of the buffer is not changed.
+     * <p>
+     * Only the header is decoded here. The page keeps a reference to the
+     * bytes and decodes a tuple the first time it is accessed, so neither
+     * the buffer nor the array passed to {@link #HeapPage(HeapPageId, byte[])}
+     * may be modified afterwards. A heap buffer that is part of a larger array
+     * is copied, so that the page does not keep the whole array reachable.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.PAGE_SIZE) {
+            throw new IOException("page data is shorter than BufferPool.PAGE_SIZE");
+        }
+        //slice之后下标从0开始，也不会改变调用者的buffer的position
+        ByteBuffer buf = data.slice();
+        buf.limit(BufferPool.PAGE_SIZE);
+        if (!buf.isDirect() && !(buf.hasArray() && buf.arrayOffset() == 0
+                && buf.array().length == BufferPool.PAGE_SIZE)) {
+            //不是映射的区域，而是更大的数组中的一段(例如readPages一次读进来的多个页)时复制出来，
+            //否则只要有一个页还在缓存中，整个数组都不能被回收
+            byte[] own = new byte[BufferPool.PAGE_SIZE];
+            buf.get(own);
+            buf = ByteBuffer.wrap(own);
+        }
+        raw = buf.duplicate();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        buf.get(header);
+        int usedSlots = 0;
+        for (int i = 0; i < header.length; i++) {
+            //最后一个字节中不对应slot的bit不计算在内
+            int validBits = Math.min(8, numSlots - i * 8);
+            usedSlots += Integer.bitCount(header[i] & 0xff & ((1 << validBits) - 1));
+        }
+        emptySlots = numSlots - usedSlots;
 
-        try {
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        tuples = new Tuple[numSlots];
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    /**
+     * @return 这个页持有的堆上数组的大小，使用映射的区域时为0
+     */
+    int backingSize() {
+        return raw.hasArray() ? raw.array().length : 0;
     }
 
     /**
@@ -98,7 +150,7 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            return new HeapPage(pid, oldData);
+            return new HeapPage(pid, oldData != null ? oldData : copyOfRaw());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -108,7 +160,73 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        //getPageData()每次都返回新的数组，不需要再clone
+        oldData = getPageData();
+    }
+
+    /**
+     * 每次修改页之前调用，第一次修改时保存修改前的数据
+     * raw可能是内存映射的区域，页写回磁盘后会改变，所以这里要复制
+     */
+    private void beforeModification() {
+        if (oldData == null) {
+            oldData = copyOfRaw();
+        }
+        modified = true;
+    }
+
+    private byte[] copyOfRaw() {
+        byte[] copy = new byte[BufferPool.PAGE_SIZE];
+        raw.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * @return slot在页中的偏移量
+     */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * @return 第slotId个slot的tuple，slot未使用时返回null；tuple还没有解码的话先解码
+     */
+    private Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId)) {
+            return null;
+        }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = readTuple(slotId);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
+
+    /**
+     * Returns one field of the tuple in the specified slot without
+     * materializing the whole tuple if it has not been accessed yet.
+     *
+     * @param slotId     the slot of the tuple
+     * @param fieldIndex the index of the field in the tuple
+     * @return the field, or null if the slot is empty
+     */
+    public Field getField(int slotId, int fieldIndex) {
+        if (!isSlotUsed(slotId)) {
+            return null;
+        }
+        Tuple t = tuples[slotId];
+        if (t != null) {
+            return t.getField(fieldIndex);
+        }
+        ByteBuffer buf = raw.duplicate();
+        buf.position(slotOffset(slotId) + fieldOffsets[fieldIndex]);
+        try {
+            return td.getFieldType(fieldIndex).parse(buf);
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
     }
 
     /**
@@ -120,21 +238,11 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Suck up a tuple from the raw page data.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        ByteBuffer buf = raw.duplicate();
+        buf.position(slotOffset(slotId));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -142,7 +250,7 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -165,37 +273,32 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        //先整块复制原始数据，没有解码过的tuple不需要重新序列化
+        byte[] data = copyOfRaw();
+        if (!modified) {
+            return data;
+        }
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, data, 0, header.length);
 
         // create the tuples
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         for (int i = 0; i < tuples.length; i++) {
+            int offset = slotOffset(i);
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(data, offset, offset + td.getSize(), (byte) 0);
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot that has not been decoded still holds the raw bytes
+            if (tuples[i] == null) {
+                continue;
+            }
+            baos.reset();
             for (int j = 0; j < td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -205,25 +308,19 @@ public class HeapPage implements Page {
                     e.printStackTrace();
                 }
             }
+            try {
+                dos.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.arraycopy(baos.toByteArray(), 0, data, offset, td.getSize());
         }
 
         // padding
         // 填充字节0
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        Arrays.fill(data, slotOffset(tuples.length), BufferPool.PAGE_SIZE, (byte) 0);
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -257,6 +354,7 @@ public class HeapPage implements Page {
         if (!hpid.equals(pid) || !isSlotUsed(tupleNum)) {
             throw new DbException("this tuple is not on this page, or tuple slot is already empty");
         }
+        beforeModification();
         tuples[tupleNum]=null;
         markSlotUsed(tupleNum, false);
     }
@@ -277,15 +375,21 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
-        //不使用getNumTuples() == 0来判断是否没有可用的slot，因为要找到可用的slot本身就要遍历一次tuples数组
-        //if(getNumTuples() == 0) throw new DbException("the page is full (no empty slots)");
-        for(int i=0;i<getNumTuples();i++) {
-            if (!isSlotUsed(i)) {
-                tuples[i] = t;
-                //修改tuple的信息，表明它现在存储在这个page上
-                t.setRecordId(new RecordId(pid, i));
-                markSlotUsed(i,true);
-                return;
+        if (emptySlots == 0) throw new DbException("the page is full (no empty slots)");
+        //跳过全满的header字节，一次跳过8个slot
+        for (int byteNum = 0; byteNum < header.length; byteNum++) {
+            if (header[byteNum] == (byte) 0xff) {
+                continue;
+            }
+            for (int i = byteNum * 8; i < byteNum * 8 + 8 && i < getNumTuples(); i++) {
+                if (!isSlotUsed(i)) {
+                    beforeModification();
+                    tuples[i] = t;
+                    //修改tuple的信息，表明它现在存储在这个page上
+                    t.setRecordId(new RecordId(pid, i));
+                    markSlotUsed(i,true);
+                    return;
+                }
             }
         }
         throw new DbException("the page is full (no empty slots)");
@@ -313,15 +417,9 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    // TODO: 17-6-8 修改为用一个变量来存储空的slot数量，效率会更高（虽然维护也相对麻烦）
     public int getNumEmptySlots() {
         // some code goes here
-        int emptySlots = 0;
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (!isSlotUsed(i)) {
-                emptySlots++;
-            }
-        }
+        //用一个变量来存储空的slot数量，在markSlotUsed中维护
         return emptySlots;
     }
 
@@ -366,6 +464,9 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int byteNum = i / 8;//计算在第几个字节
         int posInByte = i % 8;//计算在该字节的第几位,从右往左算（这是因为JVM用big-ending）
+        if (isOne(header[byteNum], posInByte) != value) {
+            emptySlots += value ? -1 : 1;
+        }
         header[byteNum] = editBitInByte(header[byteNum], posInByte, value);
     }
 
@@ -422,7 +523,7 @@ public class HeapPage implements Page {
             for (; !isSlotUsed(index); index++) {
             }//直到找到在使用的(对应的slot非空的)tuple，再返回
             pos++;
-            return tuples[index++];
+            return getTuple(index++);
         }
     }
 
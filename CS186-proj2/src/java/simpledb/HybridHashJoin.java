@@ -0,0 +1,569 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The HybridHashJoin operator implements an equality join whose memory use
+ * is bounded by a MemoryBudget, whatever the size of its inputs.
+ * <p>
+ * child1 is hash partitioned into a number of partitions kept in memory as
+ * hash tables. When the budget is exhausted the largest resident partition
+ * is written to a SpillFile, and later tuples of that partition follow it to
+ * disk. child2 is then streamed: tuples of resident partitions are probed
+ * immediately, the others are written to the matching spill partition.
+ * Finally each pair of spilled partitions is joined, building on the
+ * smaller side. A pair that still does not fit is partitioned again with a
+ * different hash function, and after MAX_RECURSION_DEPTH levels (e.g. when
+ * most tuples share one key) it is joined in memory-sized chunks, reading
+ * the other side once per chunk.
+ * <p>
+ * The output is the same as that of {@link Join}.
+ */
+public class HybridHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of partitions at each level
+     */
+    public static final int DEFAULT_PARTITIONS = 32;
+
+    //超过这个深度还放不下的分区按块处理，不再重新分区
+    static final int MAX_RECURSION_DEPTH = 3;
+
+    private JoinPredicate joinPredicate;
+    private DbIterator child1;
+    private DbIterator child2;
+    private TupleDesc td;
+
+    private final long memoryBytes;
+    private final int numPartitions;
+
+    private MemoryBudget budget;
+
+    //两边的一个tuple在内存中大概占用的字节数
+    private long leftTupleBytes;
+    private long rightTupleBytes;
+
+    //统计信息
+    private int spilledPartitions;
+    private long spilledTuples;
+    private int recursionDepth;
+    private int chunkedPasses;
+
+    //所有创建的临时文件，close时删除
+    private ArrayList<SpillFile> spillFiles = new ArrayList<SpillFile>();
+
+    //第一阶段：child1的每个分区的哈希表，写到磁盘上的分区为null
+    private ArrayList<HashMap<Field, ArrayList<Tuple>>> resident;
+    private long[] residentBytes;
+    private SpillFile[] leftSpills;
+    private SpillFile[] rightSpills;
+
+    //是否在读child2(第二阶段)
+    private boolean probingChild;
+
+    //第三阶段：还没有处理的磁盘上的分区
+    private ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+
+    //正在处理的分区的哈希表和建立哈希表的一边
+    private HashMap<Field, ArrayList<Tuple>> table;
+    private long tableBytes;
+    private boolean buildLeft;
+    private Partition current;
+
+    //按块处理时还没有读完的建立一边，否则为null
+    private SpillFile.Reader buildReader;
+    private SpillFile.Reader probeReader;
+
+    //当前探测的tuple和它匹配的tuple
+    private Tuple probe;
+    private ArrayList<Tuple> matches;
+    private int matchPos;
+
+    /**
+     * Constructor with the default memory budget and number of partitions.
+     *
+     * @param p      The predicate to use to join the children, its operator
+     *               must be Predicate.Op.EQUALS
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     * @see MemoryBudget#DEFAULT_OPERATOR_MEMORY
+     */
+    public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MemoryBudget.DEFAULT_OPERATOR_MEMORY, DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * @param memoryBytes   the most bytes of tuples kept in memory
+     * @param numPartitions the number of partitions at each level, at least 2
+     */
+    public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+                          long memoryBytes, int numPartitions) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("hash join only supports equality predicates");
+        }
+        if (numPartitions < 2) {
+            throw new IllegalArgumentException("need at least 2 partitions");
+        }
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryBytes = memoryBytes;
+        this.numPartitions = numPartitions;
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return joinPredicate;
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(joinPredicate.getIndex1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(joinPredicate.getIndex2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of partitions at each level
+     */
+    public int getPartitionCount() {
+        return numPartitions;
+    }
+
+    /**
+     * @return the number of partitions written to disk, at all levels, since
+     * the last open or rewind
+     */
+    public int getSpilledPartitionCount() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of tuples written to spill files, counting a tuple
+     * again each time it is repartitioned
+     */
+    public long getSpilledTupleCount() {
+        return spilledTuples;
+    }
+
+    /**
+     * @return the deepest level of repartitioning that was needed
+     */
+    public int getRecursionDepth() {
+        return recursionDepth;
+    }
+
+    /**
+     * @return the number of chunks of spilled partitions that were joined
+     * one at a time, because the partition did not fit in memory even after
+     * repartitioning
+     */
+    public int getChunkedPassCount() {
+        return chunkedPasses;
+    }
+
+    /**
+     * @return the most bytes of tuples held in memory at once
+     */
+    public long getPeakMemory() {
+        return budget == null ? 0 : budget.getPeak();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        child2.open();
+        partitionLeft();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        cleanUp();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        //磁盘上的分区已经被处理并删除了，重新执行一遍
+        cleanUp();
+        child1.rewind();
+        child2.rewind();
+        super.close();
+        super.open();
+        partitionLeft();
+    }
+
+    private void cleanUp() {
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        for (SpillFile f : spillFiles) {
+            f.delete();
+        }
+        spillFiles.clear();
+        pending.clear();
+        resident = null;
+        leftSpills = null;
+        rightSpills = null;
+        table = null;
+        tableBytes = 0;
+        current = null;
+        probe = null;
+        matches = null;
+        probingChild = false;
+    }
+
+    /**
+     * 第一阶段：把child1分区，尽量多的分区留在内存中
+     */
+    private void partitionLeft() throws DbException, TransactionAbortedException {
+        budget = new MemoryBudget(memoryBytes);
+        leftTupleBytes = MemoryBudget.estimateTupleBytes(child1.getTupleDesc());
+        rightTupleBytes = MemoryBudget.estimateTupleBytes(child2.getTupleDesc());
+        spilledPartitions = 0;
+        spilledTuples = 0;
+        recursionDepth = 0;
+        chunkedPasses = 0;
+
+        resident = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            resident.add(new HashMap<Field, ArrayList<Tuple>>());
+        }
+        residentBytes = new long[numPartitions];
+        leftSpills = new SpillFile[numPartitions];
+        rightSpills = new SpillFile[numPartitions];
+        int index = joinPredicate.getIndex1();
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                Field key = t.getField(index);
+                int p = partition(key, 0);
+                //放不下时把最大的分区写到磁盘上，可能就是这个分区
+                while (resident.get(p) != null && !budget.tryReserve(leftTupleBytes)) {
+                    spillLargestPartition();
+                }
+                if (resident.get(p) != null) {
+                    addToTable(resident.get(p), key, t);
+                    residentBytes[p] += leftTupleBytes;
+                } else {
+                    leftSpills[p].add(t);
+                    spilledTuples++;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill join partition: " + e.getMessage());
+        }
+        probingChild = true;
+    }
+
+    private void spillLargestPartition() throws IOException {
+        int largest = -1;
+        for (int i = 0; i < numPartitions; i++) {
+            if (resident.get(i) != null && (largest < 0 || residentBytes[i] > residentBytes[largest])) {
+                largest = i;
+            }
+        }
+        SpillFile spill = newSpillFile(child1.getTupleDesc());
+        for (ArrayList<Tuple> bucket : resident.get(largest).values()) {
+            for (Tuple t : bucket) {
+                spill.add(t);
+                spilledTuples++;
+            }
+        }
+        leftSpills[largest] = spill;
+        resident.set(largest, null);
+        budget.release(residentBytes[largest]);
+        residentBytes[largest] = 0;
+        spilledPartitions++;
+    }
+
+    private SpillFile newSpillFile(TupleDesc desc) throws IOException {
+        SpillFile f = new SpillFile(desc);
+        spillFiles.add(f);
+        return f;
+    }
+
+    private static void addToTable(HashMap<Field, ArrayList<Tuple>> table, Field key, Tuple t) {
+        ArrayList<Tuple> bucket = table.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Tuple>(1);
+            table.put(key, bucket);
+        }
+        bucket.add(t);
+    }
+
+    /**
+     * 每一层用不同的哈希函数，重新分区时同一个分区的tuple才能被分开
+     */
+    private int partition(Field key, int level) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % numPartitions;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Results for the partitions kept in memory are produced
+     * while child2 is read; the spilled partitions are joined after that.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (matches != null && matchPos < matches.size()) {
+                    Tuple match = matches.get(matchPos++);
+                    return buildLeft ? mergeTuples(match, probe) : mergeTuples(probe, match);
+                }
+                matches = null;
+                if (probingChild) {
+                    probeChild();
+                } else if (probeReader != null) {
+                    probeSpilled();
+                } else {
+                    Partition next = pending.poll();
+                    if (next == null) {
+                        return null;
+                    }
+                    startPartition(next);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill join partition: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 第二阶段：读child2的下一个tuple
+     */
+    private void probeChild() throws IOException, DbException, TransactionAbortedException {
+        if (!child2.hasNext()) {
+            finishProbingChild();
+            return;
+        }
+        Tuple t = child2.next();
+        Field key = t.getField(joinPredicate.getIndex2());
+        int p = partition(key, 0);
+        HashMap<Field, ArrayList<Tuple>> partitionTable = resident.get(p);
+        if (partitionTable != null) {
+            buildLeft = true;
+            probe = t;
+            matches = partitionTable.get(key);
+            matchPos = 0;
+        } else {
+            if (rightSpills[p] == null) {
+                rightSpills[p] = newSpillFile(child2.getTupleDesc());
+            }
+            rightSpills[p].add(t);
+            spilledTuples++;
+        }
+    }
+
+    private void finishProbingChild() {
+        probingChild = false;
+        resident = null;
+        budget.release(budget.getUsed());
+        for (int p = 0; p < numPartitions; p++) {
+            if (leftSpills[p] != null && rightSpills[p] != null) {
+                pending.add(new Partition(leftSpills[p], rightSpills[p], 0));
+            } else {
+                //只有一边有tuple的分区没有结果
+                deleteSpillFile(leftSpills[p]);
+                deleteSpillFile(rightSpills[p]);
+            }
+        }
+        leftSpills = null;
+        rightSpills = null;
+    }
+
+    private void deleteSpillFile(SpillFile f) {
+        if (f != null) {
+            f.delete();
+            spillFiles.remove(f);
+        }
+    }
+
+    /**
+     * 第三阶段：开始处理一对磁盘上的分区，在较小的一边上建立哈希表
+     */
+    private void startPartition(Partition partition) throws IOException {
+        current = partition;
+        buildLeft = partition.left.size() <= partition.right.size();
+        SpillFile buildFile = buildLeft ? partition.left : partition.right;
+        buildReader = buildFile.reader();
+        loadChunk();
+        if (buildReader.hasNext()) {
+            if (partition.level < MAX_RECURSION_DEPTH) {
+                //放不下，用下一层的哈希函数重新分区
+                buildReader.close();
+                buildReader = null;
+                releaseTable();
+                repartition(partition);
+                return;
+            }
+            //重新分区也分不开(例如大部分tuple的连接属性相同)，按块处理
+            chunkedPasses++;
+        } else {
+            buildReader.close();
+            buildReader = null;
+        }
+        probeReader = (buildLeft ? partition.right : partition.left).reader();
+    }
+
+    /**
+     * 从buildReader读tuple建立哈希表，直到读完或者内存放不下，至少读一个tuple
+     */
+    private void loadChunk() throws IOException {
+        releaseTable();
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        long tupleBytes = buildLeft ? leftTupleBytes : rightTupleBytes;
+        int index = buildLeft ? joinPredicate.getIndex1() : joinPredicate.getIndex2();
+        while (buildReader.hasNext()) {
+            if (!budget.tryReserve(tupleBytes) && !table.isEmpty()) {
+                break;
+            }
+            Tuple t = buildReader.next();
+            addToTable(table, t.getField(index), t);
+            tableBytes += tupleBytes;
+        }
+    }
+
+    private void releaseTable() {
+        budget.release(tableBytes);
+        tableBytes = 0;
+        table = null;
+    }
+
+    private void repartition(Partition partition) throws IOException {
+        int level = partition.level + 1;
+        recursionDepth = Math.max(recursionDepth, level);
+        SpillFile[] left = split(partition.left, joinPredicate.getIndex1(), level);
+        SpillFile[] right = split(partition.right, joinPredicate.getIndex2(), level);
+        deleteSpillFile(partition.left);
+        deleteSpillFile(partition.right);
+        //先处理新的分区，磁盘上同时存在的临时文件少一些
+        for (int p = numPartitions - 1; p >= 0; p--) {
+            if (left[p] != null && right[p] != null) {
+                pending.addFirst(new Partition(left[p], right[p], level));
+            } else {
+                deleteSpillFile(left[p]);
+                deleteSpillFile(right[p]);
+            }
+        }
+        current = null;
+    }
+
+    private SpillFile[] split(SpillFile file, int index, int level) throws IOException {
+        SpillFile[] parts = new SpillFile[numPartitions];
+        SpillFile.Reader reader = file.reader();
+        try {
+            while (reader.hasNext()) {
+                Tuple t = reader.next();
+                int p = partition(t.getField(index), level);
+                if (parts[p] == null) {
+                    parts[p] = newSpillFile(file.getTupleDesc());
+                    spilledPartitions++;
+                }
+                parts[p].add(t);
+                spilledTuples++;
+            }
+        } finally {
+            reader.close();
+        }
+        return parts;
+    }
+
+    /**
+     * 第三阶段：读探测的一边的下一个tuple
+     */
+    private void probeSpilled() throws IOException {
+        if (probeReader.hasNext()) {
+            probe = probeReader.next();
+            int index = buildLeft ? joinPredicate.getIndex2() : joinPredicate.getIndex1();
+            matches = table.get(probe.getField(index));
+            matchPos = 0;
+            return;
+        }
+        probeReader.close();
+        probeReader = null;
+        if (buildReader != null && buildReader.hasNext()) {
+            //按块处理：下一块建立哈希表，再读一遍探测的一边
+            loadChunk();
+            chunkedPasses++;
+            probeReader = (buildLeft ? current.right : current.left).reader();
+            return;
+        }
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        releaseTable();
+        deleteSpillFile(current.left);
+        deleteSpillFile(current.right);
+        current = null;
+    }
+
+    private Tuple mergeTuples(Tuple left, Tuple right) {
+        Tuple result = new Tuple(td);
+        int length1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < length1; i++) {
+            result.setField(i, left.getField(i));
+        }
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++) {
+            result.setField(i + length1, right.getField(i));
+        }
+        return result;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    /**
+     * 一对磁盘上的分区，连接属性的哈希值在前level+1层都相同
+     */
+    private static class Partition {
+
+        final SpillFile left;
+        final SpillFile right;
+        final int level;
+
+        Partition(SpillFile left, SpillFile right, int level) {
+            this.left = left;
+            this.right = right;
+            this.level = level;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+/**
+ * 估计不同值个数(NDV)的HyperLogLog草图
+ * <p>
+ * 每个值先哈希成64位，高PRECISION位选一个寄存器，寄存器记录剩下的位中第一个1的最大位置。
+ * 用2^PRECISION个字节的寄存器，估计的标准误差大约是1.04 / sqrt(2^PRECISION)，约1.6%。
+ * 两个草图按寄存器取最大值合并，结果和把所有值加到一个草图中一样，所以可以在多个线程中分别统计。
+ */
+public class HyperLogLog {
+
+    /**
+     * 选择寄存器的位数
+     */
+    static final int PRECISION = 12;
+
+    private static final int M = 1 << PRECISION;
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        registers = new byte[M];
+    }
+
+    /**
+     * Creates a sketch from registers returned by {@link #getRegisters()}.
+     */
+    public HyperLogLog(byte[] registers) {
+        if (registers.length != M) {
+            throw new IllegalArgumentException("expected " + M + " registers");
+        }
+        this.registers = registers.clone();
+    }
+
+    public void add(int v) {
+        addHash(mix(v));
+    }
+
+    public void add(String s) {
+        addHash(mix(s.hashCode()) ^ s.length());
+    }
+
+    /**
+     * Adds the value of an INT_TYPE or STRING_TYPE field.
+     */
+    public void add(Field f) {
+        if (f instanceof IntField) {
+            add(((IntField) f).getValue());
+        } else {
+            add(((StringField) f).getValue());
+        }
+    }
+
+    private void addHash(long h) {
+        int index = (int) (h >>> (64 - PRECISION));
+        //剩下的位后面补一个1，保证能找到1
+        int rank = Long.numberOfLeadingZeros((h << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * MurmurHash3的fmix64
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Adds the values of another sketch to this one.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double e = alpha * M * M / sum;
+        //值少的时候用空寄存器的个数估计(linear counting)更准
+        if (e <= 2.5 * M && zeros > 0) {
+            e = M * Math.log((double) M / zeros);
+        }
+        return Math.round(e);
+    }
+
+    /**
+     * @return a copy of the registers, for storing the sketch
+     */
+    public byte[] getRegisters() {
+        return registers.clone();
+    }
+}
@@ -0,0 +1,394 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A class to represent a fixed-width histogram over a single integer-based
+ * field.
+ * <p>
+ * 桶的宽度总是2的幂，桶的边界是宽度的整数倍，所以值v落在第(v >> shift)个桶中。
+ * 值超出当前的桶时把宽度加倍、相邻的桶两两合并，直到所有的值都在最多buckets个桶中，
+ * 这样不需要事先知道值的范围，扫描一遍就能建好直方图，每个桶的计数都是准确的。
+ * 两个直方图合并时把桶较窄的那个加宽到和另一个一样，桶的边界正好对齐。
+ */
+public class IntHistogram {
+
+    private final int buckets;
+    //桶的宽度是1 << shift
+    private int shift;
+    //counts[i]是第first + i个桶中的值的个数
+    private long first;
+    private long[] counts;
+    //见过的最小值和最大值
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private long total;
+
+    /**
+     * Create a new IntHistogram.
+     * <p>
+     * This IntHistogram should maintain a histogram of integer values that it
+     * receives. It should split the histogram into "buckets" buckets.
+     * <p>
+     * The values that are being histogrammed will be provided one-at-a-time
+     * through the "addValue()" function.
+     * <p>
+     * Your implementation should use space and have execution time that are
+     * both constant with respect to the number of values being histogrammed.
+     * For example, you shouldn't simply store every value that you see in a
+     * sorted list.
+     *
+     * @param buckets The number of buckets to split the input value into.
+     * @param min     The minimum integer value that will ever be passed to this class for histogramming
+     * @param max     The maximum integer value that will ever be passed to this class for histogramming
+     */
+    public IntHistogram(int buckets, int min, int max) {
+        this(buckets);
+        while ((((long) max >> shift) - ((long) min >> shift)) >= buckets) {
+            shift++;
+        }
+        first = (long) min >> shift;
+    }
+
+    /**
+     * Create a new IntHistogram whose range grows with the values added.
+     *
+     * @param buckets the maximum number of buckets, at least 2
+     */
+    public IntHistogram(int buckets) {
+        if (buckets < 2) {
+            throw new IllegalArgumentException("need at least 2 buckets");
+        }
+        this.buckets = buckets;
+        counts = new long[buckets];
+        first = Long.MIN_VALUE;
+    }
+
+    /**
+     * Add a value to the set of values that you are keeping a histogram of.
+     *
+     * @param v Value to add to the histogram
+     */
+    public void addValue(int v) {
+        long b = (long) v >> shift;
+        if (first == Long.MIN_VALUE) {
+            first = b;
+        } else if (b < first || b >= first + buckets) {
+            extend(b);
+            b = (long) v >> shift;
+        }
+        counts[(int) (b - first)]++;
+        total++;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    /**
+     * 调整桶使第b个桶(按当前的宽度)也在范围内
+     */
+    private void extend(long b) {
+        long lo = Math.min(b, firstUsed());
+        long hi = Math.max(b, lastUsed());
+        int newShift = shift;
+        while (hi - lo >= buckets) {
+            lo >>= 1;
+            hi >>= 1;
+            newShift++;
+        }
+        //往下扩展时把已有的桶放在后面，留出下面的空间，这样值递减时不用每次都重新排列
+        long newFirst = b < first ? hi - buckets + 1 : lo;
+        rebucket(newShift, newFirst);
+    }
+
+    //往下扩展后first下面可能有空桶，范围要按有值的桶算
+    private long firstUsed() {
+        for (int i = 0; i < buckets - 1; i++) {
+            if (counts[i] != 0) {
+                return first + i;
+            }
+        }
+        return first + buckets - 1;
+    }
+
+    private long lastUsed() {
+        for (int i = buckets - 1; i > 0; i--) {
+            if (counts[i] != 0) {
+                return first + i;
+            }
+        }
+        return first;
+    }
+
+    private void rebucket(int newShift, long newFirst) {
+        long[] newCounts = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            if (counts[i] != 0) {
+                newCounts[(int) (((first + i) >> (newShift - shift)) - newFirst)] += counts[i];
+            }
+        }
+        counts = newCounts;
+        shift = newShift;
+        first = newFirst;
+    }
+
+    /**
+     * Removes a value added before. The minimum and maximum are not
+     * updated, so the range may stay wider than the remaining values.
+     *
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        long b = ((long) v >> shift) - first;
+        if (total == 0 || b < 0 || b >= buckets || counts[(int) b] == 0) {
+            //不是加进来过的值，忽略
+            return;
+        }
+        counts[(int) b]--;
+        total--;
+    }
+
+    /**
+     * Adds the values of another histogram with the same number of buckets
+     * to this one, as if they had been added one by one.
+     */
+    public void merge(IntHistogram other) {
+        if (other.buckets != buckets) {
+            throw new IllegalArgumentException("histograms have different numbers of buckets");
+        }
+        if (other.total == 0) {
+            return;
+        }
+        //先用对方的边界扩展，再按加宽后的桶累加
+        int s = Math.max(shift, other.shift);
+        long otherLo = other.firstUsed() >> (s - other.shift);
+        long otherHi = other.lastUsed() >> (s - other.shift);
+        if (total == 0) {
+            first = otherLo;
+            shift = s;
+        } else {
+            long lo = Math.min(firstUsed() >> (s - shift), otherLo);
+            long hi = Math.max(lastUsed() >> (s - shift), otherHi);
+            while (hi - lo >= buckets) {
+                lo >>= 1;
+                hi >>= 1;
+                s++;
+            }
+            rebucket(s, lo);
+        }
+        for (int i = 0; i < buckets; i++) {
+            if (other.counts[i] != 0) {
+                counts[(int) (((other.first + i) >> (shift - other.shift)) - first)] += other.counts[i];
+            }
+        }
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the smallest value added
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value added
+     */
+    public int getMax() {
+        return max;
+    }
+
+    //第first + i个桶中可能出现的最小值和最大值，限制在[min, max]内
+    private long bucketLow(int i) {
+        return Math.max(min, (first + i) << shift);
+    }
+
+    private long bucketHigh(int i) {
+        return Math.min(max, ((first + i + 1) << shift) - 1);
+    }
+
+    /**
+     * @return 小于v的值所占的比例，假设每个桶中的值均匀分布
+     */
+    private double fractionBelow(int v) {
+        if (v <= min) {
+            return 0;
+        }
+        if (v > max) {
+            return 1;
+        }
+        int b = (int) (((long) v >> shift) - first);
+        long below = 0;
+        for (int i = 0; i < b; i++) {
+            below += counts[i];
+        }
+        long lo = bucketLow(b);
+        double width = bucketHigh(b) - lo + 1;
+        return (below + counts[b] * ((v - lo) / width)) / total;
+    }
+
+    /**
+     * @return 等于v的值所占的比例，假设每个桶中的值均匀分布
+     * 桶比桶中值的个数还宽时(例如字符串的前缀)，假设桶中的值各不相同，至少有一个等于v
+     */
+    private double fractionEqual(int v) {
+        if (v < min || v > max) {
+            return 0;
+        }
+        int b = (int) (((long) v >> shift) - first);
+        if (counts[b] == 0) {
+            return 0;
+        }
+        double width = bucketHigh(b) - bucketLow(b) + 1;
+        return Math.max(counts[b] / width, 1) / total;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     * <p>
+     * For example, if "op" is "GREATER_THAN" and "v" is 5,
+     * return your estimate of the fraction of elements that are greater than 5.
+     *
+     * @param op Operator
+     * @param v  Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        // some code goes here
+        if (total == 0) {
+            return 0;
+        }
+        double sel;
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                sel = fractionEqual(v);
+                break;
+            case NOT_EQUALS:
+                sel = 1 - fractionEqual(v);
+                break;
+            case LESS_THAN:
+                sel = fractionBelow(v);
+                break;
+            case LESS_THAN_OR_EQ:
+                sel = fractionBelow(v) + fractionEqual(v);
+                break;
+            case GREATER_THAN:
+                sel = 1 - fractionBelow(v) - fractionEqual(v);
+                break;
+            case GREATER_THAN_OR_EQ:
+                sel = 1 - fractionBelow(v);
+                break;
+            default:
+                sel = 1.0;
+        }
+        return Math.max(0, Math.min(1, sel));
+    }
+
+    /**
+     * @return the average selectivity of this histogram.
+     * <p>
+     * This is not an indispensable method to implement the basic
+     * join optimization. It may be needed if you want to
+     * implement a more efficient optimization
+     */
+    public double avgSelectivity() {
+        // some code goes here
+        return avgSelectivity(Predicate.Op.EQUALS);
+    }
+
+    /**
+     * @return the expected selectivity of "field op v" when v is a value
+     * drawn from this histogram
+     */
+    public double avgSelectivity(Predicate.Op op) {
+        if (total == 0) {
+            return 0;
+        }
+        //用每个桶的中点代表这个桶中的值，按桶中值的个数加权
+        double sel = 0;
+        for (int i = 0; i < buckets; i++) {
+            if (counts[i] != 0) {
+                int mid = (int) ((bucketLow(i) + bucketHigh(i)) / 2);
+                sel += (double) counts[i] / total * estimateSelectivity(op, mid);
+            }
+        }
+        return sel;
+    }
+
+    /**
+     * Writes the histogram for {@link #read}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(buckets);
+        out.writeInt(shift);
+        out.writeLong(first);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeLong(total);
+        //大部分桶是空的或者计数很小，只写有值的桶
+        int used = 0;
+        for (long c : counts) {
+            if (c != 0) {
+                used++;
+            }
+        }
+        out.writeInt(used);
+        for (int i = 0; i < buckets; i++) {
+            if (counts[i] != 0) {
+                out.writeInt(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     */
+    static IntHistogram read(DataInputStream in) throws IOException {
+        int buckets = in.readInt();
+        if (buckets < 2) {
+            throw new IOException("bad histogram: " + buckets + " buckets");
+        }
+        IntHistogram h = new IntHistogram(buckets);
+        h.shift = in.readInt();
+        h.first = in.readLong();
+        h.min = in.readInt();
+        h.max = in.readInt();
+        h.total = in.readLong();
+        for (int used = in.readInt(); used > 0; used--) {
+            int i = in.readInt();
+            if (i < 0 || i >= buckets) {
+                throw new IOException("bad histogram bucket " + i);
+            }
+            h.counts[i] = in.readLong();
+        }
+        return h;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        // some code goes here
+        StringBuilder sb = new StringBuilder();
+        sb.append("IntHistogram(").append(total).append(" values in [").append(min).append(", ")
+                .append(max).append("], bucket width ").append(1L << shift).append("):");
+        for (int i = 0; i < buckets; i++) {
+            if (counts[i] != 0) {
+                sb.append(' ').append((first + i) << shift).append('=').append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -9,17 +9,40 @@ public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The nested-loop algorithms a Join can use. They differ only in how many
+     * tuples of each child are held in memory at a time.
+     */
+    public enum Algorithm {
+        /** one outer tuple, one inner tuple */
+        NESTED_LOOP,
+        /** a block of outer tuples, one inner tuple */
+        BLOCK_NESTED_LOOP,
+        /** a block of outer tuples and a block of inner tuples */
+        DOUBLE_BLOCK_NESTED_LOOP
+    }
+
     private JoinPredicate joinPredicate;
     private DbIterator child1;
     private DbIterator child2;
     private TupleDesc td;
-    private TupleIterator joinResults;
 
-    // 131072是MySql中BlockNestedLoopJoin算法的默认缓冲区大小（以字节为单位）
-    private int blockMemory = 131072*5;
+    private Algorithm algorithm;
+    //缓存外层和内层tuple的块最多保存的tuple数量，由内存上限算出来
+    private int outerBlockSize;
+    private int innerBlockSize;
+
+    //外层(child1)和内层(child2)当前的块
+    private ArrayList<Tuple> outerBlock;
+    private ArrayList<Tuple> innerBlock;
+    //下一个要比较的是outerBlock[outerPos]和innerBlock[innerPos]
+    private int outerPos;
+    private int innerPos;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
-     * on
+     * on. Uses a block nested loop join within the default operator memory
+     * ({@link MemoryBudget#DEFAULT_OPERATOR_MEMORY}).
      *
      * @param p      The predicate to use to join the children
      * @param child1 Iterator for the left(outer) relation to join
@@ -27,13 +50,49 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
         // some code goes here
+        this(p, child1, child2, Algorithm.BLOCK_NESTED_LOOP, MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p           The predicate to use to join the children
+     * @param child1      Iterator for the left(outer) relation to join
+     * @param child2      Iterator for the right(inner) relation to join
+     * @param algorithm   The nested-loop algorithm to use
+     * @param memoryBytes The memory the blocks of buffered tuples may take
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2,
+                Algorithm algorithm, long memoryBytes) {
+        if (memoryBytes <= 0) {
+            throw new IllegalArgumentException("memory limit must be positive");
+        }
         this.joinPredicate = p;
         this.child1 = child1;
         this.child2 = child2;
-        int length1 = child1.getTupleDesc().numFields();
-        int length2 = child2.getTupleDesc().numFields();
-        Type[] types = new Type[length1 + length2];
+        this.algorithm = algorithm;
         td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+
+        long outerTuple = MemoryBudget.estimateTupleBytes(child1.getTupleDesc());
+        long innerTuple = MemoryBudget.estimateTupleBytes(child2.getTupleDesc());
+        switch (algorithm) {
+            case NESTED_LOOP:
+                outerBlockSize = 1;
+                innerBlockSize = 1;
+                break;
+            case BLOCK_NESTED_LOOP:
+                outerBlockSize = blockSize(memoryBytes, outerTuple);
+                innerBlockSize = 1;
+                break;
+            default:
+                //两个块平分内存
+                outerBlockSize = blockSize(memoryBytes / 2, outerTuple);
+                innerBlockSize = blockSize(memoryBytes / 2, innerTuple);
+        }
+    }
+
+    private static int blockSize(long memoryBytes, long tupleBytes) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBytes / tupleBytes));
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -68,19 +127,57 @@ public class Join extends Operator {
         return td;
     }
 
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the maximum number of child1 tuples held in memory at a time
+     */
+    public int getOuterBlockSize() {
+        return outerBlockSize;
+    }
+
+    /**
+     * @return the maximum number of child2 tuples held in memory at a time
+     */
+    public int getInnerBlockSize() {
+        return innerBlockSize;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         child1.open();
         child2.open();
+        outerBlock = new ArrayList<Tuple>();
+        innerBlock = new ArrayList<Tuple>();
+        start();
+    }
 
-        // 计算连接结果
-        joinResults = blockNestedLoopJoin();
-        //joinResults = NestedLoopJoin();
-        //joinResults = doubleBlockNestedLoopJoin();
+    /**
+     * 读入第一个外层块，结果在fetchNext()中边读内层边产生
+     */
+    private void start() throws DbException, TransactionAbortedException {
+        fillBlock(child1, outerBlock, outerBlockSize);
+        innerBlock.clear();
+        outerPos = 0;
+        innerPos = 0;
+    }
 
-        joinResults.open();
+    /**
+     * 从child读最多size个tuple到block中
+     *
+     * @return 是否读到了tuple
+     */
+    private static boolean fillBlock(DbIterator child, ArrayList<Tuple> block, int size)
+            throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < size && child.hasNext()) {
+            block.add(child.next());
+        }
+        return !block.isEmpty();
     }
 
     public void close() {
@@ -88,14 +185,17 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
-        joinResults.close();
+        outerBlock = null;
+        innerBlock = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        joinResults.rewind();
+        start();
+        super.close();
+        super.open();
     }
 
     /**
@@ -118,10 +218,7 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(joinResults.hasNext()){
-            return joinResults.next();
-        }
-        return null;
+        return nextBlockMatch();
     }
 
     @Override
@@ -143,22 +240,11 @@ public class Join extends Operator {
      * BNL算法:BlockNestedLoopJoin
      * \DoubleBlockNestedJoin
      *
-     * */
-
-    /**左联*/
-    private Tuple mergeTwoTuples(int length1, Tuple left, Tuple right){
-        Tuple result = new Tuple(td);
-        for (int i=0 ; i<length1 ; i++){
-            result.setField(i, left.getField(i));
-        }
-        for (int i=0 ; i<right.getTupleDesc().numFields() ; i++){
-            result.setField(i+length1, right.getField(i));//这里别忘了+length1
-        }
-        return result;
-    }
-    /**
-     * NLJ算法:NestedLoopJoin
-     * 伪码
+     * 三种算法只是两个块的大小不同:NLJ两个块都只有一个tuple，BNL只缓存外层，
+     * DoubleBlockNestedJoin两边都缓存。结果不再全部放在LinkedList里，每次fetchNext()
+     * 从上次停下来的位置继续比较，内存中最多只有两个块。
+     *
+     * NLJ伪码
      * for each row in t1 matching range {
      *    for each row in t2 matching reference key {
      *       for each row in t3 {
@@ -167,27 +253,7 @@ public class Join extends Operator {
      *      }
      *    }
      *  }
-     * */
-    private TupleIterator NestedLoopJoin() throws DbException, TransactionAbortedException {
-        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
-        int length1 = child1.getTupleDesc().numFields();
-        child1.rewind();
-        while (child1.hasNext()) {
-            Tuple left = child1.next();
-            child2.rewind();
-            while (child2.hasNext()) {
-                Tuple right = child2.next();
-                if (joinPredicate.filter(left, right)) {
-                    Tuple result = mergeTwoTuples(length1, left, right);
-                    tuples.add(result);
-                }
-            }
-        }
-
-        return new TupleIterator(getTupleDesc(), tuples);
-    }
-
-    /**
+     *
      * BNL算法：将外层循环的行/结果集存入join buffer，内存循环的每一行数据与整个buffer中的记录做比较，可以减少内层循环的扫描次数
      * 伪码
      * for each row in t1 matching range {
@@ -214,57 +280,43 @@ public class Join extends Operator {
      *   }
      * }
      * */
-    //TODO: 还不会
-    private TupleIterator blockNestedLoopJoin() throws DbException, TransactionAbortedException {
-        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
-        int blockSize = blockMemory / child1.getTupleDesc().getSize();//131072是MySql中该算法的默认缓冲区大小
-        Tuple[] cacheBlock = new Tuple[blockSize];
-        int index = 0;
+    private Tuple nextBlockMatch() throws DbException, TransactionAbortedException {
         int length1 = child1.getTupleDesc().numFields();
-        child1.rewind();
-        while (child1.hasNext()) {
-            Tuple left = child1.next();
-            cacheBlock[index++] = left;
-            if (index >= cacheBlock.length) {//如果缓冲区满了，就先处理缓存中的tuple
-                child2.rewind();
-                while (child2.hasNext()) {
-                    Tuple right = child2.next();
-                    for (Tuple cacheLeft : cacheBlock) {
-                        if (joinPredicate.filter(cacheLeft, right)) {//如果符合条件就合并来自两个表的tuple作为一条结果
-                            Tuple result = mergeTwoTuples(length1, cacheLeft, right);
-                            tuples.add(result);
-                        }
+        while (!outerBlock.isEmpty()) {
+            while (innerPos < innerBlock.size()) {
+                Tuple right = innerBlock.get(innerPos);
+                while (outerPos < outerBlock.size()) {
+                    Tuple left = outerBlock.get(outerPos++);
+                    if (joinPredicate.filter(left, right)) {//如果符合条件就合并来自两个表的tuple作为一条结果
+                        return mergeTwoTuples(length1, left, right);
                     }
                 }
-                Arrays.fill(cacheBlock, null);//清空，给下一次使用
-                index = 0;
+                outerPos = 0;
+                innerPos++;
             }
-        }
-        if (index > 0 && index < cacheBlock.length) {//处理缓冲区中剩下的tuple
-            child2.rewind();
-            while (child2.hasNext()) {
-                Tuple right = child2.next();
-                for (Tuple cacheLeft : cacheBlock) {
-                    //如果符合条件就合并来自两个表的tuple作为一条结果，加上为null的判断是因为此时cache没有满，最后有null值
-                    if (cacheLeft == null) break;
-                    if (joinPredicate.filter(cacheLeft, right)) {
-                        Tuple result = mergeTwoTuples(length1, cacheLeft, right);
-                        tuples.add(result);
-                    }
-                }
+            innerPos = 0;
+            if (fillBlock(child2, innerBlock, innerBlockSize)) {
+                continue;
             }
+            //内层读完了，换下一个外层块，再从头读内层
+            if (!fillBlock(child1, outerBlock, outerBlockSize)) {
+                break;
+            }
+            child2.rewind();
         }
-        return new TupleIterator(getTupleDesc(), tuples);
-    }
-
-    private TupleIterator doubleBlockNestedLoopJoin() throws DbException, TransactionAbortedException {
-        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
-
-        return new TupleIterator(getTupleDesc(), tuples);
+        return null;
     }
 
-    private TupleIterator dbnlSortedJoin() throws DbException, TransactionAbortedException {
-        return joinResults;
+    /**左联*/
+    private Tuple mergeTwoTuples(int length1, Tuple left, Tuple right){
+        Tuple result = new Tuple(td);
+        for (int i=0 ; i<length1 ; i++){
+            result.setField(i, left.getField(i));
+        }
+        for (int i=0 ; i<right.getTupleDesc().numFields() ; i++){
+            result.setField(i+length1, right.getField(i));//这里别忘了+length1
+        }
+        return result;
     }
 
 }
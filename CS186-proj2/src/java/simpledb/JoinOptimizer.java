@@ -14,6 +14,28 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * 连接数不超过这个值时用动态规划枚举所有的连接顺序，否则每次贪心地加入代价最小的连接
+     */
+    static final int MAX_DP_JOINS = 14;
+
+    /**
+     * 范围连接的结果占笛卡尔积的比例
+     */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * 估计哈希连接会不会写磁盘时，假设中间结果的一个tuple在内存中占用的字节数
+     */
+    static final int JOIN_TUPLE_BYTES = 256;
+
+    /**
+     * 连接的实现算法
+     */
+    enum JoinAlgorithm {
+        HASH, SORT_MERGE, NESTED_LOOPS
+    }
+
     /**
      * Constructor
      *
@@ -63,12 +85,36 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p, plan1, plan2);
+        switch (algorithmFor(lj.p, Operator.isSortedOn(plan1, t1id), Operator.isSortedOn(plan2, t2id))) {
+            case HASH:
+                j = new HybridHashJoin(p, plan1, plan2);
+                break;
+            case SORT_MERGE:
+                j = new SortMergeJoin(p, plan1, plan2);
+                break;
+            default:
+                j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * 选择连接算法。instantiateJoin和estimateJoinCost都用这里的规则，所以代价估计的就是实际执行的算法。
+     * 等值连接用哈希连接(内存不够时把分区写到磁盘上)，但两边已经按连接属性有序时直接合并，不用再排序也不用哈希表；
+     * 范围比较用排序合并连接(window放不下时写到磁盘上)，其他的比较只能用嵌套循环
+     *
+     * @param sorted1 左边是否已经按连接属性升序
+     * @param sorted2 右边是否已经按连接属性升序
+     */
+    static JoinAlgorithm algorithmFor(Predicate.Op op, boolean sorted1, boolean sorted2) {
+        if (op == Predicate.Op.EQUALS) {
+            return sorted1 && sorted2 ? JoinAlgorithm.SORT_MERGE : JoinAlgorithm.HASH;
+        }
+        return SortMergeJoin.supports(op) ? JoinAlgorithm.SORT_MERGE : JoinAlgorithm.NESTED_LOOPS;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -91,6 +137,24 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, false, false);
+    }
+
+    /**
+     * Estimate the cost of a join whose inputs may already be sorted on
+     * their join fields, for example because they are the output of a
+     * sort-merge join on the same field. The join algorithm is the one
+     * {@link #instantiateJoin} picks for inputs with that order, and inputs
+     * that are already sorted are not charged for sorting.
+     *
+     * @param sorted1 whether the left-hand side is sorted ascending on its
+     *                join field
+     * @param sorted2 whether the right-hand side is sorted ascending on its
+     *                join field
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                   double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 4.
@@ -100,10 +164,40 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return -1.0;
+            //和instantiateJoin选择的算法一致
+            switch (algorithmFor(j.p, sorted1, sorted2)) {
+                case HASH: {
+                    //HybridHashJoin用左边建哈希表，建表比探测贵；放不下的部分两边都要多写一遍、读一遍
+                    double cost = cost1 + cost2 + 2.0 * card1 + card2;
+                    double buildBytes = (double) card1 * JOIN_TUPLE_BYTES;
+                    if (buildBytes > MemoryBudget.DEFAULT_OPERATOR_MEMORY) {
+                        double spilled = 1 - MemoryBudget.DEFAULT_OPERATOR_MEMORY / buildBytes;
+                        double pages = ((double) card1 + card2) * JOIN_TUPLE_BYTES / BufferPool.PAGE_SIZE;
+                        cost += 2 * spilled * pages * TableStats.IOCOSTPERPAGE;
+                    }
+                    return cost;
+                }
+                case SORT_MERGE: {
+                    //已经有序的一边不用排序
+                    double cost = cost1 + cost2 + (sorted1 ? 0 : sortCost(card1)) + (sorted2 ? 0 : sortCost(card2));
+                    if (j.p == Predicate.Op.EQUALS) {
+                        //两边各读一遍，每个tuple比较一次
+                        return cost + card1 + card2;
+                    }
+                    //范围连接合并时每个输出的tuple比较一次
+                    return cost + RANGE_JOIN_SELECTIVITY * card1 * card2;
+                }
+                default:
+                    //嵌套循环：左边的每个tuple把右边完整地读一遍
+                    return cost1 + card1 * cost2 + (double) card1 * card2;
+            }
         }
     }
 
+    private static double sortCost(int card) {
+        return card < 2 ? card : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -140,9 +234,63 @@ public class JoinOptimizer {
                                                    Map<String, Integer> tableAliasToId) {
         int card = 1;
         // some code goes here
+        long cross = (long) card1 * card2;
+        long equal;
+        //主键的不同值个数就是行数
+        long ndv1 = t1pkey ? card1 : distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+        long ndv2 = t2pkey ? card2 : distinctValues(table2Alias, field2PureName, card2, stats, tableAliasToId);
+        if (ndv1 > 0 || ndv2 > 0) {
+            //假设值少的一边的每个值都在另一边出现：|R|*|S| / max(V(R,a), V(S,b))
+            equal = cross / Math.max(Math.max(ndv1, ndv2), 1);
+        } else {
+            //没有统计信息时猜测是外键连接
+            equal = Math.max(card1, card2);
+        }
+        long estimate;
+        switch (joinOp) {
+            case EQUALS:
+            case LIKE:
+                estimate = equal;
+                break;
+            case NOT_EQUALS:
+                estimate = cross - equal;
+                break;
+            default:
+                //范围连接
+                estimate = (long) (cross * RANGE_JOIN_SELECTIVITY);
+        }
+        card = (int) Math.min(Integer.MAX_VALUE, estimate);
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * @return the estimated number of distinct values of a join field,
+     * at most the cardinality of its side of the join, or 0 if there are no
+     * statistics for it
+     */
+    private static long distinctValues(String tableAlias, String fieldPureName, int card,
+                                       Map<String, TableStats> stats,
+                                       Map<String, Integer> tableAliasToId) {
+        if (tableAlias == null || fieldPureName == null || tableAliasToId == null || stats == null) {
+            return 0;
+        }
+        Integer tableid = tableAliasToId.get(tableAlias);
+        if (tableid == null) {
+            return 0;
+        }
+        try {
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableid));
+            if (s == null) {
+                return 0;
+            }
+            int field = Database.getCatalog().getTupleDesc(tableid).fieldNameToIndex(fieldPureName);
+            //选择条件过滤之后，不同值不会比剩下的行还多
+            return Math.min(s.estimateDistinct(field), card);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -197,41 +345,129 @@ public class JoinOptimizer {
         //Not necessary for projs 1--3
 
         // some code goes here
-        //Replace the following
-        return joins;
+        if (joins.isEmpty()) {
+            return joins;
+        }
+        PlanCache pc = new PlanCache();
+        Vector<LogicalJoinNode> best = joins.size() <= MAX_DP_JOINS
+                ? orderAllJoins(stats, filterSelectivities, pc)
+                : orderJoinsGreedily(stats, filterSelectivities, pc);
+        if (best == null) {
+            //连接图不连通，只能做笛卡尔积，保持查询中的顺序
+            return joins;
+        }
+        if (explain) {
+            printJoins(best, pc, stats, filterSelectivities);
+        }
+        return best;
+    }
+
+    /**
+     * Selinger风格的动态规划：按连接的集合从小到大求出每个集合最好的左深计划。
+     * 集合用位图表示，每个集合最好的计划保存在以位图为下标的数组中，去掉第i个连接后的子集就是mask & ~(1 << i)，
+     * 它总比原来的小，所以按数值从小到大处理就保证子集已经处理过了。
+     * PlanCache只记录最后选出的顺序的每个前缀，供printJoins使用
+     *
+     * @return 所有连接最好的顺序，连接图不连通时为null
+     */
+    private Vector<LogicalJoinNode> orderAllJoins(HashMap<String, TableStats> stats,
+                                                  HashMap<String, Double> filterSelectivities,
+                                                  PlanCache pc) throws ParsingException {
+        int all = (1 << joins.size()) - 1;
+        CostCard[] bestOf = new CostCard[all + 1];
+        //每个集合最好的计划中最后加入的连接
+        int[] lastJoin = new int[all + 1];
+        for (int mask = 1; mask <= all; mask++) {
+            CostCard best = null;
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                int i = Integer.numberOfTrailingZeros(rest);
+                int subset = mask & ~(1 << i);
+                //子集只能通过笛卡尔积连接时没有计划
+                if (subset != 0 && bestOf[subset] == null) {
+                    continue;
+                }
+                CostCard cc = computeCostAndCardOfSubplan(stats, filterSelectivities, joins.get(i),
+                        subset == 0 ? null : bestOf[subset], best == null ? Double.MAX_VALUE : best.cost);
+                if (cc != null) {
+                    best = cc;
+                    lastJoin[mask] = i;
+                }
+            }
+            bestOf[mask] = best;
+        }
+        if (bestOf[all] == null) {
+            return null;
+        }
+        for (int mask = all; mask != 0; mask &= ~(1 << lastJoin[mask])) {
+            CostCard cc = bestOf[mask];
+            pc.addPlan(new HashSet<LogicalJoinNode>(cc.plan), cc.cost, cc.card, cc.plan);
+        }
+        return bestOf[all].plan;
+    }
+
+    /**
+     * 连接太多时动态规划的代价是指数级的，改为每次加入使总代价最小的连接
+     *
+     * @return 连接的顺序，连接图不连通时为null
+     */
+    private Vector<LogicalJoinNode> orderJoinsGreedily(HashMap<String, TableStats> stats,
+                                                       HashMap<String, Double> filterSelectivities,
+                                                       PlanCache pc) throws ParsingException {
+        boolean[] chosen = new boolean[joins.size()];
+        CostCard plan = null;
+        for (int step = 0; step < joins.size(); step++) {
+            CostCard best = null;
+            int bestJoin = -1;
+            for (int i = 0; i < joins.size(); i++) {
+                if (chosen[i]) {
+                    continue;
+                }
+                CostCard cc = computeCostAndCardOfSubplan(stats, filterSelectivities, joins.get(i), plan,
+                        best == null ? Double.MAX_VALUE : best.cost);
+                if (cc != null) {
+                    best = cc;
+                    bestJoin = i;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            chosen[bestJoin] = true;
+            plan = best;
+            pc.addPlan(new HashSet<LogicalJoinNode>(plan.plan), plan.cost, plan.card, plan.plan);
+        }
+        return plan.plan;
     }
 
     // ===================== Private Methods =================================
 
     /**
      * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * joinToRemove to the best plan of the other joins of the set, given that
+     * this plan has already been computed.
      *
      * @param stats               table stats for all of the tables, referenced by table names
      *                            rather than alias (see {@link #orderJoins})
      * @param filterSelectivities the selectivities of the filters over each of the tables
      *                            (where tables are indentified by their alias or name if no
      *                            alias is given)
-     * @param joinToRemove        the join to remove from joinSet
-     * @param joinSet             the set of joins being considered
-     * @param bestCostSoFar       the best way to join joinSet so far (minimum of previous
-     *                            invocations of computeCostAndCardOfSubplan for this joinSet,
+     * @param joinToRemove        the join to remove from the set of joins being considered
+     * @param subplan             the best plan of the other joins of the set, or null if
+     *                            joinToRemove is the only join of the set
+     * @param bestCostSoFar       the best way to join the set so far (minimum of previous
+     *                            invocations of computeCostAndCardOfSubplan for this set,
      *                            from returned CostCard)
-     * @param pc                  the PlanCache for this join; should have subplans for all
-     *                            plans of size joinSet.size()-1
      * @return A {@link CostCard} objects desribing the cost, cardinality,
      * optimal subplan
-     * @throws ParsingException when stats, filterSelectivities, or pc object is missing
+     * @throws ParsingException when stats or filterSelectivities is missing
      *                          tables involved in join
      */
     @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
+            LogicalJoinNode joinToRemove, CostCard subplan,
+            double bestCostSoFar) throws ParsingException {
 
         LogicalJoinNode j = joinToRemove;
 
@@ -239,25 +475,24 @@ public class JoinOptimizer {
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        //子查询的连接没有第二个表
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
+        String table2Name = j.t2Alias == null ? null : Database.getCatalog().getTableName(
                 this.p.getTableId(j.t2Alias));
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
 
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        //两边是否已经按连接属性有序：基本表是SeqScan，没有顺序；子计划看它最后的连接用的算法
+        boolean sorted1 = false, sorted2 = false;
 
-        if (news.isEmpty()) { // base case -- both are base relations
+        if (subplan == null) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
             t1cost = stats.get(table1Name).estimateScanCost();
             t1card = stats.get(table1Name).estimateTableCardinality(
@@ -272,20 +507,16 @@ public class JoinOptimizer {
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
         } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+            // figure best way to join j to the subplan
+            prevBest = subplan.plan;
+            double prevBestCost = subplan.cost;
+            int bestCard = subplan.card;
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
+            Set<String> prevOrder = sortedFieldsOf(prevBest);
 
             // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
+                sorted1 = prevOrder.contains(j.f1QuantifiedName);
                 t1cost = prevBestCost; // left side just has cost of whatever
                 // left
                 // subtree is
@@ -302,6 +533,7 @@ public class JoinOptimizer {
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                 // (both
                 // shouldn't be)
+                sorted2 = prevOrder.contains(j.f2QuantifiedName);
                 t2cost = prevBestCost; // left side just has cost of whatever
                 // left
                 // subtree is
@@ -321,10 +553,10 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, sorted1, sorted2);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, sorted2, sorted1);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -346,6 +578,47 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * 按physicalPlan构造连接的方式依次执行plan中的连接，求出最后的输出按哪些属性升序有序。
+     * 只有排序合并连接产生顺序(见SortMergeJoin.isSortedOn)，哈希连接和嵌套循环连接的输出没有确定的顺序。
+     * <p>
+     * PlanCache对每个连接的集合只保存代价最小的一个计划，所以代价稍高但输出有序、能让后面的连接省掉排序的计划不会被保留
+     *
+     * @return 输出有序的属性的完整名字(别名.属性)
+     */
+    static Set<String> sortedFieldsOf(Vector<LogicalJoinNode> plan) {
+        //每个表所在的子计划的输出顺序，同一个子计划中的表共享同一个集合
+        HashMap<String, Set<String>> orderOf = new HashMap<String, Set<String>>();
+        Set<String> last = new HashSet<String>();
+        for (LogicalJoinNode j : plan) {
+            Set<String> left = orderOf.get(j.t1Alias);
+            Set<String> right = j.t2Alias == null ? null : orderOf.get(j.t2Alias);
+            boolean sorted1 = left != null && left.contains(j.f1QuantifiedName);
+            boolean sorted2 = j instanceof LogicalSubplanJoinNode
+                    ? Operator.isSortedOn(((LogicalSubplanJoinNode) j).subPlan, 0)
+                    : right != null && right.contains(j.f2QuantifiedName);
+            Set<String> out = new HashSet<String>();
+            if (algorithmFor(j.p, sorted1, sorted2) == JoinAlgorithm.SORT_MERGE) {
+                out.add(j.f1QuantifiedName);
+                //等值连接时两边的连接属性相等
+                if (j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode)) {
+                    out.add(j.f2QuantifiedName);
+                }
+            }
+            for (Map.Entry<String, Set<String>> e : orderOf.entrySet()) {
+                if (e.getValue() == left || e.getValue() == right) {
+                    e.setValue(out);
+                }
+            }
+            orderOf.put(j.t1Alias, out);
+            if (j.t2Alias != null) {
+                orderOf.put(j.t2Alias, out);
+            }
+            last = out;
+        }
+        return last;
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -30,12 +30,18 @@ public class LogicalPlan {
     private HashMap<String, Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    //GROUP BY的字段，以及每个聚合的操作和字段，都按它们在查询中出现的顺序
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    //ORDER BY的字段和顺序，按它们在查询中出现的顺序
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    //LIMIT和OFFSET，limit为-1表示没有LIMIT
+    private int limit = -1;
+    private int offset = 0;
     private String query;
 //    private Query owner;
 
@@ -202,27 +208,40 @@ public class LogicalPlan {
 
     /**
      * Add an aggregate over the field with the specified grouping to
-     * the query.  SimpleDb only supports a single aggregate
-     * expression and GROUP BY field.
+     * the query.  Calling this more than once computes several aggregates,
+     * all with the same grouping; more GROUP BY fields can be added with
+     * {@link #addGroupBy}.
      *
      * @param op     the aggregation operator
      * @param afield the field to aggregate over
-     * @param gfield the field to group by
+     * @param gfield the field to group by, or null
      * @throws ParsingException
      */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield = disambiguateName(afield);
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
         if (gfield != null)
-            gfield = disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
         hasAgg = true;
     }
 
     /**
-     * Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-     * a single ORDER BY field.
+     * Add a field to the GROUP BY list of the query. Groups are formed on the
+     * combination of all GROUP BY fields; adding a field twice has no effect.
+     *
+     * @param field the field to group by
+     * @throws ParsingException
+     */
+    public void addGroupBy(String field) throws ParsingException {
+        field = disambiguateName(field);
+        if (!groupByFields.contains(field))
+            groupByFields.addElement(field);
+    }
+
+    /**
+     * Add an ORDER BY expression in the specified order on the specified field.  Calling this more than
+     * once sorts on several fields: ties on the earlier fields are broken by the later ones.
      *
      * @param field the field to order by
      * @param asc   true if should be ordered in ascending order, false for descending order
@@ -230,11 +249,27 @@ public class LogicalPlan {
      */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field = disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /**
+     * Return at most limit result tuples, after skipping the first offset ones.  Combined with
+     * ORDER BY this becomes a {@link TopN}, which does not sort the whole input.
+     *
+     * @param limit  the maximum number of tuples to return
+     * @param offset the number of leading tuples to skip
+     * @throws ParsingException if limit or offset is negative
+     */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0) {
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /**
      * Given a name of a field, try to figure out what table it belongs to by looking
      * through all of the tables added via {@link #addScan}.
@@ -439,7 +474,16 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField != null ? 1 : 0);
+                //Aggregate的输出先是所有分组字段，然后按addAggregate的顺序是各个聚合
+                int j = 0;
+                while (j < aggOps.size() && !(aggOps.elementAt(j).equals(si.aggOp)
+                        && aggFields.elementAt(j).equals(si.fname))) {
+                    j++;
+                }
+                if (j == aggOps.size()) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list was not added to the plan");
+                }
+                outFields.add(groupByFields.size() + j);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -451,16 +495,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                if (groupByField == null) {
+                int g = groupByFields.indexOf(si.fname);
+                if (g < 0) {
                     throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                 }
-                outFields.add(0);
+                outFields.add(g);
                 TupleDesc td = node.getTupleDesc();
                 int id;
                 try {
-                    id = td.fieldNameToIndex(groupByField);
+                    id = td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " + groupByField + " in GROUP BY statement");
+                    throw new ParsingException("Unknown field " + si.fname + " in GROUP BY statement");
                 }
                 outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -487,10 +532,17 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                        td.fieldNameToIndex(aggField),
-                        groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField),
-                        getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                }
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(aggFields.elementAt(j));
+                    aops[j] = getAggOp(aggOps.elementAt(j));
+                }
+                aggNode = new Aggregate(node, afields, aops, gfields, ParallelAggregator.DEFAULT_PARALLELISM);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -500,7 +552,22 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                ascs[i] = oByAscs.elementAt(i);
+            }
+            //排序合并连接的输出已经按连接属性升序，不需要再排一次
+            if (oByIndexes.length > 1 || !ascs[0] || !Operator.isSortedOn(node, oByIndexes[0])) {
+                //有LIMIT时只需要保留最前面的limit+offset个tuple
+                node = limit >= 0 ? new TopN(oByIndexes, ascs, limit, offset, node)
+                        : new OrderBy(oByIndexes, ascs, node);
+            } else if (limit >= 0) {
+                node = new Limit(limit, offset, node);
+            }
+        } else if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
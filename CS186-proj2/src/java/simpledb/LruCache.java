@@ -1,10 +1,14 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
 
-public class LruCache<K,V> {
+/**
+ * 使用LRU替换策略的缓存
+ * 每次get都要调整链表，所以所有公开的方法都加了synchronized
+ */
+public class LruCache<K,V> implements PageCache<K,V> {
 
     //存放当前缓存的条目
     private HashMap<K,Node> cachedEntries;
@@ -18,6 +22,9 @@ public class LruCache<K,V> {
     //最后一个结点
     private Node tail;
 
+    //淘汰时的建议
+    private EvictionAdvisor<? super V> advisor;
+
     private class Node{
         Node front;
         Node next;
@@ -44,6 +51,7 @@ public class LruCache<K,V> {
         //如果是最后一个结点
         if (ruNode.next == null) {
             ruNode.front.next = null;
+            tail = ruNode.front;
         } else {
             ruNode.front.next=ruNode.next;
             ruNode.next.front=ruNode.front;
@@ -67,16 +75,24 @@ public class LruCache<K,V> {
     }
 
     /**
-     * 删除链表的最后一个元素
+     * 从链表尾部往前找第一个advisor不反对淘汰的结点并删除，找不到则删除最后一个结点
      * @return  返回被删除的元素
      */
-    private K removeTail() {
-        K element=tail.key;
-        Node newTail = tail.front;
-        tail.front=null;
-        newTail.next=null;
-        tail=newTail;
-        return element;
+    private K removeVictim() {
+        Node victim = tail;
+        if (advisor != null) {
+            for (Node n = tail; n != head; n = n.front) {
+                if (!advisor.avoidEviction(n.value)) {
+                    victim = n;
+                    break;
+                }
+            }
+            advisor.beforeEviction(victim.value);
+        }
+        unlink(victim);
+        victim.front = null;
+        victim.next = null;
+        return victim.key;
     }
 
     /**
@@ -85,7 +101,7 @@ public class LruCache<K,V> {
      * @param value
      * @return     被删除出缓存的条目，如果没有，返回null
      */
-    public V put(K key, V value) {
+    public synchronized V put(K key, V value) {
         if (key == null | value == null) {//不允许插入null值
             throw new IllegalArgumentException();
         }
@@ -101,7 +117,7 @@ public class LruCache<K,V> {
             //还没有的话只需要新建结点，然后插入到表头，返回null
             V removed=null;
             if (cachedEntries.size() == capacity) {
-                K removedKey=removeTail();
+                K removedKey=removeVictim();
                 removed = cachedEntries.remove(removedKey).value;
             }
             Node ruNode = new Node(key, value);
@@ -116,7 +132,7 @@ public class LruCache<K,V> {
      * @param key
      * @return  返回存在与缓存中的条目，不存在则返回null
      */
-    public V get(K key) {
+    public synchronized V get(K key) {
         if (isCached(key)) {
             //调整最近使用的条目
             Node ruNode = cachedEntries.get(key);
@@ -127,10 +143,32 @@ public class LruCache<K,V> {
         return null;
     }
 
-    public boolean isCached(K key) {
+    /**
+     * 从缓存中删除一个条目
+     *
+     * @return 被删除的条目，不存在则返回null
+     */
+    public synchronized V remove(K key) {
+        Node ruNode = cachedEntries.remove(key);
+        if (ruNode == null) {
+            return null;
+        }
+        unlink(ruNode);
+        return ruNode.value;
+    }
+
+    public synchronized void setEvictionAdvisor(EvictionAdvisor<? super V> advisor) {
+        this.advisor = advisor;
+    }
+
+    public synchronized boolean isCached(K key) {
         return cachedEntries.containsKey(key);
     }
 
+    public synchronized int size() {
+        return cachedEntries.size();
+    }
+
     private void displayCache() {
         //用于测试的
         Node n=head;
@@ -141,28 +179,16 @@ public class LruCache<K,V> {
     }
 
     /**
+     * 返回的是当前缓存的一个快照，遍历时其他线程修改缓存不会影响它
      *
      * @return 当前缓存的所有value
      */
-    public Iterator<V> iterator() {
-        return new LruIter();
-    }
-
-    private class LruIter implements Iterator<V> {
+    public synchronized Iterator<V> iterator() {
+        ArrayList<V> values = new ArrayList<V>(cachedEntries.size());
         Node n = head;
-
-        @Override
-        public boolean hasNext() {
-            return n.next!=null;
-        }
-
-        @Override
-        public V next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
-            n=n.next;
-            return n.value;
+        while ((n = n.next) != null) {
+            values.add(n.value);
         }
+        return values.iterator();
     }
 }
@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 使用LRU-K替换策略的缓存(O'Neil et al., 1993)
+ * <p>
+ * 淘汰倒数第K次访问时间最早的页。被访问不足K次的页的倒数第K次访问时间视为无穷早，
+ * 所以扫描带进来的只访问过一次的页会先于热页被淘汰。
+ * 被淘汰的页的访问历史会保留一段时间，这样它很快又被读进来时不会被当作新页。
+ */
+public class LruKCache<K, V> implements PageCache<K, V> {
+
+    //允许缓存的最大条目数量
+    private final int capacity;
+
+    //记录最近K次访问
+    private final int k;
+
+    //逻辑时钟，每次访问加一
+    private long clock;
+
+    //用于在访问时间相同时区分不同的条目
+    private long seq;
+
+    private final HashMap<K, Entry<K, V>> cachedEntries;
+
+    //按淘汰的先后顺序排列的条目，第一个就是下一个要淘汰的
+    private final TreeSet<Entry<K, V>> evictionOrder;
+
+    //已经被淘汰的页的访问历史，最多保留capacity个
+    private final LinkedHashMap<K, long[]> retainedHistory;
+
+    //淘汰时的建议
+    private EvictionAdvisor<? super V> advisor;
+
+    private static class Entry<K, V> {
+        final K key;
+        V value;
+        //history[0]是最近一次访问的时间，history[k-1]是倒数第k次，0表示没有这次访问
+        final long[] history;
+        final long id;
+
+        Entry(K key, V value, long[] history, long id) {
+            this.key = key;
+            this.value = value;
+            this.history = history;
+            this.id = id;
+        }
+    }
+
+    private static final Comparator<Entry<?, ?>> BACKWARD_K_DISTANCE = new Comparator<Entry<?, ?>>() {
+        @Override
+        public int compare(Entry<?, ?> a, Entry<?, ?> b) {
+            int k = a.history.length;
+            int c = Long.compare(a.history[k - 1], b.history[k - 1]);
+            if (c != 0) {
+                return c;
+            }
+            //倒数第k次访问时间相同(通常是都不足k次)时按LRU
+            c = Long.compare(a.history[0], b.history[0]);
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(a.id, b.id);
+        }
+    };
+
+    public LruKCache(int capacity, int k) {
+        if (capacity <= 0 || k <= 0) {
+            throw new IllegalArgumentException("capacity and k must be positive");
+        }
+        this.capacity = capacity;
+        this.k = k;
+        cachedEntries = new HashMap<K, Entry<K, V>>(capacity * 2);
+        evictionOrder = new TreeSet<Entry<K, V>>(BACKWARD_K_DISTANCE);
+        retainedHistory = new LinkedHashMap<K, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, long[]> eldest) {
+                return size() > LruKCache.this.capacity;
+            }
+        };
+    }
+
+    private void recordAccess(long[] history) {
+        System.arraycopy(history, 0, history, 1, history.length - 1);
+        history[0] = ++clock;
+    }
+
+    public synchronized V get(K key) {
+        Entry<K, V> e = cachedEntries.get(key);
+        if (e == null) {
+            return null;
+        }
+        //访问时间是排序的依据，必须先移出再放回
+        evictionOrder.remove(e);
+        recordAccess(e.history);
+        evictionOrder.add(e);
+        return e.value;
+    }
+
+    public synchronized V put(K key, V value) {
+        if (key == null | value == null) {//不允许插入null值
+            throw new IllegalArgumentException();
+        }
+        Entry<K, V> e = cachedEntries.get(key);
+        if (e != null) {
+            e.value = value;
+            return null;
+        }
+        V removed = null;
+        if (cachedEntries.size() >= capacity) {
+            Entry<K, V> victim = evictionOrder.first();
+            if (advisor != null) {
+                for (Entry<K, V> candidate : evictionOrder) {
+                    if (!advisor.avoidEviction(candidate.value)) {
+                        victim = candidate;
+                        break;
+                    }
+                }
+                advisor.beforeEviction(victim.value);
+            }
+            evictionOrder.remove(victim);
+            cachedEntries.remove(victim.key);
+            retainedHistory.put(victim.key, victim.history);
+            removed = victim.value;
+        }
+        long[] history = retainedHistory.remove(key);
+        if (history == null) {
+            history = new long[k];
+        }
+        recordAccess(history);
+        e = new Entry<K, V>(key, value, history, seq++);
+        cachedEntries.put(key, e);
+        evictionOrder.add(e);
+        return removed;
+    }
+
+    public synchronized V remove(K key) {
+        Entry<K, V> e = cachedEntries.remove(key);
+        if (e == null) {
+            return null;
+        }
+        evictionOrder.remove(e);
+        return e.value;
+    }
+
+    public synchronized void setEvictionAdvisor(EvictionAdvisor<? super V> advisor) {
+        this.advisor = advisor;
+    }
+
+    public synchronized boolean isCached(K key) {
+        return cachedEntries.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return cachedEntries.size();
+    }
+
+    /**
+     * 返回的是当前缓存的一个快照
+     *
+     * @return 当前缓存的所有value
+     */
+    public synchronized Iterator<V> iterator() {
+        ArrayList<V> values = new ArrayList<V>(cachedEntries.size());
+        for (Entry<K, V> e : cachedEntries.values()) {
+            values.add(e.value);
+        }
+        return values.iterator();
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+/**
+ * 一个算子(例如HybridHashJoin)可以用来在内存中保存tuple的字节数上限
+ * <p>
+ * 算子在内存中保存tuple之前先tryReserve，放不下时把一部分数据写到SpillFile中，
+ * 这样内存使用量有上限，和输入的大小无关。tuple占用的内存用estimateTupleBytes估计。
+ * 一个MemoryBudget只给一个算子使用，不是线程安全的。
+ */
+public class MemoryBudget {
+
+    /**
+     * 每个算子默认的内存上限，可以用系统属性simpledb.OperatorMemory(字节)修改
+     */
+    public static final long DEFAULT_OPERATOR_MEMORY = Long.getLong("simpledb.OperatorMemory", 64L << 20);
+
+    //Tuple对象、它的Field数组和在哈希表或列表中的引用的大概开销
+    private static final int TUPLE_OVERHEAD = 64;
+
+    private final long limit;
+
+    private long used;
+
+    //used曾经达到的最大值
+    private long peak;
+
+    public MemoryBudget(long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("memory limit must be positive");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * 估计一个tuple在内存中占用的字节数
+     */
+    public static long estimateTupleBytes(TupleDesc td) {
+        long bytes = TUPLE_OVERHEAD;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                //IntField对象
+                bytes += 16;
+            } else {
+                //StringField、String和字符数组，按最长的字符串算
+                bytes += 64 + Type.STRING_LEN;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 如果还剩下bytes字节就占用它们
+     *
+     * @return 是否占用成功
+     */
+    public boolean tryReserve(long bytes) {
+        if (used + bytes > limit) {
+            return false;
+        }
+        used += bytes;
+        peak = Math.max(peak, used);
+        return true;
+    }
+
+    public void release(long bytes) {
+        used = Math.max(0, used - bytes);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public long getPeak() {
+        return peak;
+    }
+}
@@ -85,6 +85,32 @@ public abstract class Operator implements DbIterator {
      */
     public abstract TupleDesc getTupleDesc();
 
+    /**
+     * Returns true if the tuples of this operator are known to come out
+     * sorted in ascending order on the given field. Operators that produce
+     * or preserve an order override this; the default is that the order is
+     * unknown.
+     *
+     * @param field the index of the field in this operator's TupleDesc
+     */
+    public boolean isSortedOn(int field) {
+        return false;
+    }
+
+    /**
+     * Returns true if the tuples of the iterator are known to come out sorted
+     * in ascending order on the given field. This is the interesting order of
+     * a plan, declared by each operator through {@link #isSortedOn(int)}.
+     * Iterators that are not operators, such as a SeqScan, have no known
+     * order.
+     *
+     * @param it    the iterator
+     * @param field the index of the field in the iterator's TupleDesc
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        return it instanceof Operator && ((Operator) it).isSortedOn(field);
+    }
+
     /**
      * @return The estimated cardinality of this operator.
      */
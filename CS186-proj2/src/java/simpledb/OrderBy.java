@@ -1,20 +1,24 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples are sorted with an {@link ExternalSort}: when they do not fit
+ * in the memory limit, sorted runs are written to temporary files and merged.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private long memoryBytes;
+    private transient ExternalSort sort;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -24,25 +28,68 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields. Tuples are
+     * ordered by the first field, ties are broken by the second, and so on.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc           for each field, true if the sort order is ascending.
+     * @param child         the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc           for each field, true if the sort order is ascending.
+     * @param child         the tuples to sort.
+     * @param memoryBytes   the memory the sort may use before it writes runs
+     *                      to disk.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, long memoryBytes) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort direction per ORDER BY field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.memoryBytes = memoryBytes;
     }
 
+    /**
+     * @return true if the sort order of the first field is ascending.
+     */
     public boolean isASC() {
-        return this.asc;
+        return this.ascs[0];
     }
 
+    /**
+     * @return the first field to which the sort is applied.
+     */
     public int getOrderByField() {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
 
     public String getOrderFieldName() {
         return this.orderByFieldName;
     }
 
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -50,21 +97,42 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sort = new ExternalSort(td, new TupleComparator(td, orderByFields, ascs), memoryBytes);
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            sort.finish();
+        } catch (IOException e) {
+            sort.close();
+            throw new DbException("sort failed: " + e.getMessage());
+        }
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        try {
+            sort.rewind();
+        } catch (IOException e) {
+            throw new DbException("sort failed: " + e.getMessage());
+        }
+        //丢掉hasNext()已经预读的tuple
+        super.close();
+        super.open();
+    }
+
+    /**
+     * @return the number of sorted runs the last open() wrote to disk
+     */
+    public int getRunCount() {
+        return sort == null ? 0 : sort.getRunCount();
     }
 
     /**
@@ -76,10 +144,19 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        try {
+            if (sort != null && sort.hasNext()) {
+                return sort.next();
+            } else
+                return null;
+        } catch (IOException e) {
+            throw new DbException("sort failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isSortedOn(int field) {
+        return isASC() && getOrderByField() == field;
     }
 
     @Override
@@ -93,25 +170,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-
-}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * BufferPool用来缓存页的接口，不同的实现对应不同的替换策略
+ * (见{@link ReplacementPolicy})。
+ * <p>
+ * 所有实现都必须可以被多个线程同时调用。
+ */
+public interface PageCache<K, V> {
+
+    /**
+     * @return 返回存在与缓存中的条目，不存在则返回null
+     */
+    public V get(K key);
+
+    /**
+     * 插入一个条目，如果缓存已满则按替换策略淘汰一个条目
+     *
+     * @return 被删除出缓存的条目，如果没有，返回null
+     */
+    public V put(K key, V value);
+
+    /**
+     * 设置淘汰时参考的建议，null表示完全按替换策略淘汰
+     */
+    public void setEvictionAdvisor(EvictionAdvisor<? super V> advisor);
+
+    /**
+     * 从缓存中删除一个条目
+     *
+     * @return 被删除的条目，不存在则返回null
+     */
+    public V remove(K key);
+
+    public boolean isCached(K key);
+
+    /**
+     * @return 当前缓存的条目数量
+     */
+    public int size();
+
+    /**
+     * @return 当前缓存的所有value
+     */
+    public Iterator<V> iterator();
+}
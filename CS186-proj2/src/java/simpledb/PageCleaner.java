@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool的后台写线程
+ * <p>
+ * 定期检查缓存中脏页的数量，当干净的帧(包括空闲的帧)少于目标比例时，
+ * 把脏页按(表,页号)排序后成批写回磁盘。这样淘汰时基本都能找到干净的页，
+ * 读取新页的线程不需要等待写盘。
+ */
+public class PageCleaner extends Thread {
+
+    //按表和页号排序，同一个文件中的页按顺序写
+    private static final Comparator<Page> PAGE_ORDER = new Comparator<Page>() {
+        @Override
+        public int compare(Page a, Page b) {
+            PageId pa = a.getId();
+            PageId pb = b.getId();
+            int c = Integer.compare(pa.getTableId(), pb.getTableId());
+            if (c != 0) {
+                return c;
+            }
+            return Integer.compare(pa.pageNumber(), pb.pageNumber());
+        }
+    };
+
+    private final BufferPool pool;
+
+    //希望保持干净的帧占总帧数的比例
+    private final double cleanFraction;
+
+    //每一批最少写多少页
+    private final int batchSize;
+
+    //两次检查之间的间隔
+    private final long intervalMillis;
+
+    private volatile boolean running = true;
+
+    //被唤醒的请求，避免在两次检查之间丢失wakeUp()
+    private boolean wakeUpRequested;
+
+    private final AtomicLong pagesWritten = new AtomicLong();
+
+    public PageCleaner(BufferPool pool, double cleanFraction, int batchSize, long intervalMillis) {
+        super("simpledb-page-cleaner");
+        if (cleanFraction <= 0 || cleanFraction > 1) {
+            throw new IllegalArgumentException("cleanFraction must be in (0, 1]");
+        }
+        this.pool = pool;
+        this.cleanFraction = cleanFraction;
+        this.batchSize = Math.max(1, batchSize);
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                if (!wakeUpRequested) {
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                wakeUpRequested = false;
+            }
+            if (running) {
+                cleanOnce();
+            }
+        }
+    }
+
+    /**
+     * 立即检查一次，不用等到下一个间隔
+     */
+    public synchronized void wakeUp() {
+        wakeUpRequested = true;
+        notify();
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        //不能用interrupt()，中断正在读写FileChannel的线程会关闭这个FileChannel
+        notify();
+    }
+
+    /**
+     * @return 后台写回的页的数量
+     */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /**
+     * 如果干净的帧少于目标比例，写回一批脏页
+     *
+     * @return 这一次写回的页的数量
+     */
+    public int cleanOnce() {
+        int capacity = pool.PAGES_NUM;
+        int maxDirty = capacity - (int) Math.ceil(cleanFraction * capacity);
+        ArrayList<Page> dirtyPages = new ArrayList<Page>();
+        Iterator<Page> it = pool.cachedPages();
+        while (it.hasNext()) {
+            Page page = it.next();
+            if (page.isDirty() != null) {
+                dirtyPages.add(page);
+            }
+        }
+        if (dirtyPages.size() <= maxDirty) {
+            return 0;
+        }
+        //写到满足目标为止，但每次至少写一批，减少被唤醒的次数
+        int toWrite = Math.min(dirtyPages.size(), Math.max(dirtyPages.size() - maxDirty, batchSize));
+        Collections.sort(dirtyPages, PAGE_ORDER);
+        int written = 0;
+        //按表排序，所以写过的表也是有序的
+        ArrayList<Integer> tables = new ArrayList<Integer>();
+        for (int i = 0; i < toWrite; i++) {
+            try {
+                Page page = dirtyPages.get(i);
+                if (pool.cleanPage(page)) {
+                    written++;
+                    int tableId = page.getId().getTableId();
+                    if (tables.isEmpty() || tables.get(tables.size() - 1) != tableId) {
+                        tables.add(tableId);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                //页所在的表可能已经从Catalog中删除了(例如测试中重置了Database)
+            }
+        }
+        //每一批写完之后写一次.fsm，而不是每写一个页写一次
+        try {
+            pool.flushFreeSpaceMaps(tables);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            //同上，表可能已经被删除了
+        }
+        pagesWritten.addAndGet(written);
+        return written;
+    }
+}
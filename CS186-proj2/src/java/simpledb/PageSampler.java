@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 按页对HeapFile抽样：用蓄水池抽样(Algorithm R)从所有页中等概率地选出若干页，
+ * 被选中的页中的所有tuple就是样本。按页抽样只需要读样本所在的页，
+ * 比按tuple抽样少读很多页，代价是同一页中的tuple可能彼此相关。
+ */
+public class PageSampler {
+
+    /**
+     * ANALYZE默认抽样的页数
+     */
+    public static final int DEFAULT_SAMPLE_PAGES = 512;
+
+    private final Random random;
+
+    public PageSampler(Random random) {
+        this.random = random;
+    }
+
+    public PageSampler() {
+        this(new Random());
+    }
+
+    /**
+     * Chooses k of the pages of a file, each set of k pages with the same
+     * probability.
+     *
+     * @param numPages the number of pages of the file
+     * @param k        the number of pages to choose
+     * @return the chosen page numbers in ascending order; all pages if
+     * k >= numPages
+     */
+    public int[] samplePages(int numPages, int k) {
+        if (k >= numPages) {
+            int[] all = new int[numPages];
+            for (int i = 0; i < numPages; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int[] reservoir = new int[k];
+        for (int i = 0; i < k; i++) {
+            reservoir[i] = i;
+        }
+        //第i页以k / (i + 1)的概率替换蓄水池中随机的一页
+        for (int i = k; i < numPages; i++) {
+            int j = random.nextInt(i + 1);
+            if (j < k) {
+                reservoir[j] = i;
+            }
+        }
+        //按页号顺序读
+        Arrays.sort(reservoir);
+        return reservoir;
+    }
+
+    /**
+     * @see #samplePages(int, int)
+     */
+    public int[] samplePages(HeapFile file, int k) {
+        return samplePages(file.numPages(), k);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多线程的哈希聚合，Aggregate的输入是HeapFile的SeqScan(上面可以有Filter)时使用
+ * <p>
+ * HeapFile的页由ParallelScan分给工作线程。
+ * 每个线程有自己的HashAggregator，按Filter的谓词过滤后聚合，不需要任何同步；
+ * 内存上限平分给各个线程。所有页都处理完后把各个线程的部分结果合并到一个HashAggregator中，
+ * AVG的和与个数分别合并，最后再相除。
+ */
+public class ParallelAggregator {
+
+    /**
+     * 默认的线程数，可以用系统属性simpledb.AggregateThreads修改
+     */
+    public static final int DEFAULT_PARALLELISM = Integer.getInteger("simpledb.AggregateThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 少于这么多页的表由一个线程聚合，启动线程和合并的开销不值得
+     */
+    public static final int MIN_PARALLEL_PAGES = 64;
+
+    /**
+     * @return the SeqScan under a (possibly empty) chain of Filters, if it
+     * scans a HeapFile; null otherwise
+     */
+    public static SeqScan scanOf(DbIterator child) {
+        while (child instanceof Filter) {
+            child = ((Filter) child).getChildren()[0];
+        }
+        if (child instanceof SeqScan
+                && Database.getCatalog().getDbFile(((SeqScan) child).getTableId()) instanceof HeapFile) {
+            return (SeqScan) child;
+        }
+        return null;
+    }
+
+    /**
+     * @return the predicates of the Filters above the scan, in any order
+     */
+    public static List<Predicate> predicatesOf(DbIterator child) {
+        ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+        while (child instanceof Filter) {
+            predicates.add(((Filter) child).getPredicate());
+            child = ((Filter) child).getChildren()[0];
+        }
+        return predicates;
+    }
+
+    /**
+     * Aggregates the tuples of a HeapFile that satisfy all predicates using
+     * several threads.
+     *
+     * @param tid         the transaction reading the file
+     * @param file        the file to aggregate
+     * @param predicates  the predicates a tuple must satisfy to be aggregated
+     * @param groupFields the indexes of the group-by fields, empty if there is
+     *                    no grouping
+     * @param aggFields   the indexes of the aggregated fields
+     * @param ops         the aggregate operator for each aggregated field
+     * @param td          the TupleDesc of the result tuples, see {@link HashAggregator}
+     * @param memoryBytes the memory shared by all threads
+     * @param parallelism the maximum number of threads
+     * @return an aggregator holding the merged result; the caller closes it
+     */
+    public static HashAggregator aggregate(TransactionId tid, HeapFile file,
+                                           final List<Predicate> predicates, final int[] groupFields,
+                                           final int[] aggFields, final Aggregator.Op[] ops,
+                                           final TupleDesc td, long memoryBytes, int parallelism)
+            throws DbException, TransactionAbortedException {
+        //小文件用不了这么多线程，多余的线程只会分走内存
+        int threads = ParallelScan.threadsFor(file.numPages(), parallelism);
+        final long workerMemory = memoryBytes / threads;
+        ArrayList<HashAggregator> partials = new ArrayList<HashAggregator>();
+        ArrayList<ParallelScan.Consumer> workers = new ArrayList<ParallelScan.Consumer>();
+        for (int w = 0; w < threads; w++) {
+            final HashAggregator partial = new HashAggregator(groupFields, aggFields, ops,
+                    file.getTupleDesc(), td, workerMemory);
+            partials.add(partial);
+            workers.add(new ParallelScan.Consumer() {
+                @Override
+                public void accept(Tuple t) throws IOException {
+                    if (satisfies(predicates, t)) {
+                        partial.add(t);
+                    }
+                }
+            });
+        }
+
+        HashAggregator result = new HashAggregator(groupFields, aggFields, ops,
+                file.getTupleDesc(), td, memoryBytes);
+        boolean done = false;
+        try {
+            ParallelScan.scan(tid, file, workers);
+            result.merge(partials);
+            done = true;
+            return result;
+        } catch (IOException e) {
+            throw new DbException("could not merge partial aggregates: " + e.getMessage());
+        } finally {
+            for (HashAggregator partial : partials) {
+                partial.close();
+            }
+            if (!done) {
+                result.close();
+            }
+        }
+    }
+
+    private static boolean satisfies(List<Predicate> predicates, Tuple t) {
+        for (Predicate p : predicates) {
+            if (!p.filter(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
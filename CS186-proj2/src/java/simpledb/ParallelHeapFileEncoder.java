@@ -0,0 +1,445 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 多线程版本的HeapFileEncoder.convert，对相同的输入生成相同的文件
+ * <p>
+ * 输入文件按行的边界切成若干块，分两遍在ForkJoinPool中处理：
+ * 第一遍并行统计每块的行数，由此算出每块的第一行在文件中的位置，也就知道了它落在哪个页的哪个slot；
+ * 第二遍并行把每块编码成页，直接写到输出文件中的最终位置。
+ * 一个页的行可能来自相邻的两块，这样的页由两块各自编码一部分，没有用到的字节都是0，
+ * 最后按位或起来就是完整的页。
+ * <p>
+ * 输入按字节处理，和convert一样只支持单字节的字符。
+ * 和convert不同的是，不合法的整数或者字段数量不对的行会抛出IOException，
+ * 最后一行没有换行符时也会被编码。
+ */
+public class ParallelHeapFileEncoder {
+
+    //默认每块的字节数
+    static final int DEFAULT_CHUNK_BYTES = 8 << 20;
+
+    //攒够多少页写一次
+    private static final int WRITE_PAGES = 64;
+
+    /**
+     * Convert the specified input text file into a binary page file, using
+     * as many threads as there are available processors. The output is the
+     * same as that of {@link HeapFileEncoder#convert(File, File, int, int, Type[], char)}.
+     *
+     * @throws IOException if the input/output file can't be opened or a
+     *                     malformed input line is encountered
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator)
+            throws IOException {
+        convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism the number of threads encoding pages
+     * @see #convert(File, File, int, int, Type[], char)
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator,
+                               int parallelism) throws IOException {
+        convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+                parallelism, DEFAULT_CHUNK_BYTES);
+    }
+
+    static void convert(File inFile, File outFile, int npagebytes,
+                        int numFields, Type[] typeAr, char fieldSeparator,
+                        int parallelism, int chunkBytes) throws IOException {
+        Layout layout = new Layout(npagebytes, numFields, typeAr, (byte) fieldSeparator);
+        FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+        FileChannel out = null;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            Chunk[] chunks = split(in, chunkBytes);
+
+            //第一遍：每块的行数
+            pool.invoke(new ChunkAction(layout, in, out, chunks, 0, chunks.length, false));
+            long rows = 0;
+            for (Chunk chunk : chunks) {
+                chunk.firstRow = rows;
+                rows += chunk.rows;
+            }
+
+            //第二遍：编码并写出完全属于一块的页
+            pool.invoke(new ChunkAction(layout, in, out, chunks, 0, chunks.length, true));
+
+            //拼起由两块共同组成的页
+            Map<Long, byte[]> shared = new HashMap<Long, byte[]>();
+            for (Chunk chunk : chunks) {
+                for (Map.Entry<Long, byte[]> e : chunk.partialPages.entrySet()) {
+                    byte[] page = shared.get(e.getKey());
+                    if (page == null) {
+                        shared.put(e.getKey(), e.getValue());
+                    } else {
+                        byte[] other = e.getValue();
+                        for (int i = 0; i < page.length; i++) {
+                            page[i] |= other[i];
+                        }
+                    }
+                }
+            }
+            //和convert一样，空文件也有一个空页
+            if (rows == 0) {
+                shared.put(0L, new byte[npagebytes]);
+            }
+            for (Map.Entry<Long, byte[]> e : shared.entrySet()) {
+                writeFully(out, ByteBuffer.wrap(e.getValue()), e.getKey() * npagebytes);
+            }
+        } catch (RuntimeException e) {
+            //ForkJoinPool可能把任务抛出的异常再包一层
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * 把输入切成大约chunkBytes大小的块，每块都在换行符之后结束(最后一块除外)
+     */
+    private static Chunk[] split(FileChannel in, int chunkBytes) throws IOException {
+        long size = in.size();
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkBytes);
+            //往后找到下一个换行符
+            while (end < size) {
+                probe.clear();
+                int n = in.read(probe, end);
+                int newline = -1;
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += Math.max(n, 0);
+            }
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks.toArray(new Chunk[chunks.size()]);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * 输入中的一块
+     */
+    private static class Chunk {
+
+        final long start;
+        final long end;
+
+        //这一块的行数和第一行在整个文件中的序号
+        long rows;
+        long firstRow;
+
+        //第二遍之后，这一块只写了一部分的页(页号到页的数据)
+        final Map<Long, byte[]> partialPages = new HashMap<Long, byte[]>();
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * 页的格式，和HeapFileEncoder中的计算相同
+     */
+    private static class Layout {
+
+        final int pageBytes;
+        final Type[] types;
+        final byte separator;
+        final int tupleBytes;
+        final int slots;
+        final int headerBytes;
+
+        Layout(int pageBytes, int numFields, Type[] typeAr, byte separator) {
+            this.pageBytes = pageBytes;
+            this.types = new Type[numFields];
+            System.arraycopy(typeAr, 0, types, 0, numFields);
+            this.separator = separator;
+            int bytes = 0;
+            for (Type t : types) {
+                bytes += t.getLen();
+            }
+            this.tupleBytes = bytes;
+            this.slots = (pageBytes * 8) / (tupleBytes * 8 + 1);
+            this.headerBytes = (slots + 7) / 8;
+        }
+    }
+
+    /**
+     * 把一段块分成两半并行处理，直到只剩一块
+     */
+    private static class ChunkAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Layout layout;
+        private final FileChannel in;
+        private final FileChannel out;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        //false表示第一遍(只统计行数)，true表示第二遍
+        private final boolean encode;
+
+        ChunkAction(Layout layout, FileChannel in, FileChannel out, Chunk[] chunks,
+                    int from, int to, boolean encode) {
+            this.layout = layout;
+            this.in = in;
+            this.out = out;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.encode = encode;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkAction(layout, in, out, chunks, from, mid, encode),
+                        new ChunkAction(layout, in, out, chunks, mid, to, encode));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            Chunk chunk = chunks[from];
+            try {
+                byte[] data = new byte[(int) (chunk.end - chunk.start)];
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    if (in.read(buf, chunk.start + buf.position()) < 0) {
+                        throw new IOException("input file shrank while encoding");
+                    }
+                }
+                if (encode) {
+                    new ChunkEncoder(layout, out, chunk).encode(data);
+                } else {
+                    chunk.rows = countRows(data);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 和编码时一样的规则统计行数：除了'\r'之外没有其他字符的行被跳过
+     */
+    private static long countRows(byte[] data) {
+        long rows = 0;
+        boolean empty = true;
+        for (byte b : data) {
+            if (b == '\n') {
+                if (!empty) {
+                    rows++;
+                }
+                empty = true;
+            } else if (b != '\r') {
+                empty = false;
+            }
+        }
+        return empty ? rows : rows + 1;
+    }
+
+    /**
+     * 把一块编码成页
+     */
+    private static class ChunkEncoder {
+
+        private final Layout layout;
+        private final FileChannel out;
+        private final Chunk chunk;
+
+        //这一块的行的范围[firstRow, endRow)
+        private final long endRow;
+
+        //攒着的页，第一个页的页号是batchFirstPage
+        private final byte[] batch;
+        private final ByteBuffer batchBuf;
+        private long batchFirstPage;
+
+        //batch中用到的页数
+        private int batchPages;
+
+        private long row;
+
+        ChunkEncoder(Layout layout, FileChannel out, Chunk chunk) {
+            this.layout = layout;
+            this.out = out;
+            this.chunk = chunk;
+            this.endRow = chunk.firstRow + chunk.rows;
+            this.batch = new byte[WRITE_PAGES * layout.pageBytes];
+            this.batchBuf = ByteBuffer.wrap(batch);
+            this.row = chunk.firstRow;
+            this.batchFirstPage = row / layout.slots;
+        }
+
+        void encode(byte[] data) throws IOException {
+            int lineStart = 0;
+            for (int i = 0; i <= data.length; i++) {
+                if (i < data.length && data[i] != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                while (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd > lineStart) {
+                    encodeRow(data, lineStart, lineEnd);
+                }
+                lineStart = i + 1;
+            }
+            flush();
+        }
+
+        private void encodeRow(byte[] data, int lineStart, int lineEnd) throws IOException {
+            long pageNo = row / layout.slots;
+            if (pageNo >= batchFirstPage + WRITE_PAGES) {
+                flush();
+                batchFirstPage = pageNo;
+            }
+            int pageOffset = (int) (pageNo - batchFirstPage) * layout.pageBytes;
+            batchPages = (int) (pageNo - batchFirstPage) + 1;
+            int slot = (int) (row % layout.slots);
+            batch[pageOffset + slot / 8] |= (byte) (1 << (slot % 8));
+
+            int pos = pageOffset + layout.headerBytes + slot * layout.tupleBytes;
+            int start = lineStart;
+            Type[] types = layout.types;
+            for (int f = 0; f < types.length; f++) {
+                int stop = start;
+                while (stop < lineEnd && data[stop] != layout.separator) {
+                    stop++;
+                }
+                if (f == types.length - 1 ? stop != lineEnd : stop == lineEnd) {
+                    throw new IOException("BAD LINE : " + new String(data, lineStart, lineEnd - lineStart, "ISO-8859-1"));
+                }
+                if (types[f] == Type.INT_TYPE) {
+                    batchBuf.putInt(pos, parseInt(data, start, stop, lineStart, lineEnd));
+                } else {
+                    //去掉两边的空白，超过Type.STRING_LEN的部分截掉
+                    int from = start;
+                    int to = stop;
+                    while (from < to && (data[from] & 0xff) <= ' ') {
+                        from++;
+                    }
+                    while (to > from && (data[to - 1] & 0xff) <= ' ') {
+                        to--;
+                    }
+                    int len = Math.min(to - from, Type.STRING_LEN);
+                    batchBuf.putInt(pos, len);
+                    System.arraycopy(data, from, batch, pos + 4, len);
+                }
+                pos += types[f].getLen();
+                start = stop + 1;
+            }
+            row++;
+        }
+
+        /**
+         * 写出batch中完全属于这一块的页，其余的页留给最后拼接
+         */
+        private void flush() throws IOException {
+            if (batchPages == 0) {
+                return;
+            }
+            int firstOwned = -1;
+            int owned = 0;
+            for (int i = 0; i < batchPages; i++) {
+                long pageNo = batchFirstPage + i;
+                boolean whole = pageNo * layout.slots >= chunk.firstRow
+                        && (pageNo + 1) * layout.slots <= endRow;
+                if (whole) {
+                    //完全属于这一块的页是连续的
+                    if (firstOwned < 0) {
+                        firstOwned = i;
+                    }
+                    owned++;
+                } else {
+                    byte[] page = new byte[layout.pageBytes];
+                    System.arraycopy(batch, i * layout.pageBytes, page, 0, layout.pageBytes);
+                    chunk.partialPages.put(pageNo, page);
+                }
+            }
+            if (owned > 0) {
+                writeFully(out, ByteBuffer.wrap(batch, firstOwned * layout.pageBytes, owned * layout.pageBytes),
+                        (batchFirstPage + firstOwned) * layout.pageBytes);
+            }
+            Arrays.fill(batch, 0, batchPages * layout.pageBytes, (byte) 0);
+            batchFirstPage += batchPages;
+            batchPages = 0;
+        }
+
+        private static int parseInt(byte[] data, int start, int stop, int lineStart, int lineEnd) throws IOException {
+            while (start < stop && (data[start] & 0xff) <= ' ') {
+                start++;
+            }
+            while (stop > start && (data[stop - 1] & 0xff) <= ' ') {
+                stop--;
+            }
+            boolean negative = false;
+            if (start < stop && (data[start] == '-' || data[start] == '+')) {
+                negative = data[start] == '-';
+                start++;
+            }
+            //按负数累加，这样Integer.MIN_VALUE也能表示
+            long value = 0;
+            boolean bad = start == stop || stop - start > 10;
+            for (int i = start; i < stop && !bad; i++) {
+                int digit = data[i] - '0';
+                bad = digit < 0 || digit > 9;
+                value = value * 10 - digit;
+            }
+            if (bad || value < Integer.MIN_VALUE || (!negative && value == Integer.MIN_VALUE)) {
+                throw new IOException("BAD LINE : " + new String(data, lineStart, lineEnd - lineStart, "ISO-8859-1"));
+            }
+            return (int) (negative ? value : -value);
+        }
+    }
+}
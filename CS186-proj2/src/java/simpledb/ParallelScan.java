@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用多个线程读一个HeapFile的所有tuple，ParallelAggregator和TableStats使用
+ * <p>
+ * HeapFile的页按CHUNK_PAGES页一段分给线程，线程做完一段再取下一段，这样各个线程的工作量差不多。
+ * 每个线程有自己的Consumer，直接从BufferPool取页，把页中的tuple交给它，不需要任何同步。
+ * 哪个tuple由哪个线程处理是不确定的，所以Consumer的结果应该和tuple的顺序无关，最后由调用者合并。
+ */
+public class ParallelScan {
+
+    //每次分给一个线程的页数
+    static final int CHUNK_PAGES = 16;
+
+    /**
+     * Receives the tuples read by one thread.
+     */
+    public interface Consumer {
+        void accept(Tuple t) throws IOException;
+    }
+
+    /**
+     * @return the number of threads worth using for a file with the given
+     * number of pages: at most parallelism, and at most one per chunk of
+     * pages
+     */
+    public static int threadsFor(int numPages, int parallelism) {
+        return Math.max(1, Math.min(parallelism, numPages / CHUNK_PAGES));
+    }
+
+    /**
+     * Reads every tuple of the file, using one thread per consumer. Returns
+     * when all pages have been read.
+     *
+     * @param tid       the transaction reading the file
+     * @param file      the file to read
+     * @param consumers one consumer per thread
+     */
+    public static void scan(TransactionId tid, HeapFile file, List<? extends Consumer> consumers)
+            throws DbException, TransactionAbortedException {
+        scan(tid, file, null, consumers);
+    }
+
+    /**
+     * Reads every tuple on the given pages of the file, using one thread
+     * per consumer.
+     *
+     * @param pages     the page numbers to read, in ascending order, or null
+     *                  for all pages
+     * @param consumers one consumer per thread
+     */
+    public static void scan(final TransactionId tid, final HeapFile file, final int[] pages,
+                            List<? extends Consumer> consumers)
+            throws DbException, TransactionAbortedException {
+        final int numPages = pages == null ? file.numPages() : pages.length;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        ArrayList<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+        for (final Consumer consumer : consumers) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int start;
+                    while ((start = nextChunk.getAndIncrement() * CHUNK_PAGES) < numPages) {
+                        int end = Math.min(numPages, start + CHUNK_PAGES);
+                        for (int i = start; i < end; i++) {
+                            int p = pages == null ? i : pages[i];
+                            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                                    new HeapPageId(file.getId(), p), Permissions.READ_ONLY);
+                            Iterator<Tuple> it = page.iterator();
+                            while (it.hasNext()) {
+                                consumer.accept(it.next());
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            if (workers.size() == 1) {
+                //只有一个线程时直接在当前线程读
+                workers.get(0).call();
+                return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(workers.size());
+            try {
+                for (Future<Void> f : pool.invokeAll(workers)) {
+                    f.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("parallel scan interrupted");
+        } catch (Exception e) {
+            rethrow(e);
+        }
+    }
+
+    private static void rethrow(Throwable cause) throws DbException, TransactionAbortedException {
+        if (cause instanceof DbException) {
+            throw (DbException) cause;
+        }
+        if (cause instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new DbException("parallel scan failed: " + cause);
+    }
+}
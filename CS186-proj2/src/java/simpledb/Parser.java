@@ -5,6 +5,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -183,23 +185,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -208,8 +206,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -219,20 +217,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                        + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                        + si.getColumn()) || groupByFields.contains(si
                         .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -242,30 +238,31 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        //所有聚合在一个Aggregate中一起计算，分组依据是全部GROUP BY字段的组合
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -280,6 +277,9 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (queryLimit >= 0) {
+            lp.setLimit(queryLimit, queryOffset);
+        }
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -493,12 +493,171 @@ public class Parser {
         return curtrans;
     }
 
+    // LOAD 'file' INTO table [DELIMITER 'c' | BINARY]，Zql不认识这种语句，在交给ZqlParser之前按文本识别
+    private static final Pattern LOAD_STATEMENT = Pattern.compile(
+            "\\s*load\\s+'([^']*)'\\s+into\\s+(\\w+)(?:\\s+delimiter\\s+'(.)'|\\s+(binary))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * If s is a LOAD statement, bulk load the file into the table with
+     * BulkLoader. The load bypasses the buffer pool and is not part of any
+     * transaction.
+     *
+     * @return true if s was a LOAD statement
+     */
+    public boolean handleLoadStatement(String s) throws simpledb.ParsingException,
+            DbException, IOException {
+        Matcher m = LOAD_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            return false;
+        }
+        File input = new File(m.group(1));
+        String tableName = m.group(2);
+        DbFile table;
+        try {
+            table = Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(tableName));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + tableName);
+        }
+        if (!(table instanceof HeapFile)) {
+            throw new simpledb.ParsingException("Table " + tableName
+                    + " is not a heap file");
+        }
+        BulkLoader loader = new BulkLoader((HeapFile) table);
+        try {
+            if (m.group(4) != null) {
+                loader.loadBinary(input);
+            } else {
+                loader.loadCsv(input, m.group(3) == null ? ',' : m.group(3).charAt(0));
+            }
+        } finally {
+            //出错之前导入的行也要写出去，统计信息和空闲空间映射要和文件一致
+            loader.finish();
+        }
+        System.out.println("Loaded " + loader.getRowsLoaded() + " rows into "
+                + tableName + ".");
+        return true;
+    }
+
+    // ANALYZE [table] [SAMPLE n]，按抽样重新计算一个表或所有表的统计信息
+    private static final Pattern ANALYZE_STATEMENT = Pattern.compile(
+            "\\s*analyze(?:\\s+(?!sample\\b)(\\w+))?(?:\\s+sample\\s+(\\d+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * If s is an ANALYZE statement, recompute the statistics of the named
+     * table, or of all tables, from a sample of n pages (by default
+     * PageSampler.DEFAULT_SAMPLE_PAGES).
+     *
+     * @return true if s was an ANALYZE statement
+     */
+    public boolean handleAnalyzeStatement(String s) throws simpledb.ParsingException {
+        Matcher m = ANALYZE_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            return false;
+        }
+        int samplePages = PageSampler.DEFAULT_SAMPLE_PAGES;
+        if (m.group(2) != null) {
+            try {
+                samplePages = Integer.parseInt(m.group(2));
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException("SAMPLE out of range");
+            }
+            if (samplePages < 1) {
+                throw new simpledb.ParsingException("SAMPLE must be at least 1 page");
+            }
+        }
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
+        if (m.group(1) != null) {
+            try {
+                tableIds.add(Database.getCatalog().getTableId(m.group(1)));
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown table " + m.group(1));
+            }
+        } else {
+            Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+            while (it.hasNext()) {
+                tableIds.add(it.next());
+            }
+        }
+        for (int tableid : tableIds) {
+            String tableName = Database.getCatalog().getTableName(tableid);
+            TableStats stats = TableStats.analyze(tableid, TableStats.IOCOSTPERPAGE, samplePages);
+            TableStats.setTableStats(tableName, stats);
+            System.out.println("Analyzed " + tableName + ": about "
+                    + stats.estimateTableCardinality(1.0) + " rows"
+                    + (stats.isSampled() ? " (sampled)." : "."));
+        }
+        TableStats.saveStatistics();
+        return true;
+    }
+
+    // SELECT ... LIMIT n [OFFSET m]，Zql不认识LIMIT，交给ZqlParser之前从语句末尾去掉
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(.*\\S)\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern SELECT_STATEMENT = Pattern.compile("\\s*select\\b.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    //当前语句的LIMIT和OFFSET，queryLimit为-1表示没有LIMIT
+    private int queryLimit = -1;
+    private int queryOffset = 0;
+
+    /**
+     * Removes a trailing LIMIT n [OFFSET m] clause from a statement and
+     * remembers it for the query that is handled next.
+     *
+     * @return the statement without the LIMIT clause
+     * @throws simpledb.ParsingException if the statement with the LIMIT
+     *                                   clause is not a SELECT
+     */
+    String stripLimitClause(String s) throws simpledb.ParsingException {
+        queryLimit = -1;
+        queryOffset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches()) {
+            return s;
+        }
+        //INSERT ... SELECT ... LIMIT和DELETE ... LIMIT不能悄悄忽略LIMIT
+        if (!SELECT_STATEMENT.matcher(m.group(1)).matches()) {
+            throw new simpledb.ParsingException("LIMIT is only supported on SELECT queries");
+        }
+        try {
+            queryLimit = Integer.parseInt(m.group(2));
+            queryOffset = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT out of range");
+        }
+        return m.group(1) + ";";
+    }
+
     public void processNextStatement(String s) {
+        try {
+            if (handleLoadStatement(s) || handleAnalyzeStatement(s))
+                return;
+            s = stripLimitClause(s);
+        } catch (simpledb.ParsingException e) {
+            System.out
+                    .println("Invalid SQL expression: \n \t" + e.getMessage());
+            return;
+        } catch (DbException e) {
+            e.printStackTrace();
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
+        } finally {
+            //LIMIT只属于这一条语句
+            queryLimit = -1;
+            queryOffset = 0;
         }
     }
 
@@ -582,7 +741,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = {"select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into"};
+            "insert", "delete", "values", "into", "load", "delimiter", "limit", "offset",
+            "analyze", "sample"};
 
     public static void main(String argv[]) throws IOException {
 
@@ -599,15 +759,52 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
 
     protected void shutdown() {
+        //下次启动时不用重新扫描
+        TableStats.saveStatistics();
         System.out.println("Bye");
     }
 
     protected boolean interactive = true;
 
+    /**
+     * 执行文件中的所有语句。和交互模式一样按';'分开，每个语句都经过processNextStatement(String)，
+     * 所以LOAD、ANALYZE和LIMIT在文件中也能用
+     */
+    protected void processQueryFile(File queryFile) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(queryFile));
+        try {
+            StringBuilder buffer = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int split;
+                while ((split = line.indexOf(';')) >= 0) {
+                    buffer.append(line.substring(0, split));
+                    String cmd = buffer.toString().trim();
+                    if (cmd.length() > 0) {
+                        processNextStatement(cmd + ";");
+                    }
+                    line = line.substring(split + 1);
+                    buffer = new StringBuilder();
+                }
+                if (line.length() > 0) {
+                    buffer.append(line);
+                    buffer.append("\n");
+                }
+            }
+            //最后一个语句可以没有';'
+            String cmd = buffer.toString().trim();
+            if (cmd.length() > 0) {
+                processNextStatement(cmd + ";");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        TableStats.loadStatistics(TableStats.statsFileFor(argv[0]));
 
         String queryFile = null;
 
@@ -636,7 +833,7 @@ public class Parser {
                 // curtrans = new Transaction();
                 // curtrans.start();
                 long startTime = System.currentTimeMillis();
-                processNextStatement(new FileInputStream(new File(queryFile)));
+                processQueryFile(new File(queryFile));
                 long time = System.currentTimeMillis() - startTime;
                 System.out.printf("----------------\n%.2f seconds\n\n",
                         ((double) time / 1000.0));
@@ -668,7 +865,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -677,8 +873,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -77,6 +77,11 @@ public class Project extends Operator {
         return null;
     }
 
+    @Override
+    public boolean isSortedOn(int field) {
+        return isSortedOn(child, outFieldIds.get(field));
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[]{this.child};
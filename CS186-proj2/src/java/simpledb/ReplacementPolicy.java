@@ -0,0 +1,68 @@
+package simpledb;
+
+/**
+ * BufferPool可以选择的页替换策略
+ * <p>
+ * 可以在构造BufferPool时指定，或者通过系统属性simpledb.ReplacementPolicy
+ * 指定Database默认使用的策略，例如 -Dsimpledb.ReplacementPolicy=ARC
+ */
+public enum ReplacementPolicy {
+    /**
+     * 最近最少使用，一次全表扫描就会把热页全部挤出去
+     */
+    LRU {
+        @Override
+        public <K, V> PageCache<K, V> newCache(int capacity) {
+            return new LruCache<K, V>(capacity);
+        }
+    },
+    /**
+     * 近似LRU，命中时不需要加锁，是默认的策略
+     */
+    CLOCK {
+        @Override
+        public <K, V> PageCache<K, V> newCache(int capacity) {
+            return new ClockCache<K, V>(capacity);
+        }
+    },
+    /**
+     * 2Q，只被访问过一次的页不会进入主队列，能抵抗扫描
+     */
+    TWO_Q {
+        @Override
+        public <K, V> PageCache<K, V> newCache(int capacity) {
+            return new TwoQueueCache<K, V>(capacity);
+        }
+    },
+    /**
+     * LRU-2，按倒数第二次访问的时间淘汰
+     */
+    LRU_K {
+        @Override
+        public <K, V> PageCache<K, V> newCache(int capacity) {
+            return new LruKCache<K, V>(capacity, 2);
+        }
+    },
+    /**
+     * ARC，在最近访问和频繁访问之间自适应
+     */
+    ARC {
+        @Override
+        public <K, V> PageCache<K, V> newCache(int capacity) {
+            return new ArcCache<K, V>(capacity);
+        }
+    };
+
+    public abstract <K, V> PageCache<K, V> newCache(int capacity);
+
+    /**
+     * @return 系统属性simpledb.ReplacementPolicy指定的策略，没有指定时为CLOCK
+     */
+    public static ReplacementPolicy getDefault() {
+        String policy = System.getProperty("simpledb.ReplacementPolicy");
+        if (policy == null || policy.length() == 0) {
+            return CLOCK;
+        }
+        return valueOf(policy.trim().toUpperCase());
+    }
+}
@@ -44,7 +44,8 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+            //输出和HeapFileEncoder.convert相同，但是多线程按字节编码
+            ParallelHeapFileEncoder.convert(sourceTxtFile,targetDatFile,
                         BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
 
         } catch (IOException e) {
@@ -68,6 +69,30 @@ public class SimpleDb {
                it.close();
             }
         }
+        else if (args[0].equals("load")) {
+            // load catalogFile tableName inputFile [separator | -binary]
+            if (args.length < 4 || args.length > 5) {
+                System.err.println("Usage: load catalogFile tableName inputFile [separator | -binary]");
+                return;
+            }
+            Database.getCatalog().loadSchema(args[1]);
+            DbFile table = Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(args[2]));
+            File inputFile = new File(args[3]);
+            BulkLoader loader = new BulkLoader((HeapFile) table);
+            long startTime = System.currentTimeMillis();
+            try {
+                if (args.length == 5 && args[4].equals("-binary"))
+                    loader.loadBinary(inputFile);
+                else
+                    loader.loadCsv(inputFile, args.length == 5 ? args[4].charAt(0) : ',');
+            } finally {
+                loader.finish();
+            }
+            long time = System.currentTimeMillis() - startTime;
+            System.out.printf("Loaded %d rows into %s in %.2f seconds\n",
+                    loader.getRowsLoaded(), args[2], time / 1000.0);
+        }
         else if (args[0].equals("parser")) {
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
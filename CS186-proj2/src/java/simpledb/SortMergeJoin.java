@@ -0,0 +1,483 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two inputs that are sorted in ascending
+ * order on their join fields. It supports Predicate.Op.EQUALS as well as the
+ * range operators LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and
+ * GREATER_THAN_OR_EQ. An input that is not already sorted on its join field
+ * (see {@link Operator#isSortedOn(DbIterator, int)}) is sorted with an
+ * {@link OrderBy} when the join is opened.
+ * <p>
+ * Each left tuple is read once, in order, and joined with a window of right
+ * tuples, so results are produced while the inputs are read. The output is
+ * sorted on the left join field, and for equality joins on the right join
+ * field too.
+ * <p>
+ * For EQUALS the window holds the right tuples of one key. For GREATER_THAN
+ * and GREATER_THAN_OR_EQ it holds the right tuples matching the current left
+ * tuple, a prefix of the right input. For LESS_THAN and LESS_THAN_OR_EQ every
+ * right tuple after the first match also matches, so the window holds the
+ * rest of the right input from the first match of the first left tuple on.
+ * The tuples of the window are reserved from a {@link MemoryBudget}; when it
+ * is exhausted the window is written to a {@link SpillFile} and later left
+ * tuples read the spilled part back from disk, so range joins with many
+ * matches per tuple do not need memory for all of them.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Once this many right tuples at the front of the window can no longer
+     * match, they are removed from it
+     */
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    private JoinPredicate joinPredicate;
+    private DbIterator child1;
+    private DbIterator child2;
+    private TupleDesc td;
+
+    private final long memoryBytes;
+
+    private MemoryBudget budget;
+
+    //右边的一个tuple在内存中大概占用的字节数
+    private long rightTupleBytes;
+
+    //排好序的两个输入，已经有序时就是child本身
+    private DbIterator left;
+    private DbIterator right;
+
+    //可能和之后的左边tuple匹配的右边tuple，windowStart之前的已经不会再匹配了
+    private ArrayList<Tuple> window;
+    private int windowStart;
+    //从右边读出来但还没有放进window的tuple
+    private Tuple pending;
+
+    //内存放不下时window前面的部分按顺序写到磁盘上的段，和每段最后一个tuple的连接属性值
+    private ArrayList<SpillFile> spilled = new ArrayList<SpillFile>();
+    private ArrayList<Field> spilledLast = new ArrayList<Field>();
+    private long spilledTuples;
+    //当前的左边tuple下一个要读的段
+    private int nextRun;
+    private SpillFile.Reader runReader;
+
+    //当前的左边tuple和它在window中匹配的范围[pos, end)
+    private Tuple current;
+    private int pos;
+    private int end;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p      The predicate to use to join the children, its operator
+     *               must be EQUALS or one of the range operators
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     * @see MemoryBudget#DEFAULT_OPERATOR_MEMORY
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    }
+
+    /**
+     * @param memoryBytes the most bytes of right tuples kept in the window
+     *                    in memory
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBytes) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        }
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryBytes = memoryBytes;
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate predicates with the
+     * given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The output is sorted on the left join field, and for equality joins
+     * on the right join field too.
+     */
+    @Override
+    public boolean isSortedOn(int field) {
+        if (field == joinPredicate.getIndex1()) {
+            return true;
+        }
+        //等值连接时左右两边的连接属性相等，所以输出也按右边的连接属性有序
+        int length1 = child1.getTupleDesc().numFields();
+        return joinPredicate.getOperator() == Predicate.Op.EQUALS && field == length1 + joinPredicate.getIndex2();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return joinPredicate;
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(joinPredicate.getIndex1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(joinPredicate.getIndex2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of right tuples of the window written to disk
+     * because they did not fit in memory
+     */
+    public long getSpilledTupleCount() {
+        return spilledTuples;
+    }
+
+    /**
+     * @return the most bytes of right tuples held in memory at once
+     */
+    public long getPeakMemory() {
+        return budget == null ? 0 : budget.getPeak();
+    }
+
+    /**
+     * @return true if the left input had to be sorted by the join
+     */
+    public boolean sortsLeft() {
+        return !isSortedOn(child1, joinPredicate.getIndex1());
+    }
+
+    /**
+     * @return true if the right input had to be sorted by the join
+     */
+    public boolean sortsRight() {
+        return !isSortedOn(child2, joinPredicate.getIndex2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        //OrderBy会打开它的child
+        left = sortsLeft() ? new OrderBy(joinPredicate.getIndex1(), true, child1) : child1;
+        right = sortsRight() ? new OrderBy(joinPredicate.getIndex2(), true, child2) : child2;
+        left.open();
+        right.open();
+        budget = new MemoryBudget(memoryBytes);
+        rightTupleBytes = MemoryBudget.estimateTupleBytes(child2.getTupleDesc());
+        spilledTuples = 0;
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        deleteSpilled();
+        window = new ArrayList<Tuple>();
+        windowStart = 0;
+        budget.release(budget.getUsed());
+        pending = null;
+        current = null;
+        pos = 0;
+        end = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (left != null) {
+            left.close();
+            right.close();
+        }
+        child1.close();
+        child2.close();
+        deleteSpilled();
+        left = null;
+        right = null;
+        window = null;
+        pending = null;
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        reset();
+        super.close();
+        super.open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples are returned in the order of the left input.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current != null) {
+                Tuple match = nextMatch();
+                if (match != null) {
+                    return mergeTuples(current, match);
+                }
+            }
+            if (!left.hasNext()) {
+                return null;
+            }
+            current = left.next();
+            advance(current.getField(joinPredicate.getIndex1()));
+        }
+    }
+
+    /**
+     * 左边读到新的连接属性值key后调整window，使[pos, end)正好是和key匹配的右边tuple
+     * 左边是升序的，所以window只需要从右边继续往后读，或者从前面丢掉不会再匹配的tuple
+     */
+    private void advance(Field key) throws DbException, TransactionAbortedException {
+        int index2 = joinPredicate.getIndex2();
+        switch (joinPredicate.getOperator()) {
+            case EQUALS:
+                //window里是上一个key的一组tuple，key相同时可以直接再用
+                if (!windowIsEmpty() && compare(firstKey(), key) != 0) {
+                    clearWindow();
+                }
+                if (windowIsEmpty()) {
+                    while (peekRight() != null && compare(pending.getField(index2), key) < 0) {
+                        pending = null;
+                    }
+                    while (peekRight() != null && compare(pending.getField(index2), key) == 0) {
+                        addToWindow(pending);
+                        pending = null;
+                    }
+                }
+                break;
+            case GREATER_THAN:
+                //key > r，匹配的是右边的一个前缀，随key增大而变长
+                while (peekRight() != null && compare(pending.getField(index2), key) < 0) {
+                    addToWindow(pending);
+                    pending = null;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                while (peekRight() != null && compare(pending.getField(index2), key) <= 0) {
+                    addToWindow(pending);
+                    pending = null;
+                }
+                break;
+            case LESS_THAN:
+                //key < r，匹配的是右边的一个后缀，随key增大而变短
+                //r <= key的tuple以后也不会匹配，不用放进window
+                while (windowIsEmpty() && peekRight() != null && compare(pending.getField(index2), key) <= 0) {
+                    pending = null;
+                }
+                readRight();
+                //磁盘上整段都不会再匹配时删掉，还有段时内存中的tuple都在它们后面，一定匹配
+                while (!spilled.isEmpty() && compare(spilledLast.get(0), key) <= 0) {
+                    removeFirstRun();
+                }
+                while (spilled.isEmpty() && windowStart < window.size()
+                        && compare(window.get(windowStart).getField(index2), key) <= 0) {
+                    windowStart++;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                while (windowIsEmpty() && peekRight() != null && compare(pending.getField(index2), key) < 0) {
+                    pending = null;
+                }
+                readRight();
+                while (!spilled.isEmpty() && compare(spilledLast.get(0), key) < 0) {
+                    removeFirstRun();
+                }
+                while (spilled.isEmpty() && windowStart < window.size()
+                        && compare(window.get(windowStart).getField(index2), key) < 0) {
+                    windowStart++;
+                }
+                break;
+            default:
+                throw new DbException("unsupported join operator " + joinPredicate.getOperator());
+        }
+        if (windowStart >= COMPACT_THRESHOLD && windowStart * 2 >= window.size()) {
+            compactWindow();
+        }
+        closeRunReader();
+        nextRun = 0;
+        pos = windowStart;
+        end = window.size();
+    }
+
+    /**
+     * @return 当前的左边tuple的下一个匹配的右边tuple，先读磁盘上的段，再读内存中的[pos, end)
+     */
+    private Tuple nextMatch() throws DbException {
+        try {
+            while (runReader != null || nextRun < spilled.size()) {
+                if (runReader == null) {
+                    runReader = spilled.get(nextRun++).reader();
+                }
+                while (runReader.hasNext()) {
+                    Tuple r = runReader.next();
+                    //小于和小于等于时第一段的开头可能有已经不匹配的tuple
+                    if (joinPredicate.filter(current, r)) {
+                        return r;
+                    }
+                }
+                closeRunReader();
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to read spilled join window: " + e.getMessage());
+        }
+        return pos < end ? window.get(pos++) : null;
+    }
+
+    private boolean windowIsEmpty() {
+        return spilled.isEmpty() && windowStart >= window.size();
+    }
+
+    /**
+     * @return window中第一个tuple的连接属性值，等值连接时就是window的key
+     */
+    private Field firstKey() {
+        return spilled.isEmpty() ? window.get(windowStart).getField(joinPredicate.getIndex2()) : spilledLast.get(0);
+    }
+
+    /**
+     * 把一个右边tuple放到window的最后，内存放不下时先把window写到磁盘上
+     */
+    private void addToWindow(Tuple t) throws DbException {
+        if (!budget.tryReserve(rightTupleBytes)) {
+            //先丢掉不会再匹配的tuple，还是放不下的话再写磁盘
+            compactWindow();
+            if (!budget.tryReserve(rightTupleBytes)) {
+                if (!window.isEmpty()) {
+                    spillWindow();
+                }
+                budget.tryReserve(rightTupleBytes);
+            }
+        }
+        window.add(t);
+    }
+
+    private void compactWindow() {
+        window.subList(0, windowStart).clear();
+        budget.release(windowStart * rightTupleBytes);
+        windowStart = 0;
+    }
+
+    /**
+     * 把内存中的window作为新的一段写到磁盘上，释放它占用的内存
+     */
+    private void spillWindow() throws DbException {
+        try {
+            SpillFile run = new SpillFile(child2.getTupleDesc());
+            spilled.add(run);
+            for (int i = windowStart; i < window.size(); i++) {
+                run.add(window.get(i));
+                spilledTuples++;
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill join window: " + e.getMessage());
+        }
+        spilledLast.add(window.get(window.size() - 1).getField(joinPredicate.getIndex2()));
+        window.clear();
+        windowStart = 0;
+        budget.release(budget.getUsed());
+    }
+
+    private void clearWindow() {
+        deleteSpilled();
+        window.clear();
+        windowStart = 0;
+        budget.release(budget.getUsed());
+    }
+
+    private void removeFirstRun() {
+        closeRunReader();
+        spilled.remove(0).delete();
+        spilledLast.remove(0);
+    }
+
+    private void deleteSpilled() {
+        closeRunReader();
+        for (SpillFile run : spilled) {
+            run.delete();
+        }
+        spilled.clear();
+        spilledLast.clear();
+    }
+
+    private void closeRunReader() {
+        if (runReader != null) {
+            runReader.close();
+            runReader = null;
+        }
+    }
+
+    private Tuple peekRight() throws DbException, TransactionAbortedException {
+        if (pending == null && right.hasNext()) {
+            pending = right.next();
+        }
+        return pending;
+    }
+
+    private void readRight() throws DbException, TransactionAbortedException {
+        while (peekRight() != null) {
+            addToWindow(pending);
+            pending = null;
+        }
+    }
+
+    private static int compare(Field f1, Field f2) {
+        if (f1.compare(Predicate.Op.EQUALS, f2))
+            return 0;
+        return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : -1;
+    }
+
+    private Tuple mergeTuples(Tuple left, Tuple right) {
+        Tuple result = new Tuple(td);
+        int length1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < length1; i++) {
+            result.setField(i, left.getField(i));
+        }
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++) {
+            result.setField(i + length1, right.getField(i));
+        }
+        return result;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
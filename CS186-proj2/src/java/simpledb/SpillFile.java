@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * 算子的内存放不下数据时写出tuple的临时文件
+ * <p>
+ * 文件中的tuple一个接一个地存放，不分页：整数4字节，字符串用writeUTF只写实际的长度，
+ * 比HeapPage中的定长格式紧凑。先用add写完所有tuple，然后可以多次用reader顺序读出，
+ * 用完后调用delete删除文件。
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+
+    private final File file;
+
+    //写完之后为null
+    private DataOutputStream out;
+
+    private long numTuples;
+
+    /**
+     * 创建一个空的临时文件
+     *
+     * @param td 写入的tuple的TupleDesc
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        //不用deleteOnExit：它为每个文件在JVM中留下一条记录直到退出，长时间运行时会一直增长。
+        //由算子在close中调用delete删除
+        this.file = File.createTempFile("simpledb-spill", ".run");
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    public void add(Tuple t) throws IOException {
+        if (out == null) {
+            throw new IllegalStateException("spill file is already finished");
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                out.writeInt(((IntField) f).getValue());
+            } else {
+                out.writeUTF(((StringField) f).getValue());
+            }
+        }
+        numTuples++;
+    }
+
+    /**
+     * @return 文件中tuple的数量
+     */
+    public long size() {
+        return numTuples;
+    }
+
+    /**
+     * 结束写入，返回一个从头读取的Reader，可以多次调用
+     */
+    public Reader reader() throws IOException {
+        finish();
+        return new Reader();
+    }
+
+    private void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * 删除这个临时文件
+     */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            //文件马上就被删除了，写不完也没有关系
+        }
+        file.delete();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 顺序读取SpillFile中的tuple
+     */
+    public class Reader {
+
+        private final DataInputStream in;
+
+        private long read;
+
+        private Reader() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        public boolean hasNext() {
+            return read < numTuples;
+        }
+
+        public Tuple next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    t.setField(i, new IntField(in.readInt()));
+                } else {
+                    t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            }
+            read++;
+            return t;
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
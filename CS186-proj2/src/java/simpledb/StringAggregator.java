@@ -1,8 +1,6 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -26,12 +24,15 @@ public class StringAggregator implements Aggregator {
     //指定使用哪种聚合操作
     Op aggreOp;
 
-    //group-by value到aggregate value的映射
-    HashMap<Field, Integer> gval2agval;
-
     //聚合后的td
     private TupleDesc td;
 
+    //真正做聚合的哈希表，第一个tuple到来、知道了输入的TupleDesc之后才创建
+    HashAggregator hashAggregator;
+
+    //分组太多时开始把tuple写到磁盘上的内存上限
+    long memoryBytes;
+
     /**
      * Aggregate constructor
      *
@@ -44,15 +45,31 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, TupleDesc td) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, td, MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield     the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
+     * @param afield      the 0-based index of the aggregate field in the tuple
+     * @param what        aggregation operator to use -- only supports COUNT
+     * @param td          the TupleDesc of the result tuples
+     * @param memoryBytes the memory the groups may take before tuples of new groups are written to disk
+     * @throws IllegalArgumentException if what != COUNT
+     */
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, TupleDesc td,
+                            long memoryBytes) {
         if (what != Op.COUNT) {
-            throw new UnsupportedOperationException("String类型值只支持count操作,不支持" + aggreOp);
+            throw new UnsupportedOperationException("String类型值只支持count操作,不支持" + what);
         }
         this.gbIndex = gbfield;
         this.agIndex = afield;
         this.aggreOp = what;
         this.gbFieldType = gbfieldtype;
-        gval2agval = new HashMap<Field, Integer>();
         this.td = td;
+        this.memoryBytes = memoryBytes;
     }
 
     /**
@@ -62,34 +79,23 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        //待聚合值所在的Field
-        Field aggreField;
-        //分组依据的Field
-        Field gbField = null;
-        //新的聚合结果
-        Integer newVal;
-        aggreField = tup.getField(agIndex);
-
-        if (aggreField.getType() != Type.STRING_TYPE) {
-            throw new IllegalArgumentException("该tuple的指定列不是Type.STRING_TYPE类型");
-        }
         //初始化originalTd，并确保每一次聚合的tuple的td与其相同
         if (originalTd == null) {
+            if (tup.getTupleDesc().getFieldType(agIndex) != Type.STRING_TYPE) {
+                throw new IllegalArgumentException("该tuple的指定列不是Type.STRING_TYPE类型");
+            }
             originalTd = tup.getTupleDesc();
+            int[] groupFields = gbIndex == Aggregator.NO_GROUPING ? new int[0] : new int[]{gbIndex};
+            hashAggregator = new HashAggregator(groupFields, new int[]{agIndex}, new Op[]{aggreOp},
+                    originalTd, td, memoryBytes);
         } else if (!originalTd.equals(tup.getTupleDesc())) {
             throw new IllegalArgumentException("待聚合tuple的tupleDesc与之前不一致");
         }
-        if (gbIndex != Aggregator.NO_GROUPING) {
-            //如果gbIdex为NO_GROUPING，那么不用给gbField赋值，即为初始值null即可
-            gbField = tup.getField(gbIndex);
+        try {
+            hashAggregator.add(tup);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
         }
-
-        //开始进行聚合操作
-        if (gval2agval.containsKey(gbField)) {
-            Integer oldVal = gval2agval.get(gbField);
-            newVal = oldVal + 1;
-        } else newVal = 1;
-        gval2agval.put(gbField, newVal);
     }
 
     /**
@@ -102,19 +108,23 @@ public class StringAggregator implements Aggregator {
      */
     public DbIterator iterator() {
         // some code goes here
-        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-        for (Map.Entry<Field, Integer> g2a : gval2agval.entrySet()) {
-            Tuple t = new Tuple(td);//该tuple不必setRecordId，因为RecordId对进行操作后的tuple没有意义
-            //分别处理不分组与有分组的情形
-            if (gbIndex == Aggregator.NO_GROUPING) {
-                t.setField(0, new IntField(g2a.getValue()));
-            } else {
-                t.setField(0, g2a.getKey());
-                t.setField(1, new IntField(g2a.getValue()));
-            }
-            tuples.add(t);
+        if (hashAggregator == null) {
+            return new TupleIterator(td, new ArrayList<Tuple>());
+        }
+        try {
+            return new TupleIterator(td, hashAggregator.results());
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes the temporary files of groups written to disk.
+     */
+    public void close() {
+        if (hashAggregator != null) {
+            hashAggregator.close();
         }
-        return new TupleIterator(td, tuples);
     }
 
 }
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A class to represent a histogram over a single String-valued field.
+ * <p>
+ * 字符串按前缀转成整数，保持字符串的顺序，然后用IntHistogram统计。
+ * 前缀相同的字符串落在同一个值上，所以只能区分前PREFIX_CHARS个字符。
+ */
+public class StringHistogram {
+
+    /**
+     * 参与比较的前缀长度，每个字符7位，所以只区分ASCII字符
+     */
+    static final int PREFIX_CHARS = 4;
+
+    private final IntHistogram hist;
+
+    /**
+     * Create a new StringHistogram with a specified number of buckets.
+     * <p>
+     * Our implementation is written in terms of an IntHistogram by converting
+     * each String to an integer.
+     *
+     * @param buckets the number of buckets
+     */
+    public StringHistogram(int buckets) {
+        hist = new IntHistogram(buckets);
+    }
+
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
+    /**
+     * Writes the histogram for {@link #read}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        hist.write(out);
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     */
+    static StringHistogram read(DataInputStream in) throws IOException {
+        return new StringHistogram(IntHistogram.read(in));
+    }
+
+    /**
+     * Convert a string to an integer, with the property that if the return
+     * value(s1) < return value(s2), then s1 < s2
+     */
+    public static int stringToInt(String s) {
+        int v = 0;
+        for (int i = 0; i < PREFIX_CHARS; i++) {
+            int c = i < s.length() ? Math.min(s.charAt(i), 127) : 0;
+            v = (v << 7) | c;
+        }
+        return v;
+    }
+
+    /**
+     * Add a new value to the histogram
+     */
+    public void addValue(String s) {
+        hist.addValue(stringToInt(s));
+    }
+
+    /**
+     * Remove a value added before
+     */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
+    /**
+     * Adds the values of another histogram with the same number of buckets
+     * to this one.
+     */
+    public void merge(StringHistogram other) {
+        hist.merge(other.hist);
+    }
+
+    /**
+     * Estimate the selectivity (as a double between 0 and 1) of the specified
+     * predicate over the specified string
+     *
+     * @param op The operation being applied
+     * @param s  The string to apply op to
+     */
+    public double estimateSelectivity(Predicate.Op op, String s) {
+        if (op == Predicate.Op.LIKE) {
+            //LIKE是包含子串，和前缀无关，只能猜一个值
+            return hist.getTotal() == 0 ? 0 : 0.1;
+        }
+        return hist.estimateSelectivity(op, stringToInt(s));
+    }
+
+    /**
+     * @return the average selectivity of this histogram.
+     * <p>
+     * This is not an indispensable method to implement the basic join
+     * optimization. It may be needed if you want to implement a more
+     * efficient optimization
+     */
+    public double avgSelectivity() {
+        return hist.avgSelectivity();
+    }
+
+    /**
+     * @return the expected selectivity of "field op s" when s is a value
+     * drawn from this histogram
+     */
+    public double avgSelectivity(Predicate.Op op) {
+        if (op == Predicate.Op.LIKE) {
+            return hist.getTotal() == 0 ? 0 : 0.1;
+        }
+        return hist.avgSelectivity(op);
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public long getTotal() {
+        return hist.getTotal();
+    }
+
+    public String toString() {
+        return "StringHistogram(prefixes: " + hist + ")";
+    }
+}
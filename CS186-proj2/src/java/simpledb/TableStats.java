@@ -1,22 +1,92 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query.
  * <p>
- * This class is not needed in implementing proj1 and proj2.
+ * 每个INT_TYPE字段有一个IntHistogram，每个STRING_TYPE字段有一个按前缀统计的StringHistogram。
+ * 所有直方图在一次扫描中建好：HeapFile的页由ParallelScan分给多个线程，
+ * 每个线程统计自己读到的tuple，最后把各个线程的直方图合并。
+ * <p>
+ * 之后BufferPool插入和删除的每个tuple都直接更新行数和直方图。修改的tuple数超过上次完整统计时
+ * 行数的STALE_FRACTION后，在后台线程中重新扫描一遍，扫描完成后替换掉增量维护的结果，
+ * 查询在此期间继续使用旧的统计。
+ * <p>
+ * ANALYZE用{@link #analyze}代替完整扫描：用PageSampler抽样若干页，只统计这些页中的tuple，
+ * 行数按页数的比例放大。每个字段还有一个HyperLogLog草图估计不同值的个数，
+ * 以及样本中出现次数最多的值(MCV)和它们的频率。抽样统计的表过时后在后台重新抽样。
+ * <p>
+ * 所有表的统计可以用{@link #saveStatistics}保存在catalog旁边的.stats文件中，
+ * 启动时{@link #loadStatistics}读回来，不用重新扫描所有的表。文件中记录了每个表的数据文件
+ * 当时的长度和修改时间，对不上的表先使用保存的统计，在后台重新扫描；文件中没有的表立即扫描。
+ * 文件格式(用Deflater压缩)：4字节的魔数，4字节的表数，然后每个表是表名、数据文件的长度和修改时间、
+ * 统计数据的字节数和统计数据，统计数据的格式见{@link #write}。
  */
 public class TableStats {
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    private static final int MAGIC = 0x54535431;//"TST1"
+
+    //loadStatistics读的文件，saveStatistics()写回这里
+    private static volatile File statsFile;
+
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * 统计时默认使用的线程数，可以用系统属性simpledb.StatsThreads修改
+     */
+    public static final int DEFAULT_PARALLELISM = Integer.getInteger("simpledb.StatsThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 修改的tuple数超过上次完整统计时行数的这个比例后重新统计
+     */
+    public static final double STALE_FRACTION = 0.2;
+
+    /**
+     * 小表至少修改这么多tuple才重新统计
+     */
+    static final int MIN_STALE_MODIFICATIONS = 1000;
+
+    //在后台重新统计的线程
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-stats-refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -46,6 +116,53 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Updates the statistics of a table, if it has any, after a tuple was
+     * inserted into it.
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        TableStats stats = statsOf(tableid);
+        if (stats != null) {
+            stats.update(t, true);
+        }
+    }
+
+    /**
+     * Updates the statistics of a table, if it has any, after a tuple was
+     * deleted from it.
+     */
+    public static void tupleDeleted(int tableid, Tuple t) {
+        TableStats stats = statsOf(tableid);
+        if (stats != null) {
+            stats.update(t, false);
+        }
+    }
+
+    /**
+     * Updates the statistics of a table, if it has any, after rows were
+     * appended to it by a {@link BulkLoader}. The row and page counts are
+     * updated right away; the histograms and sketches are rebuilt by a scan
+     * in the background.
+     */
+    public static void tuplesLoaded(int tableid, long rows) {
+        TableStats stats = statsOf(tableid);
+        if (stats != null && rows > 0) {
+            stats.loaded(rows);
+        }
+    }
+
+    private static TableStats statsOf(int tableid) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats stats = name == null ? null : statsMap.get(name);
+        //同名的表可能已经被别的表替换了
+        return stats != null && stats.tableid == tableid ? stats : null;
+    }
+
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
@@ -58,6 +175,199 @@ public class TableStats {
         System.out.println("Done.");
     }
 
+    /**
+     * @return the statistics file kept next to a catalog schema file: the
+     * schema file name with its extension replaced by .stats
+     */
+    public static File statsFileFor(String catalogFile) {
+        File f = new File(catalogFile);
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(f.getAbsoluteFile().getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".stats");
+    }
+
+    /**
+     * Loads the statistics of all tables in the catalog from a file written
+     * by {@link #saveStatistics}, instead of scanning every table as
+     * {@link #computeStatistics()} does. Tables whose data file changed
+     * since the statistics were saved use the saved statistics until they
+     * have been scanned again in the background; tables missing from the
+     * file are scanned right away. Once the background scans are done the
+     * file is written again.
+     *
+     * @param f the statistics file; it need not exist
+     */
+    public static void loadStatistics(File f) {
+        statsFile = f;
+        HashMap<String, byte[]> saved = new HashMap<String, byte[]>();
+        HashMap<String, long[]> savedVersions = new HashMap<String, long[]>();
+        if (f.exists()) {
+            try {
+                readStatsFile(f, saved, savedVersions);
+            } catch (IOException e) {
+                //统计只是提示，读不了的话就全部重新扫描
+                System.out.println("Could not read " + f + ": " + e.getMessage());
+                saved.clear();
+            }
+        }
+
+        int loaded = 0, stale = 0, scanned = 0;
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        System.out.println("Loading table stats.");
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = null;
+            if (saved.containsKey(name)) {
+                try {
+                    s = read(tableid, IOCOSTPERPAGE,
+                            new DataInputStream(new ByteArrayInputStream(saved.get(name))));
+                } catch (IOException e) {
+                    //表的模式变了或者数据坏了
+                    s = null;
+                }
+            }
+            if (s == null) {
+                s = new TableStats(tableid, IOCOSTPERPAGE);
+                scanned++;
+            } else if (!Arrays.equals(savedVersions.get(name), versionOf(tableid))) {
+                s.scheduleRefresh();
+                stale++;
+            } else {
+                loaded++;
+            }
+            setTableStats(name, s);
+        }
+        System.out.println("Loaded stats of " + loaded + " tables, scanned " + scanned
+                + ", rescanning " + stale + " in the background.");
+        if (stale > 0 || scanned > 0) {
+            //重新统计的线程只有一个，按提交的顺序执行，所以保存在后台扫描完成之后
+            refresher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    saveStatistics();
+                }
+            });
+        }
+    }
+
+    private static void readStatsFile(File f, HashMap<String, byte[]> saved,
+                                      HashMap<String, long[]> savedVersions) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new BufferedInputStream(new FileInputStream(f))));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a statistics file");
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String name = in.readUTF();
+                long[] version = {in.readLong(), in.readLong()};
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                saved.put(name, data);
+                savedVersions.put(name, version);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return 数据文件的长度和修改时间，不是HeapFile时为null，这样的表总是重新扫描
+     */
+    private static long[] versionOf(int tableid) {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            return null;
+        }
+        File data = ((HeapFile) file).getFile();
+        return new long[]{data.length(), data.lastModified()};
+    }
+
+    /**
+     * Writes the statistics of all tables back to the file they were
+     * loaded from, if any.
+     */
+    public static void saveStatistics() {
+        File f = statsFile;
+        if (f == null) {
+            return;
+        }
+        try {
+            saveStatistics(f);
+        } catch (IOException e) {
+            System.out.println("Could not write " + f + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the statistics of all tables in the catalog that have
+     * statistics and are stored in heap files. The file is replaced
+     * atomically, so a crash leaves either the old or the new file. Called
+     * both from the background refresh thread and from the parser, so
+     * saves are serialized.
+     */
+    public static synchronized void saveStatistics(File f) throws IOException {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<long[]> versions = new ArrayList<long[]>();
+        ArrayList<byte[]> data = new ArrayList<byte[]>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            TableStats s = statsOf(tableid);
+            long[] version = versionOf(tableid);
+            if (s == null || version == null) {
+                continue;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            s.write(out);
+            out.flush();
+            names.add(Database.getCatalog().getTableName(tableid));
+            versions.add(version);
+            data.add(bytes.toByteArray());
+        }
+
+        //临时文件和目标在同一个目录中才能原子地rename
+        File dir = f.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(f.getName() + ".new", ".tmp", dir);
+        boolean replaced = false;
+        try {
+            writeStatsFile(temp, names, versions, data);
+            if (!temp.renameTo(f)) {
+                //Windows上不能覆盖已有的文件
+                f.delete();
+                if (!temp.renameTo(f)) {
+                    throw new IOException("could not replace " + f);
+                }
+            }
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void writeStatsFile(File temp, ArrayList<String> names, ArrayList<long[]> versions,
+                                       ArrayList<byte[]> data) throws IOException {
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                out.writeLong(versions.get(i)[0]);
+                out.writeLong(versions.get(i)[1]);
+                out.writeInt(data.get(i).length);
+                out.write(data.get(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -65,6 +375,43 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * 每个字段保存的最常见值的个数
+     */
+    static final int NUM_MCVS = 10;
+
+    /**
+     * 统计每个值出现次数时最多记录的不同值个数，达到后只给已经记录的值计数。
+     * 常见的值很早就会出现，所以仍然能找到MCV，但不知道只出现一次的值有多少
+     */
+    static final int FREQUENCY_CAP = 10000;
+
+    private final int tableid;
+    private final int ioCostPerPage;
+    private final int parallelism;
+    //ANALYZE抽样的页数，0表示完整扫描
+    private final int samplePages;
+    private int numPages;
+    private long numTuples;
+    //统计用到的tuple占全部tuple的比例，完整扫描时是1
+    private double sampleFraction;
+    //插入和删除的tuple按sampleFraction的概率计入直方图和草图，和样本保持一样的比例
+    private final Random random = new Random();
+    //上次完整统计时的行数，和之后修改过的tuple数
+    private long scannedTuples;
+    private long modifications;
+    //正在后台进行的重新统计，没有时为null
+    private Future<?> refresh;
+    //按字段下标，不是这种类型的字段为null
+    private IntHistogram[] intHistograms;
+    private StringHistogram[] stringHistograms;
+    private HyperLogLog[] sketches;
+    //样本中只出现一次的值的个数
+    private long[] singletons;
+    //最常见的值和它们在样本中的频率，按频率从高到低
+    private Field[][] mcvValues;
+    private double[][] mcvFrequencies;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -82,6 +429,416 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
+        this(tableid, ioCostPerPage, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Create a new TableStats object, scanning the table with up to
+     * parallelism threads when it is a HeapFile.
+     *
+     * @param tableid       The table over which to compute statistics
+     * @param ioCostPerPage The cost per page of IO
+     * @param parallelism   the maximum number of threads scanning the table
+     */
+    public TableStats(int tableid, int ioCostPerPage, int parallelism) {
+        this(tableid, ioCostPerPage, parallelism, 0);
+        install(collect());
+    }
+
+    /**
+     * 不扫描表，由调用者install或者read
+     */
+    private TableStats(int tableid, int ioCostPerPage, int parallelism, int samplePages) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.parallelism = parallelism;
+        this.samplePages = samplePages;
+    }
+
+    /**
+     * Computes statistics from a sample of the pages of a table instead of
+     * all of them. Tables with at most samplePages pages are read
+     * completely.
+     *
+     * @param tableid       The table over which to compute statistics
+     * @param ioCostPerPage The cost per page of IO
+     * @param samplePages   the number of pages to sample
+     */
+    public static TableStats analyze(int tableid, int ioCostPerPage, int samplePages) {
+        if (samplePages < 1) {
+            throw new IllegalArgumentException("must sample at least one page");
+        }
+        TableStats stats = new TableStats(tableid, ioCostPerPage, DEFAULT_PARALLELISM, samplePages);
+        stats.install(stats.collect());
+        return stats;
+    }
+
+    /**
+     * Writes the statistics: the field types, then the counts, then for
+     * each field its histogram, distinct-value sketch and most common
+     * values.
+     */
+    synchronized void write(DataOutputStream out) throws IOException {
+        int n = sketches.length;
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeBoolean(intHistograms[i] != null);
+        }
+        out.writeInt(samplePages);
+        out.writeInt(numPages);
+        out.writeLong(numTuples);
+        out.writeLong(scannedTuples);
+        out.writeLong(modifications);
+        out.writeDouble(sampleFraction);
+        for (int i = 0; i < n; i++) {
+            if (intHistograms[i] != null) {
+                intHistograms[i].write(out);
+            } else {
+                stringHistograms[i].write(out);
+            }
+            out.write(sketches[i].getRegisters());
+            out.writeLong(singletons[i]);
+            out.writeInt(mcvValues[i].length);
+            for (int j = 0; j < mcvValues[i].length; j++) {
+                if (intHistograms[i] != null) {
+                    out.writeInt(((IntField) mcvValues[i][j]).getValue());
+                } else {
+                    out.writeUTF(((StringField) mcvValues[i][j]).getValue());
+                }
+                out.writeDouble(mcvFrequencies[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Reads statistics written by {@link #write} for a table.
+     *
+     * @throws IOException if the data is damaged or the field types do not
+     *                     match the table any more
+     */
+    static TableStats read(int tableid, int ioCostPerPage, DataInputStream in) throws IOException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        int n = in.readInt();
+        if (n != td.numFields()) {
+            throw new IOException("table " + tableid + " has " + td.numFields() + " fields, not " + n);
+        }
+        for (int i = 0; i < n; i++) {
+            if (in.readBoolean() != (td.getFieldType(i) == Type.INT_TYPE)) {
+                throw new IOException("field " + i + " of table " + tableid + " changed type");
+            }
+        }
+        TableStats s = new TableStats(tableid, ioCostPerPage, DEFAULT_PARALLELISM, in.readInt());
+        s.numPages = in.readInt();
+        s.numTuples = in.readLong();
+        s.scannedTuples = in.readLong();
+        s.modifications = in.readLong();
+        s.sampleFraction = in.readDouble();
+        s.intHistograms = new IntHistogram[n];
+        s.stringHistograms = new StringHistogram[n];
+        s.sketches = new HyperLogLog[n];
+        s.singletons = new long[n];
+        s.mcvValues = new Field[n][];
+        s.mcvFrequencies = new double[n][];
+        byte[] registers = new byte[1 << HyperLogLog.PRECISION];
+        for (int i = 0; i < n; i++) {
+            boolean isInt = td.getFieldType(i) == Type.INT_TYPE;
+            if (isInt) {
+                s.intHistograms[i] = IntHistogram.read(in);
+            } else {
+                s.stringHistograms[i] = StringHistogram.read(in);
+            }
+            in.readFully(registers);
+            s.sketches[i] = new HyperLogLog(registers);
+            s.singletons[i] = in.readLong();
+            int k = in.readInt();
+            if (k < 0 || k > NUM_MCVS) {
+                throw new IOException("bad number of common values " + k);
+            }
+            s.mcvValues[i] = new Field[k];
+            s.mcvFrequencies[i] = new double[k];
+            for (int j = 0; j < k; j++) {
+                s.mcvValues[i][j] = isInt ? new IntField(in.readInt())
+                        : new StringField(in.readUTF(), Type.STRING_LEN);
+                s.mcvFrequencies[i][j] = in.readDouble();
+            }
+        }
+        return s;
+    }
+
+    /**
+     * 扫描整个表，返回统计结果
+     */
+    private Collector collect() {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        TransactionId tid = new TransactionId();
+        Collector result;
+        try {
+            if (file instanceof HeapFile) {
+                HeapFile heapFile = (HeapFile) file;
+                int totalPages = heapFile.numPages();
+                int[] pages = samplePages > 0 ? new PageSampler().samplePages(totalPages, samplePages) : null;
+                int readPages = pages == null ? totalPages : pages.length;
+                ArrayList<Collector> collectors = new ArrayList<Collector>();
+                for (int i = ParallelScan.threadsFor(readPages, parallelism); i > 0; i--) {
+                    collectors.add(new Collector(file.getTupleDesc()));
+                }
+                ParallelScan.scan(tid, heapFile, pages, collectors);
+                result = collectors.get(0);
+                for (int i = 1; i < collectors.size(); i++) {
+                    result.merge(collectors.get(i));
+                }
+                if (readPages < totalPages) {
+                    result.scale = (double) totalPages / readPages;
+                }
+            } else {
+                result = new Collector(file.getTupleDesc());
+                DbFileIterator it = file.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    result.accept(it.next());
+                }
+                it.close();
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        } catch (DbException e) {
+            throw new RuntimeException("could not compute statistics of table " + tableid, e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException("could not compute statistics of table " + tableid, e);
+        } catch (IOException e) {
+            throw new RuntimeException("could not compute statistics of table " + tableid, e);
+        }
+        return result;
+    }
+
+    private synchronized void install(Collector result) {
+        numTuples = Math.round(result.count * result.scale);
+        sampleFraction = numTuples == 0 ? 1 : (double) result.count / numTuples;
+        intHistograms = result.intHistograms;
+        stringHistograms = result.stringHistograms;
+        sketches = result.sketches;
+        int n = sketches.length;
+        singletons = new long[n];
+        mcvValues = new Field[n][];
+        mcvFrequencies = new double[n][];
+        for (int i = 0; i < n; i++) {
+            ArrayList<Map.Entry<Field, Integer>> entries = new ArrayList<Map.Entry<Field, Integer>>();
+            singletons[i] = 0;
+            for (Map.Entry<Field, Integer> e : result.frequencies.get(i).entrySet()) {
+                if (e.getValue() == 1) {
+                    singletons[i]++;
+                } else {
+                    entries.add(e);
+                }
+            }
+            if (result.overflowed[i]) {
+                //只有一部分值有计数，按它们中只出现一次的比例估计所有的值
+                HashMap<Field, Integer> counted = result.frequencies.get(i);
+                singletons[i] = Math.round((double) singletons[i] / counted.size()
+                        * Math.max(counted.size(), sketches[i].estimate()));
+            }
+            Collections.sort(entries, new Comparator<Map.Entry<Field, Integer>>() {
+                @Override
+                public int compare(Map.Entry<Field, Integer> a, Map.Entry<Field, Integer> b) {
+                    return b.getValue() - a.getValue();
+                }
+            });
+            int k = Math.min(NUM_MCVS, entries.size());
+            mcvValues[i] = new Field[k];
+            mcvFrequencies[i] = new double[k];
+            for (int j = 0; j < k; j++) {
+                mcvValues[i][j] = entries.get(j).getKey();
+                mcvFrequencies[i][j] = (double) entries.get(j).getValue() / result.count;
+            }
+        }
+        scannedTuples = numTuples;
+        modifications = 0;
+        numPages = currentNumPages();
+    }
+
+    private int currentNumPages() {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).numPages();
+        }
+        return (int) Math.ceil((double) numTuples * file.getTupleDesc().getSize() / BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * 插入或删除了一个tuple，更新统计，过时太多时开始在后台重新统计
+     */
+    private synchronized void update(Tuple t, boolean inserted) {
+        numTuples += inserted ? 1 : -1;
+        numTuples = Math.max(numTuples, 0);
+        boolean sampled = sampleFraction >= 1 || random.nextDouble() < sampleFraction;
+        for (int i = 0; sampled && i < intHistograms.length; i++) {
+            //删除的值不能从草图中去掉，不同值的个数只会被高估
+            if (inserted) {
+                sketches[i].add(t.getField(i));
+            }
+            if (intHistograms[i] != null) {
+                int v = ((IntField) t.getField(i)).getValue();
+                if (inserted) {
+                    intHistograms[i].addValue(v);
+                } else {
+                    intHistograms[i].removeValue(v);
+                }
+            } else {
+                String v = ((StringField) t.getField(i)).getValue();
+                if (inserted) {
+                    stringHistograms[i].addValue(v);
+                } else {
+                    stringHistograms[i].removeValue(v);
+                }
+            }
+        }
+        numPages = currentNumPages();
+        modifications++;
+        if (isStale()) {
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * 批量导入了rows行，导入的值不在直方图中，所以总是在后台重新统计
+     */
+    private synchronized void loaded(long rows) {
+        numTuples += rows;
+        numPages = currentNumPages();
+        modifications += rows;
+        scheduleRefresh();
+    }
+
+    /**
+     * 在后台重新统计，已经在进行的话什么都不做
+     */
+    private synchronized void scheduleRefresh() {
+        if (refresh == null) {
+            refresh = refresher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        //扫描时不持有锁，查询和更新可以继续使用旧的统计；ANALYZE过的表重新抽样
+                        install(collect());
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        synchronized (TableStats.this) {
+                            refresh = null;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if enough tuples were inserted or deleted since the table
+     * was last scanned that it should be scanned again
+     */
+    public synchronized boolean isStale() {
+        return modifications >= Math.max(MIN_STALE_MODIFICATIONS, STALE_FRACTION * scannedTuples);
+    }
+
+    /**
+     * @return the number of tuples inserted or deleted since the table was
+     * last scanned
+     */
+    public synchronized long getModifications() {
+        return modifications;
+    }
+
+    /**
+     * Waits until a refresh started in the background, if any, is done.
+     */
+    void awaitRefresh() throws InterruptedException {
+        Future<?> f;
+        synchronized (this) {
+            f = refresh;
+        }
+        if (f != null) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 一个扫描线程的统计结果
+     */
+    private static class Collector implements ParallelScan.Consumer {
+        private long count;
+        //表的行数是count的多少倍，抽样时大于1
+        private double scale = 1;
+        private final IntHistogram[] intHistograms;
+        private final StringHistogram[] stringHistograms;
+        private final HyperLogLog[] sketches;
+        //每个字段每个值出现的次数
+        private final ArrayList<HashMap<Field, Integer>> frequencies;
+        //不同值达到FREQUENCY_CAP后有的值没有计数
+        private final boolean[] overflowed;
+
+        Collector(TupleDesc td) {
+            int n = td.numFields();
+            intHistograms = new IntHistogram[n];
+            stringHistograms = new StringHistogram[n];
+            sketches = new HyperLogLog[n];
+            frequencies = new ArrayList<HashMap<Field, Integer>>(n);
+            overflowed = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    intHistograms[i] = new IntHistogram(NUM_HIST_BINS);
+                } else {
+                    stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+                }
+                sketches[i] = new HyperLogLog();
+                frequencies.add(new HashMap<Field, Integer>());
+            }
+        }
+
+        @Override
+        public void accept(Tuple t) {
+            count++;
+            for (int i = 0; i < intHistograms.length; i++) {
+                Field f = t.getField(i);
+                if (intHistograms[i] != null) {
+                    intHistograms[i].addValue(((IntField) f).getValue());
+                } else {
+                    stringHistograms[i].addValue(((StringField) f).getValue());
+                }
+                sketches[i].add(f);
+                count(i, f, 1);
+            }
+        }
+
+        private void count(int i, Field f, int n) {
+            HashMap<Field, Integer> counts = frequencies.get(i);
+            Integer c = counts.get(f);
+            if (c != null) {
+                counts.put(f, c + n);
+            } else if (counts.size() < FREQUENCY_CAP) {
+                counts.put(f, n);
+            } else {
+                overflowed[i] = true;
+            }
+        }
+
+        void merge(Collector other) {
+            count += other.count;
+            for (int i = 0; i < intHistograms.length; i++) {
+                if (intHistograms[i] != null) {
+                    intHistograms[i].merge(other.intHistograms[i]);
+                } else {
+                    stringHistograms[i].merge(other.stringHistograms[i]);
+                }
+                sketches[i].merge(other.sketches[i]);
+                overflowed[i] |= other.overflowed[i];
+                for (Map.Entry<Field, Integer> e : other.frequencies.get(i).entrySet()) {
+                    count(i, e.getKey(), e.getValue());
+                }
+            }
+        }
     }
 
     /**
@@ -96,9 +853,9 @@ public class TableStats {
      *
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
+    public synchronized double estimateScanCost() {
         // some code goes here
-        return 0;
+        return (double) numPages * ioCostPerPage;
     }
 
     /**
@@ -109,9 +866,9 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      * selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
-        return 0;
+        return (int) Math.round(numTuples * selectivityFactor);
     }
 
     /**
@@ -123,9 +880,12 @@ public class TableStats {
      *              tuple, of which we do not know the value of the field, return the
      *              expected selectivity. You may estimate this value from the histograms.
      */
-    public double avgSelectivity(int field, Predicate.Op op) {
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        if (intHistograms[field] != null) {
+            return intHistograms[field].avgSelectivity(op);
+        }
+        return stringHistograms[field].avgSelectivity(op);
     }
 
     /**
@@ -138,17 +898,94 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      * predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        return 1.0;
+        double sel;
+        if (intHistograms[field] != null) {
+            sel = intHistograms[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        } else {
+            sel = stringHistograms[field].estimateSelectivity(op, ((StringField) constant).getValue());
+        }
+        if ((op == Predicate.Op.EQUALS || op == Predicate.Op.NOT_EQUALS) && mcvValues[field].length > 0) {
+            //最常见的值直接用它的频率；其他的值平分剩下的行，直方图的桶中还包含了最常见的值，会高估
+            double mcvTotal = 0;
+            double equal = -1;
+            for (int j = 0; j < mcvValues[field].length; j++) {
+                mcvTotal += mcvFrequencies[field][j];
+                if (mcvValues[field][j].equals(constant)) {
+                    equal = mcvFrequencies[field][j];
+                }
+            }
+            if (equal < 0) {
+                //统计之后的修改没有计入MCV，每个值最多多出modifications行
+                long others = Math.max(1, estimateDistinct(field) - mcvValues[field].length);
+                double otherRows = Math.max(0, 1 - mcvTotal) * scannedTuples / others + modifications;
+                double histogramEqual = op == Predicate.Op.EQUALS ? sel : 1 - sel;
+                equal = Math.min(histogramEqual, otherRows / Math.max(numTuples, 1));
+            }
+            sel = op == Predicate.Op.EQUALS ? equal : 1 - equal;
+        }
+        return sel;
     }
 
     /**
      * return the total number of tuples in this table
      */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
-        return 0;
+        return (int) numTuples;
+    }
+
+    /**
+     * @return the number of pages of the table
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Estimates the number of distinct values of a field. When the
+     * statistics come from a sample, the distinct values of the sample are
+     * scaled up with the GEE estimator: values seen once in the sample stand
+     * for sqrt(N / n) values of the table, values seen more often for
+     * themselves.
+     *
+     * @param field the index of the field
+     * @return the estimated number of distinct values, at least 1 unless the
+     * table is empty, and at most the number of tuples
+     */
+    public synchronized long estimateDistinct(int field) {
+        if (numTuples == 0) {
+            return 0;
+        }
+        double d = sketches[field].estimate();
+        if (sampleFraction < 1) {
+            d += (Math.sqrt(1 / sampleFraction) - 1) * singletons[field];
+        }
+        return Math.max(1, Math.min(numTuples, Math.round(d)));
+    }
+
+    /**
+     * @return the most common values of a field, most common first
+     */
+    public synchronized Field[] mostCommonValues(int field) {
+        return mcvValues[field].clone();
+    }
+
+    /**
+     * @return the fraction of the tuples with each of the most common values
+     * of a field
+     */
+    public synchronized double[] mostCommonFrequencies(int field) {
+        return mcvFrequencies[field].clone();
+    }
+
+    /**
+     * @return true if the statistics were computed from a sample of the
+     * pages rather than all of them
+     */
+    public synchronized boolean isSampled() {
+        return sampleFraction < 1;
     }
 
 }
@@ -0,0 +1,247 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n OFFSET m. It
+ * returns tuples offset+1 to offset+limit of the child in the given order,
+ * without sorting the whole child: a priority queue keeps only the best
+ * offset+limit tuples seen so far, so the child is processed in
+ * O(n log(offset+limit)) time and O(offset+limit) memory.
+ * <p>
+ * If offset+limit tuples would not fit in the memory limit, an
+ * {@link ExternalSort} that keeps only offset+limit tuples per run is used
+ * instead.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int limit;
+    private int offset;
+    private long memoryBytes;
+
+    //堆中最多保存的tuple数量
+    private int keep;
+    //排好序的结果，放不进内存时改用sort
+    private ArrayList<Tuple> result;
+    private int pos;
+    private transient ExternalSort sort;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc           for each field, true if the sort order is ascending.
+     * @param limit         the number of tuples to return.
+     * @param offset        the number of leading tuples to skip.
+     * @param child         the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, int offset, DbIterator child) {
+        this(orderbyFields, asc, limit, offset, child, MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc           for each field, true if the sort order is ascending.
+     * @param limit         the number of tuples to return.
+     * @param offset        the number of leading tuples to skip.
+     * @param child         the tuples to sort.
+     * @param memoryBytes   the memory the kept tuples may take.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, int offset, DbIterator child,
+                long memoryBytes) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort direction per ORDER BY field");
+        }
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        }
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.limit = limit;
+        this.offset = offset;
+        this.memoryBytes = memoryBytes;
+        this.keep = (int) Math.min(Integer.MAX_VALUE, (long) limit + offset);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return true if the sort order of the first field is ascending.
+     */
+    public boolean isASC() {
+        return ascs[0];
+    }
+
+    /**
+     * @return the first field to which the sort is applied.
+     */
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    /**
+     * @return true if the kept tuples did not fit in memory and the last
+     * open() used an external sort
+     */
+    public boolean usedExternalSort() {
+        return sort != null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> cmp = new TupleComparator(td, orderByFields, ascs);
+        if (keep * MemoryBudget.estimateTupleBytes(td) > memoryBytes) {
+            openExternal(cmp);
+        } else {
+            openHeap(cmp);
+        }
+        super.open();
+    }
+
+    /**
+     * 堆顶是保存的tuple中最靠后的一个，新的tuple比它靠前时替换它。
+     * 排序相等的tuple先读到的靠前，和OrderBy的稳定排序结果一样
+     */
+    private void openHeap(final Comparator<Tuple> cmp) throws DbException, TransactionAbortedException {
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, Math.min(keep, 1024)),
+                new Comparator<Entry>() {
+                    public int compare(Entry e1, Entry e2) {
+                        int c = cmp.compare(e2.tuple, e1.tuple);
+                        return c != 0 ? c : Long.compare(e2.seq, e1.seq);
+                    }
+                });
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < keep) {
+                heap.add(new Entry(t, seq));
+            } else if (keep > 0 && cmp.compare(t, heap.peek().tuple) < 0) {
+                //相等时堆顶是先读到的，不替换
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+        Tuple[] sorted = new Tuple[heap.size()];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = heap.poll().tuple;
+        }
+        result = new ArrayList<Tuple>(Arrays.asList(sorted));
+        pos = Math.min(offset, result.size());
+    }
+
+    private void openExternal(Comparator<Tuple> cmp) throws DbException, TransactionAbortedException {
+        sort = new ExternalSort(td, cmp, memoryBytes, keep);
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            sort.finish();
+            skipOffset();
+        } catch (IOException e) {
+            sort.close();
+            sort = null;
+            throw new DbException("sort failed: " + e.getMessage());
+        }
+    }
+
+    private void skipOffset() throws IOException {
+        for (int i = 0; i < offset && sort.hasNext(); i++) {
+            sort.next();
+        }
+    }
+
+    public void close() {
+        super.close();
+        result = null;
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (sort != null) {
+            try {
+                sort.rewind();
+                skipOffset();
+            } catch (IOException e) {
+                throw new DbException("sort failed: " + e.getMessage());
+            }
+        } else {
+            pos = Math.min(offset, result.size());
+        }
+        super.close();
+        super.open();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the kept tuples in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     * tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (sort != null) {
+            try {
+                return sort.hasNext() ? sort.next() : null;
+            } catch (IOException e) {
+                throw new DbException("sort failed: " + e.getMessage());
+            }
+        }
+        if (result != null && pos < result.size()) {
+            return result.get(pos++);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isSortedOn(int field) {
+        return isASC() && getOrderByField() == field;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+    /**
+     * 堆中的tuple和它在输入中的位置
+     */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+}
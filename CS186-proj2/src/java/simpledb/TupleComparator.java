@@ -0,0 +1,49 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on one or more fields. INT_TYPE fields are compared as
+ * int values and STRING_TYPE fields as Strings, without going through
+ * Field.compare and Predicate.Op.
+ */
+public class TupleComparator implements Comparator<Tuple> {
+    private final int[] fields;
+    private final boolean[] asc;
+    //每个字段是不是INT_TYPE，不知道TupleDesc时为null，比较时再看Field的类型
+    private boolean[] isInt;
+
+    public TupleComparator(int field, boolean asc) {
+        this.fields = new int[]{field};
+        this.asc = new boolean[]{asc};
+    }
+
+    public TupleComparator(TupleDesc td, int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+        this.isInt = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+        }
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = o1.getField(fields[i]);
+            Field t2 = o2.getField(fields[i]);
+            int c;
+            if (isInt != null ? isInt[i] : t1 instanceof IntField) {
+                int v1 = ((IntField) t1).getValue();
+                int v2 = ((IntField) t2).getValue();
+                c = v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            } else {
+                c = ((StringField) t1).getValue().compareTo(((StringField) t2).getValue());
+            }
+            if (c != 0) {
+                return asc[i] ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * 使用2Q替换策略的缓存(Johnson and Shasha, 1994)
+ * <p>
+ * 第一次被访问的页先放进FIFO队列a1in，被淘汰后只在a1out中留下它的key。
+ * 只有在a1out中还记得的页再次被访问时才会进入LRU队列am。
+ * 这样一次全表扫描只会冲刷a1in，am中的热页不受影响。
+ */
+public class TwoQueueCache<K, V> implements PageCache<K, V> {
+
+    //允许缓存的最大条目数量
+    private final int capacity;
+
+    //a1in的目标大小，论文推荐为容量的25%
+    private final int kIn;
+
+    //a1out最多记住的key数量，论文推荐为容量的50%
+    private final int kOut;
+
+    //只被访问过一次的页，按进入的顺序排列(FIFO)
+    private final LinkedHashMap<K, V> a1in;
+
+    //最近从a1in淘汰的页的key，不占用缓存空间
+    private final LinkedHashSet<K> a1out;
+
+    //被访问过多次的页，按访问顺序排列(LRU)
+    private final LinkedHashMap<K, V> am;
+
+    //淘汰时的建议
+    private EvictionAdvisor<? super V> advisor;
+
+    public TwoQueueCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.kIn = Math.max(1, capacity / 4);
+        this.kOut = Math.max(1, capacity / 2);
+        a1in = new LinkedHashMap<K, V>();
+        a1out = new LinkedHashSet<K>();
+        am = new LinkedHashMap<K, V>(16, 0.75f, true);
+    }
+
+    public synchronized V get(K key) {
+        //am是access-order的，get会把条目移到最近使用的一端
+        V value = am.get(key);
+        if (value != null) {
+            return value;
+        }
+        //在a1in中命中不改变它的位置，短时间内的重复访问(相关引用)不能说明这是热页
+        return a1in.get(key);
+    }
+
+    public synchronized V put(K key, V value) {
+        if (key == null | value == null) {//不允许插入null值
+            throw new IllegalArgumentException();
+        }
+        if (am.containsKey(key)) {
+            am.put(key, value);
+            return null;
+        }
+        if (a1in.containsKey(key)) {
+            a1in.put(key, value);
+            return null;
+        }
+        //必须在腾出位置之前检查，否则reclaim可能把这个key从a1out中挤掉
+        boolean remembered = a1out.remove(key);
+        V removed = null;
+        if (size() >= capacity) {
+            removed = reclaim();
+        }
+        if (remembered) {
+            //淘汰后不久又被访问，说明是热页
+            am.put(key, value);
+        } else {
+            a1in.put(key, value);
+        }
+        return removed;
+    }
+
+    /**
+     * 腾出一个位置
+     *
+     * @return 被淘汰的条目
+     */
+    private V reclaim() {
+        if (a1in.size() > kIn || am.isEmpty()) {
+            K victim = victimOf(a1in);
+            V removed = a1in.remove(victim);
+            a1out.add(victim);
+            if (a1out.size() > kOut) {
+                Iterator<K> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+            return removed;
+        }
+        K victim = victimOf(am);
+        return am.remove(victim);
+    }
+
+    /**
+     * @return 队列中第一个advisor不反对淘汰的key，都反对时返回第一个key
+     */
+    private K victimOf(LinkedHashMap<K, V> queue) {
+        Map.Entry<K, V> victim = null;
+        //遍历entrySet不会改变access-order的顺序
+        for (Map.Entry<K, V> e : queue.entrySet()) {
+            if (victim == null) {
+                victim = e;
+            }
+            if (advisor == null || !advisor.avoidEviction(e.getValue())) {
+                victim = e;
+                break;
+            }
+        }
+        if (advisor != null && victim != null) {
+            advisor.beforeEviction(victim.getValue());
+        }
+        return victim == null ? null : victim.getKey();
+    }
+
+    public synchronized V remove(K key) {
+        V removed = am.remove(key);
+        if (removed == null) {
+            removed = a1in.remove(key);
+        }
+        return removed;
+    }
+
+    public synchronized void setEvictionAdvisor(EvictionAdvisor<? super V> advisor) {
+        this.advisor = advisor;
+    }
+
+    public synchronized boolean isCached(K key) {
+        return am.containsKey(key) || a1in.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return am.size() + a1in.size();
+    }
+
+    /**
+     * 返回的是当前缓存的一个快照
+     *
+     * @return 当前缓存的所有value
+     */
+    public synchronized Iterator<V> iterator() {
+        ArrayList<V> values = new ArrayList<V>(size());
+        values.addAll(a1in.values());
+        values.addAll(am.values());
+        return values.iterator();
+    }
+}
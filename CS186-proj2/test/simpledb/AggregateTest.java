@@ -4,6 +4,10 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import static org.junit.Assert.*;
 
@@ -182,6 +186,100 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Several aggregates over the same grouping are computed in one Aggregate
+   */
+  @Test
+  public void multipleAggregates() throws Exception {
+    Aggregate op = new Aggregate(scan1, new int[] { 1, 1, 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+            Aggregator.Op.COUNT }, new int[] { 0 });
+    assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+    DbIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 12, 2, 6, 3,
+                    3, 12, 2, 6, 3,
+                    5, 7, 7, 7, 1 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Grouping on a composite key, with a string and an int field, and without
+   * grouping at all
+   */
+  @Test
+  public void compositeGroupBy() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(3,
+        new Object[] { "a", 1, 2,
+                       "a", 1, 4,
+                       "a", 2, 6,
+                       "b", 1, 2,
+                       "b", 1, 4 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.COUNT }, new int[] { 1, 0 });
+    DbIterator expected = TestUtil.createTupleList(4,
+        new Object[] { 1, "a", 3, 2,
+                       2, "a", 6, 1,
+                       1, "b", 3, 2 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+
+    op = new Aggregate(scan, new int[] { 1, 2 },
+        new Aggregator.Op[] { Aggregator.Op.MAX, Aggregator.Op.SUM }, new int[0]);
+    expected = TestUtil.createTupleList(2, new int[] { 2, 18 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * A query with two GROUP BY fields and two aggregates is planned as a
+   * single Aggregate and projected in SELECT list order
+   */
+  @Test
+  public void parsedQuery() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(3, 2000, 5, null, rows, "c");
+    Database.getCatalog().addTable(table, "aggtable");
+    HashMap<String, int[]> expected = new HashMap<String, int[]>();
+    for (ArrayList<Integer> row : rows) {
+      String key = row.get(1) + "," + row.get(0);
+      int[] a = expected.get(key);
+      if (a == null) {
+        a = new int[] { 0, Integer.MIN_VALUE };
+        expected.put(key, a);
+      }
+      a[0]++;
+      a[1] = Math.max(a[1], row.get(2));
+    }
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT t.c1, COUNT(t.c2), t.c0, MAX(t.c2) FROM aggtable t GROUP BY t.c0, t.c1;");
+    DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+    int groups = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      int[] a = expected.get(t.getField(0) + "," + t.getField(2));
+      assertNotNull(a);
+      assertEquals(a[0], ((IntField) t.getField(1)).getValue());
+      assertEquals(a[1], ((IntField) t.getField(3)).getValue());
+      groups++;
+    }
+    plan.close();
+    assertEquals(expected.size(), groups);
+  }
+
   /**
    * JUnit suite target
    */
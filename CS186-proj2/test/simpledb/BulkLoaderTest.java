@@ -0,0 +1,191 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+
+    @Before
+    public void createTable() throws Exception {
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "bulk");
+    }
+
+    private static File csv(String content) throws IOException {
+        File f = File.createTempFile("bulk", ".txt");
+        f.deleteOnExit();
+        Writer w = new FileWriter(f);
+        w.write(content);
+        w.close();
+        return f;
+    }
+
+    /**
+     * Loaded pages match what HeapFileEncoder produces for the same input.
+     */
+    @Test
+    public void matchesEncoder() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 1500; i++) {
+            sb.append(i).append(',').append(-i).append('\n');
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(-i);
+            tuples.add(t);
+        }
+        File input = csv(sb.toString());
+        BulkLoader loader = new BulkLoader(hf, 1);
+        assertEquals(1500, loader.loadCsv(input, ','));
+        assertEquals(1500, loader.finish());
+
+        File encoded = File.createTempFile("encoded", ".dat");
+        encoded.deleteOnExit();
+        HeapFileEncoder.convert(input, encoded, BufferPool.PAGE_SIZE, 2);
+        assertEquals(encoded.length(), hf.getFile().length());
+        assertEquals(encoded.length() / BufferPool.PAGE_SIZE, hf.numPages());
+        HeapFile expected = Utility.openHeapFile(2, encoded);
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertArrayEquals(expected.readPage(new HeapPageId(expected.getId(), i)).getPageData(),
+                    hf.readPage(new HeapPageId(hf.getId(), i)).getPageData());
+        }
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Rows loaded in CSV, binary and tuple form are appended after existing
+     * pages, and the free-space map knows which page has room.
+     */
+    @Test
+    public void appendsAndUpdatesFreeSpace() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{7, 7}));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(1, hf.numPages());
+
+        BulkLoader loader = new BulkLoader(hf);
+        loader.loadCsv(csv(" 1 , -2147483648\r\n\n3,2147483647\n"), ',');
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(rows);
+        dos.writeInt(5);
+        dos.writeInt(6);
+        assertEquals(1, loader.loadBinary(new ByteArrayInputStream(rows.toByteArray())));
+        loader.add(Utility.getHeapTuple(new int[]{8, 9}));
+        assertEquals(4, loader.finish());
+
+        assertEquals(2, hf.numPages());
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertEquals(page.getNumEmptySlots(), hf.getFreeSpaceMap().getFreeSlots(1));
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int[][] expected = {{7, 7}, {1, Integer.MIN_VALUE}, {3, Integer.MAX_VALUE}, {5, 6}, {8, 9}};
+        for (int[] row : expected) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(row[0]);
+            t.add(row[1]);
+            tuples.add(t);
+        }
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        //the map was written out with the load
+        FreeSpaceMap reloaded = new FreeSpaceMap(hf.getFile(), hf.getTupleDesc(), hf.numPages());
+        assertEquals(page.getNumEmptySlots(), reloaded.getFreeSlots(1));
+    }
+
+    /**
+     * Finishing a load updates the row and page counts of the existing
+     * statistics at once and rescans the table in the background.
+     */
+    @Test
+    public void statsUpdated() throws Exception {
+        BulkLoader first = new BulkLoader(hf);
+        first.loadCsv(csv("1,1\n2,2\n"), ',');
+        first.finish();
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        TableStats.setTableStats("bulk", stats);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append(i).append(',').append(i).append('\n');
+        }
+        BulkLoader loader = new BulkLoader(hf);
+        loader.loadCsv(csv(sb.toString()), ',');
+        assertEquals(2000, loader.finish());
+        assertSame(stats, TableStats.getTableStats("bulk"));
+        assertEquals(2002, stats.totalTuples());
+        assertEquals(hf.numPages(), stats.numPages());
+
+        stats.awaitRefresh();
+        assertEquals(0, stats.getModifications());
+        assertEquals(2002, stats.totalTuples());
+        assertTrue(stats.estimateDistinct(0) > 1000);
+    }
+
+    @Test
+    public void badLines() throws Exception {
+        BulkLoader loader = new BulkLoader(hf);
+        loader.loadCsv(csv("1,2\n"), ',');
+        try {
+            loader.loadCsv(csv("3\n"), ',');
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            loader.loadCsv(csv("3,x\n"), ',');
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            loader.loadBinary(new ByteArrayInputStream(new byte[5]));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        //the rows before the bad ones are kept
+        assertEquals(1, loader.finish());
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> t = new ArrayList<Integer>();
+        t.add(1);
+        t.add(2);
+        tuples.add(t);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    @Test
+    public void loadStatement() throws Exception {
+        Parser p = new Parser();
+        File input = csv("1|2\n3|4\n");
+        assertTrue(p.handleLoadStatement("LOAD '" + input.getPath() + "' INTO bulk DELIMITER '|';"));
+        assertFalse(p.handleLoadStatement("select * from bulk;"));
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 1; i < 5; i += 2) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i + 1);
+            tuples.add(t);
+        }
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class FileChannelCacheTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("fcc", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * The same channel is reused for a file until it is pushed out by
+     * other files.
+     */
+    @Test
+    public void boundedOpenFiles() throws Exception {
+        FileChannelCache cache = new FileChannelCache(2);
+        File a = tempFile();
+        File b = tempFile();
+        File c = tempFile();
+        FileChannel ca = cache.getChannel(a);
+        assertSame(ca, cache.getChannel(a));
+        cache.getChannel(b);
+        cache.getChannel(c);
+        assertEquals(2, cache.getOpenCount());
+        assertFalse(ca.isOpen());
+        //a is reopened on demand
+        assertTrue(cache.getChannel(a).isOpen());
+        assertEquals(2, cache.getOpenCount());
+        cache.closeAll();
+        assertEquals(0, cache.getOpenCount());
+    }
+
+    @Test
+    public void positionalReadWrite() throws Exception {
+        FileChannelCache cache = new FileChannelCache(1);
+        File a = tempFile();
+        File b = tempFile();
+        byte[] page = new byte[BufferPool.PAGE_SIZE];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = (byte) i;
+        }
+        cache.write(a, ByteBuffer.wrap(page), 2 * BufferPool.PAGE_SIZE);
+        assertEquals(3 * BufferPool.PAGE_SIZE, a.length());
+        //closes a
+        cache.write(b, ByteBuffer.wrap(page), 0);
+
+        byte[] read = new byte[BufferPool.PAGE_SIZE];
+        assertEquals(read.length, cache.read(a, ByteBuffer.wrap(read), 2 * BufferPool.PAGE_SIZE));
+        assertArrayEquals(page, read);
+
+        //reading past the end leaves the buffer untouched
+        byte[] empty = new byte[BufferPool.PAGE_SIZE];
+        assertEquals(0, cache.read(a, ByteBuffer.wrap(empty), 3 * BufferPool.PAGE_SIZE));
+        assertArrayEquals(new byte[BufferPool.PAGE_SIZE], empty);
+        cache.closeAll();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileChannelCacheTest.class);
+    }
+}
@@ -51,6 +51,23 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for Filter.rewind() in the middle of the child, after
+   * hasNext() has already read ahead
+   */
+  @Test
+  public void rewindAfterHasNext() throws Exception {
+    Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(0));
+    Filter op = new Filter(pred, scan);
+    op.open();
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(1, testWidth), op.next()));
+    assertTrue(op.hasNext());
+    op.rewind();
+    TestUtil.MockScan expectedOut = new TestUtil.MockScan(1, 5, testWidth);
+    TestUtil.compareDbIterators(op, expectedOut);
+    op.close();
+  }
+
   /**
    * Unit test for Filter.getNext() using a &lt; predicate that filters
    *   some tuples
@@ -0,0 +1,172 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 10;
+
+    //one int column: 992 tuples per page
+    private static final int SLOTS = 992;
+
+    private File file;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        file = SystemTestUtil.createRandomHeapFileUnopened(1, SLOTS * PAGES, 1000, null, null);
+        FreeSpaceMap.fileFor(file).deleteOnExit();
+        hf = Utility.openHeapFile(1, file);
+        tid = new TransactionId();
+    }
+
+    private void insert(HeapFile f, int value) throws Exception {
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(value));
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+    }
+
+    /**
+     * Without a .fsm file every page is checked once; after that full pages
+     * are never read again by inserts.
+     */
+    @Test
+    public void skipsFullPages() throws Exception {
+        insert(hf, 1);
+        assertEquals(PAGES + 1, hf.numPages());
+        assertEquals(SLOTS - 1, hf.getFreeSpaceMap().getFreeSlots(PAGES));
+        for (int i = 0; i < PAGES; i++) {
+            assertEquals(0, hf.getFreeSpaceMap().getFreeSlots(i));
+        }
+
+        Database.getBufferPool().flushAllPages();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        insert(hf, 2);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(SLOTS - 2, hf.getFreeSpaceMap().getFreeSlots(PAGES));
+    }
+
+    /**
+     * Deleting a tuple makes its page a candidate for the next insert.
+     */
+    @Test
+    public void reusesFreedSlots() throws Exception {
+        insert(hf, 1);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple victim = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, victim);
+        int pageNo = victim.getRecordId().getPageId().pageNumber();
+        assertEquals(1, hf.getFreeSpaceMap().getFreeSlots(pageNo));
+        assertEquals(pageNo, hf.getFreeSpaceMap().findPageWithFreeSpace());
+
+        insert(hf, 2);
+        assertEquals(0, hf.getFreeSpaceMap().getFreeSlots(pageNo));
+        assertEquals(PAGES + 1, hf.numPages());
+    }
+
+    /**
+     * The map is written next to the data file and read back when the table
+     * is opened again.
+     */
+    @Test
+    public void persisted() throws Exception {
+        insert(hf, 1);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(FreeSpaceMap.fileFor(file).exists());
+
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(1, file);
+        FreeSpaceMap fsm = reopened.getFreeSpaceMap();
+        assertEquals(PAGES, fsm.findPageWithFreeSpace());
+        assertEquals(SLOTS - 1, fsm.getFreeSlots(PAGES));
+        assertEquals(0, fsm.getFreeSlots(0));
+    }
+
+    /**
+     * Writing a page only updates the map in memory; the .fsm file is
+     * written once by flush().
+     */
+    @Test
+    public void writtenOnFlush() throws Exception {
+        File fsmFile = FreeSpaceMap.fileFor(file);
+        Database.getCatalog().getFileChannels().close(fsmFile);
+        fsmFile.delete();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 2));
+        hf.writePage(page);
+        assertFalse(fsmFile.exists());
+
+        hf.getFreeSpaceMap().flush();
+        assertTrue(fsmFile.exists());
+        Database.reset();
+        FreeSpaceMap fsm = Utility.openHeapFile(1, file).getFreeSpaceMap();
+        assertEquals(0, fsm.getFreeSlots(2));
+        assertEquals(-1, fsm.getFreeSlots(0));
+    }
+
+    /**
+     * A map whose data file changed after it was written is rebuilt from
+     * the page headers instead of being trusted.
+     */
+    @Test
+    public void rebuiltWhenDataFileChanged() throws Exception {
+        insert(hf, 1);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(0, hf.getFreeSpaceMap().getFreeSlots(0));
+
+        // replace page 0 behind the database's back with an empty page
+        Database.reset();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(HeapPage.createEmptyPageData());
+        } finally {
+            raf.close();
+        }
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+
+        HeapFile reopened = Utility.openHeapFile(1, file);
+        FreeSpaceMap fsm = reopened.getFreeSpaceMap();
+        assertEquals(SLOTS, fsm.getFreeSlots(0));
+        assertEquals(0, fsm.getFreeSlots(1));
+        assertEquals(SLOTS - 1, fsm.getFreeSlots(PAGES));
+        assertEquals(0, fsm.findPageWithFreeSpace());
+
+        // the rebuilt map is written back and trusted on the next open
+        Database.reset();
+        assertEquals(SLOTS, Utility.openHeapFile(1, file).getFreeSpaceMap().getFreeSlots(0));
+    }
+
+    /**
+     * A wrong hint is corrected by the insert that trips over it.
+     */
+    @Test
+    public void staleHint() throws Exception {
+        hf.getFreeSpaceMap().setFreeSlots(3, 5);
+        for (int i = 0; i < PAGES; i++) {
+            if (i != 3) {
+                hf.getFreeSpaceMap().setFreeSlots(i, 0);
+            }
+        }
+        insert(hf, 1);
+        assertEquals(0, hf.getFreeSpaceMap().getFreeSlots(3));
+        assertEquals(PAGES + 1, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+  static final Aggregator.Op[] OPS = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+      Aggregator.Op.AVG, Aggregator.Op.COUNT };
+
+  /**
+   * The aggregate of each group computed the simple way
+   */
+  private static HashMap<Integer, Integer> expected(ArrayList<Tuple> tuples, Aggregator.Op op) {
+    HashMap<Integer, long[]> acc = new HashMap<Integer, long[]>();
+    for (Tuple t : tuples) {
+      int g = ((IntField) t.getField(0)).getValue();
+      int v = ((IntField) t.getField(1)).getValue();
+      long[] a = acc.get(g);
+      if (a == null) {
+        a = new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 0, 0 };
+        acc.put(g, a);
+      }
+      a[0] = Math.min(a[0], v);
+      a[1] = Math.max(a[1], v);
+      a[2] += v;
+      a[3]++;
+    }
+    HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+    for (Integer g : acc.keySet()) {
+      long[] a = acc.get(g);
+      long v;
+      switch (op) {
+        case MIN: v = a[0]; break;
+        case MAX: v = a[1]; break;
+        case SUM: v = a[2]; break;
+        case AVG: v = a[2] / a[3]; break;
+        default: v = a[3];
+      }
+      result.put(g, (int) v);
+    }
+    return result;
+  }
+
+  private static void check(HashMap<Integer, Integer> expected, DbIterator it) throws Exception {
+    HashMap<Integer, Integer> actual = new HashMap<Integer, Integer>();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      Integer g = ((IntField) t.getField(0)).getValue();
+      assertFalse("group " + g + " returned twice", actual.containsKey(g));
+      actual.put(g, ((IntField) t.getField(1)).getValue());
+    }
+    it.close();
+    assertEquals(expected, actual);
+  }
+
+  private static TupleDesc resultTd() {
+    return Utility.getTupleDesc(2);
+  }
+
+  /**
+   * Every operator with all groups in memory
+   */
+  @Test
+  public void inMemory() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(5000, 2,
+        new int[] { 0, -1000 }, new int[] { 100, 2000 }, new Random(1));
+    for (Aggregator.Op op : OPS) {
+      IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, op, resultTd());
+      for (Tuple t : input) {
+        agg.mergeTupleIntoGroup(t);
+      }
+      assertEquals(0, agg.hashAggregator.getSpilledTupleCount());
+      check(expected(input, op), agg.iterator());
+      agg.close();
+    }
+  }
+
+  /**
+   * With a tiny memory limit most groups are written to disk and
+   * aggregated partition by partition, some partitions more than once
+   */
+  @Test
+  public void spilled() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(20000, 2,
+        new int[] { 0, -1000 }, new int[] { 5000, 2000 }, new Random(2));
+    for (Aggregator.Op op : OPS) {
+      IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, op, resultTd(), 1024);
+      for (Tuple t : input) {
+        agg.mergeTupleIntoGroup(t);
+      }
+      assertTrue(agg.hashAggregator.getSpilledTupleCount() > 0);
+      check(expected(input, op), agg.iterator());
+      agg.close();
+    }
+  }
+
+  /**
+   * Tuples can still be merged after iterator() has read the spilled
+   * partitions
+   */
+  @Test
+  public void mergeAfterIterator() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(6000, 2,
+        new int[] { 0, -1000 }, new int[] { 2000, 2000 }, new Random(3));
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM,
+        resultTd(), 2048);
+    ArrayList<Tuple> seen = new ArrayList<Tuple>();
+    for (int i = 0; i < input.size(); i++) {
+      agg.mergeTupleIntoGroup(input.get(i));
+      seen.add(input.get(i));
+      if (i % 2000 == 1999) {
+        check(expected(seen, Aggregator.Op.SUM), agg.iterator());
+      }
+    }
+    agg.close();
+  }
+
+  /**
+   * COUNT grouped by a string field, with groups written to disk
+   */
+  @Test
+  public void stringGroups() throws Exception {
+    TupleDesc inputTd = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.STRING_TYPE });
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    Random r = new Random(4);
+    HashMap<String, Integer> expected = new HashMap<String, Integer>();
+    StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.COUNT, td, 4096);
+    for (int i = 0; i < 5000; i++) {
+      String g = "group" + r.nextInt(800);
+      Tuple t = new Tuple(inputTd);
+      t.setField(0, new StringField(g, Type.STRING_LEN));
+      t.setField(1, new StringField("x", Type.STRING_LEN));
+      agg.mergeTupleIntoGroup(t);
+      Integer c = expected.get(g);
+      expected.put(g, c == null ? 1 : c + 1);
+    }
+    assertTrue(agg.hashAggregator.getSpilledTupleCount() > 0);
+    HashMap<String, Integer> actual = new HashMap<String, Integer>();
+    DbIterator it = agg.iterator();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      actual.put(((StringField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+    }
+    assertEquals(expected, actual);
+    agg.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregatorTest.class);
+  }
+}
@@ -86,6 +86,35 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before-image is the page as it was read until setBeforeImage() is
+     * called, and modified pages serialize to data that reads back the same.
+     */
+    @Test
+    public void beforeImageAndPageData() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int free = page.getNumEmptySlots();
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[]{7, 8}));
+
+        HeapPage before = page.getBeforeImage();
+        assertEquals(free, before.getNumEmptySlots());
+        assertTrue(TestUtil.compareTuples(first, before.iterator().next()));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(free, copy.getNumEmptySlots());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext()) {
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+
+        page.setBeforeImage();
+        assertEquals(free, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(7, ((IntField) page.getBeforeImage().getField(0, 0)).getValue());
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
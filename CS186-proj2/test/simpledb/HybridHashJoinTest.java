@@ -0,0 +1,137 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HybridHashJoinTest extends SimpleDbTestBase {
+
+  /**
+   * Memory budget small enough that a few hundred tuples have to spill
+   */
+  static final long SMALL_MEMORY = 4096;
+
+  /**
+   * Checks that the join produces exactly the rows of a nested-loop join of
+   * left and right on their first fields, in any order
+   */
+  private static void checkJoin(DbIterator join, ArrayList<Tuple> left, ArrayList<Tuple> right)
+      throws Exception {
+    HashMap<String, Integer> rows = new HashMap<String, Integer>();
+    for (Tuple l : left) {
+      for (Tuple r : right) {
+        if (l.getField(0).equals(r.getField(0))) {
+          TestUtil.count(rows, TestUtil.row(l) + TestUtil.row(r), 1);
+        }
+      }
+    }
+    while (join.hasNext()) {
+      TestUtil.count(rows, TestUtil.row(join.next()), -1);
+    }
+    assertTrue("missing or extra rows: " + rows.keySet(), rows.isEmpty());
+  }
+
+  private static HybridHashJoin join(ArrayList<Tuple> left, ArrayList<Tuple> right,
+      long memory, int partitions) {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    DbIterator c1 = TestUtil.scan(left);
+    DbIterator c2 = TestUtil.scan(right);
+    return new HybridHashJoin(pred, c1, c2, memory, partitions);
+  }
+
+  /**
+   * Unit test for HybridHashJoin.getTupleDesc()
+   */
+  @Test
+  public void getTupleDesc() {
+    Random r = new Random(0);
+    HybridHashJoin op = join(TestUtil.joinTuples(1, 2, 1, 0, r), TestUtil.joinTuples(1, 3, 1, 0, r),
+        SMALL_MEMORY, 4);
+    TupleDesc expected = TupleDesc.merge(Utility.getTupleDesc(2), Utility.getTupleDesc(3));
+    assertEquals(expected, op.getTupleDesc());
+  }
+
+  /**
+   * Both inputs fit in the budget, nothing is written to disk
+   */
+  @Test
+  public void inMemory() throws Exception {
+    Random r = new Random(1);
+    ArrayList<Tuple> left = TestUtil.joinTuples(500, 2, 100, 0, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(800, 3, 100, 0, r);
+    HybridHashJoin op = join(left, right, MemoryBudget.DEFAULT_OPERATOR_MEMORY, 8);
+    op.open();
+    checkJoin(op, left, right);
+    assertEquals(0, op.getSpilledPartitionCount());
+    assertEquals(0, op.getSpilledTupleCount());
+    op.close();
+  }
+
+  /**
+   * The build side is much larger than the budget, so partitions spill and
+   * are joined from disk
+   */
+  @Test
+  public void spilled() throws Exception {
+    Random r = new Random(2);
+    ArrayList<Tuple> left = TestUtil.joinTuples(2000, 2, 500, 0, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(1500, 2, 500, 0, r);
+    HybridHashJoin op = join(left, right, SMALL_MEMORY, 4);
+    op.open();
+    checkJoin(op, left, right);
+    assertTrue(op.getSpilledPartitionCount() > 0);
+    assertTrue(op.getSpilledTupleCount() > 0);
+    assertTrue(op.getPeakMemory() <= SMALL_MEMORY);
+    op.close();
+  }
+
+  /**
+   * Most tuples share one key: repartitioning cannot split that partition,
+   * so it is eventually joined in chunks
+   */
+  @Test
+  public void skewed() throws Exception {
+    Random r = new Random(3);
+    ArrayList<Tuple> left = TestUtil.joinTuples(600, 2, 200, 0.8, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(300, 2, 200, 0.5, r);
+    HybridHashJoin op = join(left, right, SMALL_MEMORY, 4);
+    op.open();
+    checkJoin(op, left, right);
+    assertTrue(op.getRecursionDepth() > 0);
+    assertTrue(op.getChunkedPassCount() > 0);
+    op.close();
+  }
+
+  /**
+   * Unit test for HybridHashJoin.rewind() after spilling
+   */
+  @Test
+  public void rewind() throws Exception {
+    Random r = new Random(4);
+    ArrayList<Tuple> left = TestUtil.joinTuples(1000, 2, 300, 0, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(1000, 2, 300, 0, r);
+    HybridHashJoin op = join(left, right, SMALL_MEMORY, 4);
+    op.open();
+    for (int i = 0; i < 10 && op.hasNext(); i++) {
+      op.next();
+    }
+    op.rewind();
+    checkJoin(op, left, right);
+    op.rewind();
+    checkJoin(op, left, right);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HybridHashJoinTest.class);
+  }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+  /**
+   * Estimates are within a few percent over a wide range of cardinalities
+   */
+  @Test
+  public void accuracy() {
+    Random r = new Random(7);
+    for (int n : new int[] { 10, 1000, 50000, 1000000 }) {
+      HyperLogLog hll = new HyperLogLog();
+      int base = r.nextInt();
+      for (int i = 0; i < n; i++) {
+        // every value twice: duplicates must not count
+        hll.add(base + i);
+        hll.add(base + i);
+      }
+      assertEquals("n = " + n, n, hll.estimate(), Math.max(1, n * 0.05));
+    }
+  }
+
+  /**
+   * Strings and ints both hash reasonably
+   */
+  @Test
+  public void strings() {
+    HyperLogLog hll = new HyperLogLog();
+    for (int i = 0; i < 20000; i++) {
+      hll.add(new StringField("value" + (i % 5000), 16));
+    }
+    assertEquals(5000, hll.estimate(), 250);
+  }
+
+  /**
+   * Merging two sketches gives the sketch of the union
+   */
+  @Test
+  public void merge() {
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    HyperLogLog all = new HyperLogLog();
+    for (int i = 0; i < 30000; i++) {
+      (i % 3 == 0 ? a : b).add(i);
+      all.add(i);
+    }
+    a.merge(b);
+    assertArrayEquals(all.getRegisters(), a.getRegisters());
+    assertEquals(all.estimate(), new HyperLogLog(a.getRegisters()).estimate());
+  }
+
+  /**
+   * The page sampler returns k distinct pages in ascending order, and
+   * every page is about equally likely
+   */
+  @Test
+  public void samplePages() {
+    PageSampler sampler = new PageSampler(new Random(11));
+    int[] hits = new int[100];
+    for (int round = 0; round < 2000; round++) {
+      int[] pages = sampler.samplePages(100, 10);
+      assertEquals(10, pages.length);
+      for (int i = 0; i < pages.length; i++) {
+        assertTrue(pages[i] >= 0 && pages[i] < 100);
+        assertTrue(i == 0 || pages[i] > pages[i - 1]);
+        hits[pages[i]]++;
+      }
+    }
+    // each page is expected 200 times
+    for (int h : hits) {
+      assertTrue(h > 130 && h < 270);
+    }
+    assertArrayEquals(new int[] { 0, 1, 2 }, sampler.samplePages(3, 10));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HyperLogLogTest.class);
+  }
+}
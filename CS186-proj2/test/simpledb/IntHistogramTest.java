@@ -0,0 +1,172 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntHistogramTest extends SimpleDbTestBase {
+
+  /**
+   * Test with a minimum and a maximum that are both negative numbers.
+   */
+  @Test
+  public void negativeRangeTest() {
+    IntHistogram h = new IntHistogram(10, -60, -10);
+    for (int c = -60; c <= -10; c++) {
+      h.addValue(c);
+      h.estimateSelectivity(Predicate.Op.EQUALS, c);
+    }
+    // Even with just 10 bins and 50 values, the estimate should be close
+    assertTrue(h.estimateSelectivity(Predicate.Op.EQUALS, -33) < 0.3);
+    assertTrue(h.estimateSelectivity(Predicate.Op.EQUALS, -33) > 0.001);
+  }
+
+  /**
+   * Make sure that equality binning does something reasonable.
+   */
+  @Test
+  public void opEqualsTest() {
+    IntHistogram h = new IntHistogram(10, 1, 10);
+    h.addValue(3);
+    h.addValue(3);
+    h.addValue(3);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.EQUALS, 3), 1e-9);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, 8), 1e-9);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 8), 1e-9);
+  }
+
+  /**
+   * Range operators against values inside and outside of the data
+   */
+  @Test
+  public void opRangeTest() {
+    IntHistogram h = new IntHistogram(10, 1, 10);
+    for (int i = 1; i <= 10; i++) {
+      h.addValue(i);
+    }
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 5), 1e-9);
+    assertEquals(0.6, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 5), 1e-9);
+    assertEquals(0.4, h.estimateSelectivity(Predicate.Op.LESS_THAN, 5), 1e-9);
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, 5), 1e-9);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, -100), 1e-9);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 12), 1e-9);
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 12), 1e-9);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, 0), 1e-9);
+  }
+
+  /**
+   * Without a range the buckets widen as values arrive, in any order, and
+   * keep exact counts; the estimates stay close to the real fractions
+   */
+  @Test
+  public void growingRange() {
+    Random r = new Random(1);
+    IntHistogram h = new IntHistogram(100);
+    int[] values = new int[20000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (int) (r.nextGaussian() * 1000) - 20000 + (i % 2) * 40000;
+      h.addValue(values[i]);
+    }
+    assertEquals(values.length, h.getTotal());
+    for (int v = -25000; v <= 25000; v += 2500) {
+      int below = 0;
+      for (int x : values) {
+        if (x < v) {
+          below++;
+        }
+      }
+      assertEquals((double) below / values.length,
+          h.estimateSelectivity(Predicate.Op.LESS_THAN, v), 0.02);
+    }
+    IntHistogram descending = new IntHistogram(10);
+    for (int v = 1000; v >= -1000; v--) {
+      descending.addValue(v);
+    }
+    assertEquals(0.5, descending.estimateSelectivity(Predicate.Op.LESS_THAN, 0), 0.05);
+  }
+
+  /**
+   * Merging histograms built over parts of the values gives the same
+   * counts as one histogram built over all of them
+   */
+  @Test
+  public void merge() {
+    Random r = new Random(2);
+    IntHistogram all = new IntHistogram(50);
+    IntHistogram[] parts = { new IntHistogram(50), new IntHistogram(50), new IntHistogram(50) };
+    for (int i = 0; i < 9000; i++) {
+      // each part has a different range and so a different bucket width
+      int part = i % 3;
+      int v = r.nextInt(100 << (part * 4)) - 500;
+      all.addValue(v);
+      parts[part].addValue(v);
+    }
+    IntHistogram merged = new IntHistogram(50);
+    for (IntHistogram p : parts) {
+      merged.merge(p);
+    }
+    assertEquals(all.getTotal(), merged.getTotal());
+    assertEquals(all.getMin(), merged.getMin());
+    assertEquals(all.getMax(), merged.getMax());
+    assertEquals(all.toString(), merged.toString());
+  }
+
+  /**
+   * Merging the histograms of chunks of values read by several threads
+   * gives the same buckets as reading them all in one, even when the
+   * partial histograms grew downwards and have empty buckets at the bottom
+   */
+  @Test
+  public void mergeChunks() {
+    Random r = new Random(1);
+    for (int round = 0; round < 200; round++) {
+      int[] values = new int[20000];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = r.nextInt(5000);
+      }
+      IntHistogram all = new IntHistogram(100);
+      IntHistogram[] parts = new IntHistogram[2 + r.nextInt(3)];
+      for (int i = 0; i < parts.length; i++) {
+        parts[i] = new IntHistogram(100);
+      }
+      int chunk = 16 + r.nextInt(500);
+      for (int i = 0; i < values.length; i++) {
+        all.addValue(values[i]);
+        parts[(i / chunk) % parts.length].addValue(values[i]);
+      }
+      for (int i = 1; i < parts.length; i++) {
+        parts[0].merge(parts[i]);
+      }
+      assertEquals(all.toString(), parts[0].toString());
+    }
+  }
+
+  /**
+   * Strings are compared on their prefixes
+   */
+  @Test
+  public void stringHistogram() {
+    StringHistogram h = new StringHistogram(100);
+    for (char c = 'a'; c <= 'z'; c++) {
+      for (int i = 0; i < 10; i++) {
+        h.addValue(c + "word" + i);
+      }
+    }
+    assertTrue(StringHistogram.stringToInt("abc") < StringHistogram.stringToInt("abd"));
+    assertTrue(StringHistogram.stringToInt("ab") < StringHistogram.stringToInt("abc"));
+    assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, "n"), 0.05);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, "zzzz"), 1e-9);
+    assertEquals(1.0 / 260, h.estimateSelectivity(Predicate.Op.EQUALS, "qword3"), 0.001);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IntHistogramTest.class);
+  }
+}
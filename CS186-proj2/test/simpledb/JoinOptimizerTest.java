@@ -0,0 +1,223 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Vector;
+
+import static org.junit.Assert.*;
+
+public class JoinOptimizerTest extends SimpleDbTestBase {
+
+  /**
+   * A two column table whose column i is drawn from [0, maxValues[i])
+   */
+  private static HeapFile table(String name, int rows, int... maxValues) throws Exception {
+    Random r = new Random(name.hashCode());
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < rows; i++) {
+      ArrayList<Integer> tuple = new ArrayList<Integer>();
+      for (int max : maxValues) {
+        tuple.add(r.nextInt(max));
+      }
+      tuples.add(tuple);
+    }
+    File f = File.createTempFile("table", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, maxValues.length);
+    HeapFile table = new HeapFile(f, Utility.getTupleDesc(maxValues.length, "c"));
+    Database.getCatalog().addTable(table, name);
+    return table;
+  }
+
+  /**
+   * Hash joins are cheaper with the smaller input on the build (left) side;
+   * nested loops pay for reading the inner side once per outer tuple
+   */
+  @Test
+  public void joinCost() throws Exception {
+    JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new Vector<LogicalJoinNode>());
+    LogicalJoinNode eq = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS);
+    assertTrue(jo.estimateJoinCost(eq, 10, 100000, 1000, 100000)
+        < jo.estimateJoinCost(eq, 100000, 10, 100000, 1000));
+    assertTrue(jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000) >= 2000);
+
+    LogicalJoinNode ne = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.NOT_EQUALS);
+    assertTrue(jo.estimateJoinCost(ne, 1000, 1000, 1000, 1000) >= 1000.0 * 1000 + 1000.0 * 1000);
+    LogicalJoinNode lt = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.LESS_THAN);
+    assertTrue(jo.estimateJoinCost(lt, 1000, 1000, 1000, 1000)
+        < jo.estimateJoinCost(ne, 1000, 1000, 1000, 1000));
+  }
+
+  /**
+   * Inputs already sorted on their join fields are not charged for
+   * sorting, and an equality join over two sorted inputs is costed as the
+   * merge that instantiateJoin builds for it
+   */
+  @Test
+  public void sortedInputsCost() throws Exception {
+    JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new Vector<LogicalJoinNode>());
+    LogicalJoinNode eq = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS);
+    assertEquals(jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000),
+        jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000, false, false), 1e-9);
+    // one sorted side does not help an equality join, it is still hashed
+    assertEquals(jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000),
+        jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000, true, false), 1e-9);
+    assertTrue(jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000, true, true)
+        < jo.estimateJoinCost(eq, 1000, 1000, 1000, 1000));
+
+    LogicalJoinNode lt = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.LESS_THAN);
+    double unsorted = jo.estimateJoinCost(lt, 1000, 1000, 1000, 1000);
+    double leftSorted = jo.estimateJoinCost(lt, 1000, 1000, 1000, 1000, true, false);
+    double bothSorted = jo.estimateJoinCost(lt, 1000, 1000, 1000, 1000, true, true);
+    assertTrue(leftSorted < unsorted);
+    assertTrue(bothSorted < leftSorted);
+  }
+
+  /**
+   * instantiateJoin builds the algorithm that estimateJoinCost charges for,
+   * for every kind of predicate and every combination of sorted inputs
+   */
+  @Test
+  public void instantiatedJoinMatchesCost() throws Exception {
+    TupleDesc atd = new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { "a.c0" });
+    TupleDesc btd = new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { "b.c0" });
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+        Predicate.Op.NOT_EQUALS };
+    for (Predicate.Op op : ops) {
+      LogicalJoinNode j = new LogicalJoinNode("a", "b", "a.c0", "b.c0", op);
+      for (int sorted = 0; sorted < 4; sorted++) {
+        boolean sorted1 = (sorted & 1) != 0;
+        boolean sorted2 = (sorted & 2) != 0;
+        DbIterator plan1 = new TupleIterator(atd, new ArrayList<Tuple>());
+        DbIterator plan2 = new TupleIterator(btd, new ArrayList<Tuple>());
+        if (sorted1) {
+          plan1 = new OrderBy(0, true, plan1);
+        }
+        if (sorted2) {
+          plan2 = new OrderBy(0, true, plan2);
+        }
+        DbIterator join = JoinOptimizer.instantiateJoin(j, plan1, plan2);
+        Class<?> expected;
+        switch (JoinOptimizer.algorithmFor(op, sorted1, sorted2)) {
+          case HASH:
+            expected = HybridHashJoin.class;
+            break;
+          case SORT_MERGE:
+            expected = SortMergeJoin.class;
+            break;
+          default:
+            expected = Join.class;
+        }
+        assertEquals(op + " " + sorted1 + " " + sorted2, expected, join.getClass());
+      }
+    }
+  }
+
+  /**
+   * Only sort-merge joins give their output an order that later joins of
+   * the same left-deep plan can use
+   */
+  @Test
+  public void sortedFieldsOfPlan() throws Exception {
+    LogicalJoinNode ab = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.LESS_THAN);
+    LogicalJoinNode ca = new LogicalJoinNode("c", "a", "c.c0", "a.c0", Predicate.Op.LESS_THAN);
+    LogicalJoinNode ad = new LogicalJoinNode("a", "d", "a.c0", "d.c0", Predicate.Op.EQUALS);
+    Vector<LogicalJoinNode> plan = new Vector<LogicalJoinNode>();
+    plan.add(ab);
+    assertEquals(new HashSet<String>(Arrays.asList("a.c0")), JoinOptimizer.sortedFieldsOf(plan));
+    // a range join keeps the order of its left side only
+    plan.add(ca);
+    assertEquals(new HashSet<String>(Arrays.asList("c.c0")), JoinOptimizer.sortedFieldsOf(plan));
+
+    // an equality join with one unsorted side is hashed, which loses the order
+    plan.clear();
+    plan.add(ab);
+    plan.add(ad);
+    assertTrue(JoinOptimizer.sortedFieldsOf(plan).isEmpty());
+  }
+
+  /**
+   * The join with the selective filter is done first, even though the query
+   * lists it last
+   */
+  @Test
+  public void selectiveJoinFirst() throws Exception {
+    HeapFile a = table("a", 20000, 20000, 20000);
+    HeapFile b = table("b", 20000, 20000, 100);
+    HeapFile c = table("c", 100, 100, 100);
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("a", new TableStats(a.getId(), 1000));
+    stats.put("b", new TableStats(b.getId(), 1000));
+    stats.put("c", new TableStats(c.getId(), 1000));
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(a.getId(), "a");
+    lp.addScan(b.getId(), "b");
+    lp.addScan(c.getId(), "c");
+    HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+    filterSelectivities.put("a", 1.0);
+    filterSelectivities.put("b", 1.0);
+    // c.c0 < 1
+    filterSelectivities.put("c", 0.01);
+
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS));
+    joins.add(new LogicalJoinNode("b", "c", "b.c1", "c.c1", Predicate.Op.EQUALS));
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, filterSelectivities, false);
+    assertEquals(2, order.size());
+    LogicalJoinNode first = order.get(0);
+    assertTrue(first.t1Alias.equals("c") || first.t2Alias.equals("c"));
+  }
+
+  /**
+   * Every join appears once in the order, and each join after the first
+   * shares a table with the joins before it
+   */
+  @Test
+  public void chainOfJoins() throws Exception {
+    String[] names = { "t0", "t1", "t2", "t3", "t4", "t5" };
+    int[] rows = { 5000, 50, 2000, 10, 800, 300 };
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+    LogicalPlan lp = new LogicalPlan();
+    for (int i = 0; i < names.length; i++) {
+      HeapFile f = table(names[i], rows[i], 1000, 1000);
+      stats.put(names[i], new TableStats(f.getId(), 1000));
+      filterSelectivities.put(names[i], 1.0);
+      lp.addScan(f.getId(), names[i]);
+    }
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    for (int i = 0; i + 1 < names.length; i++) {
+      joins.add(new LogicalJoinNode(names[i], names[i + 1], names[i] + ".c1", names[i + 1] + ".c0",
+          Predicate.Op.EQUALS));
+    }
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, filterSelectivities, false);
+    assertEquals(joins.size(), order.size());
+    ArrayList<String> joined = new ArrayList<String>();
+    for (LogicalJoinNode j : order) {
+      if (!joined.isEmpty()) {
+        assertTrue(joined.contains(j.t1Alias) || joined.contains(j.t2Alias));
+      }
+      joined.add(j.t1Alias);
+      joined.add(j.t2Alias);
+    }
+    for (String name : names) {
+      assertTrue(joined.contains(name));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinOptimizerTest.class);
+  }
+}
@@ -107,6 +107,42 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Every nested-loop algorithm, with blocks of only a couple of tuples so
+   * that the inner child is read several times
+   */
+  @Test
+  public void smallBlocks() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    for (Join.Algorithm algorithm : Join.Algorithm.values()) {
+      Join op = new Join(pred, scan1, scan2, algorithm, 200);
+      assertTrue(op.getOuterBlockSize() <= 2);
+      assertTrue(op.getInnerBlockSize() <= 2);
+      op.open();
+      gtJoin.open();
+      TestUtil.matchAllTuples(gtJoin, op);
+      op.close();
+      gtJoin.close();
+    }
+  }
+
+  /**
+   * Unit test for Join.rewind() in the middle of the output
+   */
+  @Test
+  public void rewindMidway() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, Join.Algorithm.DOUBLE_BLOCK_NESTED_LOOP, 200);
+    op.open();
+    for (int i = 0; i < 5; i++) {
+      op.next();
+    }
+    assertTrue(op.hasNext());
+    op.rewind();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,144 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  private static int value(Tuple t, int field) {
+    return ((IntField) t.getField(field)).getValue();
+  }
+
+  /**
+   * Checks that op returns exactly the tuples sorted on field 0 ascending and
+   * field 1 descending, with ties kept in input order (field 2)
+   */
+  private static void checkSorted(DbIterator op, ArrayList<Tuple> input) throws Exception {
+    ArrayList<Tuple> expected = new ArrayList<Tuple>(input);
+    Collections.sort(expected, new Comparator<Tuple>() {
+      public int compare(Tuple t1, Tuple t2) {
+        if (value(t1, 0) != value(t2, 0)) {
+          return value(t1, 0) - value(t2, 0);
+        }
+        if (value(t1, 1) != value(t2, 1)) {
+          return value(t2, 1) - value(t1, 1);
+        }
+        return value(t1, 2) - value(t2, 2);
+      }
+    });
+    for (Tuple t : expected) {
+      assertTrue(op.hasNext());
+      assertTrue(TestUtil.compareTuples(t, op.next()));
+    }
+    assertFalse(op.hasNext());
+  }
+
+  private static OrderBy orderBy(ArrayList<Tuple> tuples, long memory) {
+    return new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+        TestUtil.scan(tuples), memory);
+  }
+
+  /**
+   * Unit test for a single ORDER BY field, in both directions
+   */
+  @Test
+  public void singleField() throws Exception {
+    OrderBy op = new OrderBy(0, true, new TestUtil.MockScan(-5, 5, 2));
+    op.open();
+    TestUtil.compareDbIterators(op, new TestUtil.MockScan(-5, 5, 2));
+    op.close();
+
+    op = new OrderBy(0, false, new TestUtil.MockScan(-5, 5, 2));
+    op.open();
+    for (int i = 4; i >= -5; i--) {
+      assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(i, 2), op.next()));
+    }
+    assertFalse(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * Several ORDER BY fields, sorted in memory
+   */
+  @Test
+  public void multipleFields() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(1000, 3, new int[] { 10, 10 }, new Random(1));
+    OrderBy op = orderBy(input, MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    assertEquals(0, op.getOrderByField());
+    assertTrue(op.isASC());
+    op.open();
+    assertEquals(0, op.getRunCount());
+    checkSorted(op, input);
+    op.close();
+  }
+
+  /**
+   * Input larger than the memory limit is sorted in runs that are merged,
+   * with more runs than one merge can take at a time
+   */
+  @Test
+  public void external() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(5000, 3, new int[] { 20, 20 }, new Random(2));
+    OrderBy op = orderBy(input, 4096);
+    op.open();
+    assertTrue(op.getRunCount() > ExternalSort.MAX_FAN_IN);
+    checkSorted(op, input);
+    op.rewind();
+    checkSorted(op, input);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy.rewind() after hasNext() has read ahead
+   */
+  @Test
+  public void rewind() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(300, 3, new int[] { 5, 5 }, new Random(3));
+    OrderBy op = orderBy(input, 2048);
+    op.open();
+    op.next();
+    assertTrue(op.hasNext());
+    op.rewind();
+    checkSorted(op, input);
+    op.close();
+  }
+
+  /**
+   * An ExternalSort with a limit only returns the first tuples
+   */
+  @Test
+  public void limit() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(2000, 3, new int[] { 1000, 1000 }, new Random(4));
+    TupleComparator cmp = new TupleComparator(Utility.getTupleDesc(3), new int[] { 0, 1 },
+        new boolean[] { true, false });
+    ExternalSort sort = new ExternalSort(Utility.getTupleDesc(3), cmp, 4096, 10);
+    for (Tuple t : input) {
+      sort.add(t);
+    }
+    sort.finish();
+    assertTrue(sort.getRunCount() > 0);
+    ArrayList<Tuple> expected = new ArrayList<Tuple>(input);
+    Collections.sort(expected, cmp);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(sort.hasNext());
+      assertTrue(TestUtil.compareTuples(expected.get(i), sort.next()));
+    }
+    assertFalse(sort.hasNext());
+    sort.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class PageCacheTest extends SimpleDbTestBase {
+
+    private static final int CAPACITY = 20;
+    private static final int HOT_KEYS = 10;
+
+    /**
+     * Access a key the way BufferPool does: get, and put on a miss.
+     */
+    private static void access(PageCache<Integer, Integer> cache, int key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    /**
+     * Touch the hot keys a few times, interleaved with some cold keys, then
+     * run a long scan over keys that are never seen again.
+     *
+     * @return the number of hot keys that survived the scan
+     */
+    private static int hotKeysAfterScan(PageCache<Integer, Integer> cache) {
+        int cold = 1000;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                access(cache, i);
+            }
+            for (int i = 0; i < HOT_KEYS; i++) {
+                access(cache, cold++);
+            }
+        }
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            access(cache, cold++);
+        }
+        int survived = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            if (cache.isCached(i)) {
+                survived++;
+            }
+        }
+        return survived;
+    }
+
+    /**
+     * Every policy must respect its capacity and report what it evicts.
+     */
+    @Test
+    public void capacityAndEviction() {
+        for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+            PageCache<Integer, Integer> cache = policy.newCache(CAPACITY);
+            HashSet<Integer> resident = new HashSet<Integer>();
+            for (int i = 0; i < 5 * CAPACITY; i++) {
+                Integer removed = cache.put(i, i);
+                resident.add(i);
+                if (removed != null) {
+                    assertTrue(policy + " evicted a key it did not hold", resident.remove(removed));
+                }
+                assertTrue(policy + " exceeded its capacity", cache.size() <= CAPACITY);
+                assertEquals(policy.toString(), resident.size(), cache.size());
+            }
+            for (Integer key : resident) {
+                assertTrue(policy.toString(), cache.isCached(key));
+                assertEquals(policy.toString(), key, cache.get(key));
+            }
+            int n = 0;
+            for (Iterator<Integer> it = cache.iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+            assertEquals(policy.toString(), CAPACITY, n);
+        }
+    }
+
+    @Test
+    public void remove() {
+        for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+            PageCache<Integer, Integer> cache = policy.newCache(CAPACITY);
+            for (int i = 0; i < CAPACITY; i++) {
+                cache.put(i, i);
+            }
+            assertEquals(policy.toString(), Integer.valueOf(3), cache.remove(3));
+            assertNull(policy.toString(), cache.remove(3));
+            assertFalse(policy.toString(), cache.isCached(3));
+            assertEquals(policy.toString(), CAPACITY - 1, cache.size());
+            // the freed slot is reused without evicting anything
+            assertNull(policy.toString(), cache.put(100, 100));
+            assertEquals(policy.toString(), CAPACITY, cache.size());
+        }
+    }
+
+    /**
+     * A long scan pushes every hot key out of an LRU cache, but not out of
+     * the scan-resistant policies.
+     */
+    @Test
+    public void scanResistance() {
+        assertEquals(0, hotKeysAfterScan(ReplacementPolicy.LRU.<Integer, Integer>newCache(CAPACITY)));
+        assertEquals(HOT_KEYS, hotKeysAfterScan(ReplacementPolicy.TWO_Q.<Integer, Integer>newCache(CAPACITY)));
+        assertEquals(HOT_KEYS, hotKeysAfterScan(ReplacementPolicy.LRU_K.<Integer, Integer>newCache(CAPACITY)));
+        assertEquals(HOT_KEYS, hotKeysAfterScan(ReplacementPolicy.ARC.<Integer, Integer>newCache(CAPACITY)));
+    }
+
+    /**
+     * BufferPool counts hits and misses.
+     */
+    @Test
+    public void hitMissCounters() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(50, ReplacementPolicy.ARC);
+        assertEquals(ReplacementPolicy.ARC, bp.getReplacementPolicy());
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(2, bp.getHitCount());
+        assertEquals(2.0 / 3, bp.getHitRatio(), 1e-9);
+        bp.resetStats();
+        assertEquals(0, bp.getHitCount());
+        assertEquals(0, bp.getMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCacheTest.class);
+    }
+}
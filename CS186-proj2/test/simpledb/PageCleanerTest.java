@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        //8 pages of 504 tuples each
+        hf = SystemTestUtil.createRandomHeapFile(2, 4000, null, null);
+        assertEquals(8, hf.numPages());
+        tid = new TransactionId();
+    }
+
+    private Page getPage(BufferPool bp, int pageNo) throws Exception {
+        return bp.getPage(tid, new HeapPageId(hf.getId(), pageNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A dirty page is skipped by eviction as long as a clean page can be
+     * evicted instead, so no read pays for a write.
+     */
+    @Test
+    public void evictionPrefersCleanPages() throws Exception {
+        for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+            BufferPool bp = Database.resetBufferPool(4, policy, 0);
+            Page dirty = getPage(bp, 0);
+            dirty.markDirty(true, tid);
+            for (int i = 1; i < 8; i++) {
+                getPage(bp, i);
+            }
+            assertEquals(policy.toString(), 0, bp.getEvictionWriteCount());
+            assertSame(policy.toString(), dirty, getPage(bp, 0));
+            assertEquals(policy.toString(), tid, dirty.isDirty());
+        }
+    }
+
+    /**
+     * When every page is dirty, the evicted one is written back on the
+     * reading thread.
+     */
+    @Test
+    public void evictionWritesWhenAllDirty() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4, ReplacementPolicy.CLOCK, 0);
+        for (int i = 0; i < 4; i++) {
+            getPage(bp, i).markDirty(true, tid);
+        }
+        getPage(bp, 4);
+        assertEquals(1, bp.getEvictionWriteCount());
+    }
+
+    /**
+     * A failed write-back of the victim fails the read with a DbException
+     * and leaves the dirty page cached, so the update is not lost.
+     */
+    @Test
+    public void evictionWriteFailureKeepsPage() throws Exception {
+        HeapFile failing = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public void writePage(Page page) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        Database.getCatalog().addTable(failing, "failing");
+        for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+            BufferPool bp = Database.resetBufferPool(4, policy, 0);
+            Page[] dirty = new Page[4];
+            for (int i = 0; i < 4; i++) {
+                dirty[i] = bp.getPage(tid, new HeapPageId(failing.getId(), i), Permissions.READ_ONLY);
+                dirty[i].markDirty(true, tid);
+            }
+            try {
+                bp.getPage(tid, new HeapPageId(failing.getId(), 4), Permissions.READ_ONLY);
+                fail(policy + ": expected DbException");
+            } catch (DbException e) {
+                // expected
+            }
+            for (int i = 0; i < 4; i++) {
+                assertSame(policy.toString(), dirty[i],
+                    bp.getPage(tid, new HeapPageId(failing.getId(), i), Permissions.READ_ONLY));
+                assertEquals(policy.toString(), tid, dirty[i].isDirty());
+            }
+        }
+    }
+
+    /**
+     * The cleaner writes dirty pages back until the target fraction of
+     * frames is clean.
+     */
+    @Test
+    public void cleanOnce() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8, ReplacementPolicy.CLOCK, 0);
+        Page[] pages = new Page[8];
+        for (int i = 0; i < 8; i++) {
+            pages[i] = getPage(bp, i);
+            pages[i].markDirty(true, tid);
+        }
+        PageCleaner cleaner = new PageCleaner(bp, 0.5, 2, 1000);
+        assertEquals(4, cleaner.cleanOnce());
+        assertEquals(4, cleaner.getPagesWritten());
+        //pages are written in page order
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i >= 4, pages[i].isDirty() != null);
+        }
+        //already at the target
+        assertEquals(0, cleaner.cleanOnce());
+
+        //below the target but not by a whole batch: write a whole batch anyway
+        pages[0].markDirty(true, tid);
+        assertEquals(2, cleaner.cleanOnce());
+    }
+
+    /**
+     * The background thread keeps the pool clean without being asked.
+     */
+    @Test
+    public void backgroundCleaner() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8, ReplacementPolicy.CLOCK, 1.0);
+        Page[] pages = new Page[8];
+        for (int i = 0; i < 8; i++) {
+            pages[i] = getPage(bp, i);
+            pages[i].markDirty(true, tid);
+        }
+        bp.getPageCleaner().wakeUp();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getPageCleaner().getPagesWritten() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        for (Page page : pages) {
+            assertNull(page.isDirty());
+        }
+        bp.shutdown();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ParallelAggregatorTest extends SimpleDbTestBase {
+
+  static final Aggregator.Op[] OPS = { Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+      Aggregator.Op.AVG, Aggregator.Op.COUNT };
+
+  /**
+   * The result tuples of an iterator as sorted strings
+   */
+  private static ArrayList<String> drain(DbIterator it) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    while (it.hasNext()) {
+      rows.add(it.next().toString());
+    }
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Aggregating a filtered scan with several threads gives the same groups
+   * as reading it on one thread
+   */
+  @Test
+  public void matchesSequential() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(3, 40000, 50, null, null);
+    assertTrue(table.numPages() >= ParallelAggregator.MIN_PARALLEL_PAGES);
+    int[] afields = { 2, 2, 2, 2, 2 };
+    int[] gfields = { 0 };
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(40));
+    TransactionId tid = new TransactionId();
+
+    Aggregate sequential = new Aggregate(new Filter(p, new SeqScan(tid, table.getId(), "t")),
+        afields, OPS, gfields);
+    Aggregate parallel = new Aggregate(new Filter(p, new SeqScan(tid, table.getId(), "t")),
+        afields, OPS, gfields, 4);
+    assertFalse(sequential.isParallel());
+    assertTrue(parallel.isParallel());
+
+    sequential.open();
+    parallel.open();
+    ArrayList<String> expected = drain(sequential);
+    assertEquals(50, expected.size());
+    assertEquals(expected, drain(parallel));
+    parallel.rewind();
+    assertEquals(expected, drain(parallel));
+    sequential.close();
+    parallel.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * With little memory the threads write groups to disk; those tuples are
+   * added again when the partial results are merged
+   */
+  @Test
+  public void spilledPartials() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(3, 30000, 100, null, null);
+    int[] afields = { 2, 2, 2, 2, 2 };
+    int[] gfields = { 0, 1 };
+    TupleDesc td = Utility.getTupleDesc(7);
+    TransactionId tid = new TransactionId();
+
+    HashAggregator sequential = new HashAggregator(gfields, afields, OPS, table.getTupleDesc(), td,
+        MemoryBudget.DEFAULT_OPERATOR_MEMORY);
+    SeqScan scan = new SeqScan(tid, table.getId(), "t");
+    scan.open();
+    while (scan.hasNext()) {
+      sequential.add(scan.next());
+    }
+    scan.close();
+
+    HashAggregator parallel = ParallelAggregator.aggregate(tid, table, new ArrayList<Predicate>(),
+        gfields, afields, OPS, td, 32 << 10, 3);
+    DbIterator expected = sequential.iterator();
+    DbIterator actual = parallel.iterator();
+    expected.open();
+    actual.open();
+    assertEquals(drain(expected), drain(actual));
+    sequential.close();
+    parallel.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The optimizer finds the scan under a chain of filters, and nothing else
+   */
+  @Test
+  public void scanOf() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, table.getId(), "t");
+    Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0));
+    DbIterator filtered = new Filter(p, new Filter(p, scan));
+    assertSame(scan, ParallelAggregator.scanOf(filtered));
+    assertEquals(2, ParallelAggregator.predicatesOf(filtered).size());
+    assertNull(ParallelAggregator.scanOf(new OrderBy(0, true, scan)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelAggregatorTest.class);
+  }
+}
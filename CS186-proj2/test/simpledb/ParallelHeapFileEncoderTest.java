@@ -0,0 +1,99 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ParallelHeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("penc", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static File write(String content) throws IOException {
+        File f = tempFile(".txt");
+        Writer w = new FileWriter(f);
+        w.write(content);
+        w.close();
+        return f;
+    }
+
+    /**
+     * Encodes input with both encoders and checks the files are identical.
+     */
+    private static void assertSameAsConvert(File input, Type[] types, char sep,
+                                            int parallelism, int chunkBytes) throws IOException {
+        File expected = tempFile(".dat");
+        File actual = tempFile(".dat");
+        HeapFileEncoder.convert(input, expected, BufferPool.PAGE_SIZE, types.length, types, sep);
+        ParallelHeapFileEncoder.convert(input, actual, BufferPool.PAGE_SIZE, types.length, types, sep,
+                parallelism, chunkBytes);
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+
+    /**
+     * Chunks far smaller than a page, so that most pages are assembled from
+     * several chunks.
+     */
+    @Test
+    public void intColumnsSmallChunks() throws Exception {
+        Random r = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(r.nextInt()).append(',').append(r.nextInt(100)).append(",\t").append(-i).append('\n');
+            if (i % 100 == 0) {
+                sb.append("\r\n");
+            }
+        }
+        File input = write(sb.toString());
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
+        assertSameAsConvert(input, types, ',', 4, 97);
+        assertSameAsConvert(input, types, ',', 1, 1 << 20);
+    }
+
+    @Test
+    public void stringColumns() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append(i).append("| name").append(i).append(" |");
+            for (int j = 0; j < i % 200; j++) {
+                sb.append('x');
+            }
+            sb.append('\n');
+        }
+        Type[] types = {Type.INT_TYPE, Type.STRING_TYPE, Type.STRING_TYPE};
+        assertSameAsConvert(write(sb.toString()), types, '|', 3, 1000);
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        assertSameAsConvert(write(""), new Type[]{Type.INT_TYPE}, ',', 2, 100);
+        assertSameAsConvert(write("\n\n"), new Type[]{Type.INT_TYPE}, ',', 2, 100);
+    }
+
+    @Test
+    public void badLine() throws Exception {
+        try {
+            ParallelHeapFileEncoder.convert(write("1,2\n3,x\n"), tempFile(".dat"), BufferPool.PAGE_SIZE, 2,
+                    new Type[]{Type.INT_TYPE, Type.INT_TYPE}, ',', 2, 4);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHeapFileEncoderTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 40;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        //one int column: 992 tuples per page
+        hf = SystemTestUtil.createRandomHeapFile(1, 992 * PAGES, null, tuples);
+        assertEquals(PAGES, hf.numPages());
+    }
+
+    /**
+     * readPages returns the same pages as readPage, and stops at the end of
+     * the file.
+     */
+    @Test
+    public void readPages() throws Exception {
+        List<Page> pages = hf.readPages(PAGES - 3, 10);
+        assertEquals(3, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), PAGES - 3 + i);
+            assertEquals(pid, pages.get(i).getId());
+            assertArrayEquals(hf.readPage(pid).getPageData(), pages.get(i).getPageData());
+        }
+        assertEquals(0, hf.readPages(PAGES, 10).size());
+    }
+
+    /**
+     * Prefetched pages are served from the pool, and cached pages are not
+     * read again.
+     */
+    @Test
+    public void loadPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+
+        assertEquals(9, bp.loadPages(hf, 0, 10));
+        assertEquals(0, bp.loadPages(hf, 0, 10));
+        assertEquals(9, bp.getPrefetchedPageCount());
+        for (int i = 0; i < 10; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(1, bp.getMissCount());
+        assertEquals(10, bp.getHitCount());
+    }
+
+    /**
+     * A dirty page in the pool is never replaced by a prefetched copy.
+     */
+    @Test
+    public void keepsCachedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50, ReplacementPolicy.CLOCK, 0);
+        TransactionId tid = new TransactionId();
+        Page dirty = bp.getPage(tid, new HeapPageId(hf.getId(), 5), Permissions.READ_WRITE);
+        dirty.markDirty(true, tid);
+        bp.loadPages(hf, 0, 10);
+        assertSame(dirty, bp.getPage(tid, new HeapPageId(hf.getId(), 5), Permissions.READ_ONLY));
+    }
+
+    /**
+     * A prefetched page that outlives the rest of its window holds only its
+     * own bytes, not the whole buffer the window was read into.
+     */
+    @Test
+    public void retainedPageOwnsItsBytes() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        assertEquals(10, bp.loadPages(hf, 0, 10));
+        for (int i = 0; i < 10; i++) {
+            if (i != 4) {
+                bp.discardPage(new HeapPageId(hf.getId(), i));
+            }
+        }
+        HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 4), Permissions.READ_ONLY);
+        assertEquals(0, bp.getMissCount());
+        assertEquals(BufferPool.PAGE_SIZE, page.backingSize());
+    }
+
+    /**
+     * A scan much bigger than the pool returns every tuple with read-ahead
+     * running in the background.
+     */
+    @Test
+    public void scanWithReadAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        assertEquals(4, bp.getReadAheadWindow());
+        SystemTestUtil.matchTuples(hf, tuples);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
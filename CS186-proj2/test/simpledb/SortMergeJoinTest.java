@@ -0,0 +1,215 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  static final Predicate.Op[] OPS = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+      Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+  /**
+   * Checks that the join produces exactly the rows of a nested-loop join of
+   * left and right on their first fields, and that they come out in
+   * ascending order of the left join field
+   */
+  private static void checkJoin(DbIterator join, Predicate.Op op, ArrayList<Tuple> left,
+      ArrayList<Tuple> right) throws Exception {
+    JoinPredicate p = new JoinPredicate(0, op, 0);
+    HashMap<String, Integer> rows = new HashMap<String, Integer>();
+    for (Tuple l : left) {
+      for (Tuple r : right) {
+        if (p.filter(l, r)) {
+          TestUtil.count(rows, TestUtil.row(l) + TestUtil.row(r), 1);
+        }
+      }
+    }
+    int last = Integer.MIN_VALUE;
+    while (join.hasNext()) {
+      Tuple t = join.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertTrue(key >= last);
+      last = key;
+      TestUtil.count(rows, TestUtil.row(t), -1);
+    }
+    assertTrue(op + ": missing or extra rows: " + rows.keySet(), rows.isEmpty());
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test
+  public void getTupleDesc() {
+    Random r = new Random(0);
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.scan(TestUtil.joinTuples(1, 2, 1, 0, r)), TestUtil.scan(TestUtil.joinTuples(1, 3, 1, 0, r)));
+    TupleDesc expected = TupleDesc.merge(Utility.getTupleDesc(2), Utility.getTupleDesc(3));
+    assertEquals(expected, op.getTupleDesc());
+  }
+
+  /**
+   * NOT_EQUALS and LIKE cannot be merged
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNotEquals() {
+    Random r = new Random(0);
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+        TestUtil.scan(TestUtil.joinTuples(1, 2, 1, 0, r)), TestUtil.scan(TestUtil.joinTuples(1, 3, 1, 0, r)));
+  }
+
+  /**
+   * Every supported operator over unsorted inputs, which the join sorts
+   * itself
+   */
+  @Test
+  public void unsortedInputs() throws Exception {
+    Random r = new Random(1);
+    ArrayList<Tuple> left = TestUtil.joinTuples(300, 2, 50, 0, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(200, 3, 50, 0, r);
+    for (Predicate.Op op : OPS) {
+      SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0), TestUtil.scan(left),
+          TestUtil.scan(right));
+      assertTrue(join.sortsLeft());
+      assertTrue(join.sortsRight());
+      join.open();
+      checkJoin(join, op, left, right);
+      join.close();
+    }
+  }
+
+  /**
+   * Inputs that are already ordered are not sorted again, and the order of
+   * the join output is known to the next join
+   */
+  @Test
+  public void interestingOrder() throws Exception {
+    Random r = new Random(2);
+    ArrayList<Tuple> left = TestUtil.joinTuples(200, 2, 40, 0, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(200, 2, 40, 0, r);
+    DbIterator sortedLeft = new OrderBy(0, true, TestUtil.scan(left));
+    DbIterator sortedRight = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(0)), new OrderBy(0, true, TestUtil.scan(right)));
+    assertFalse(Operator.isSortedOn(new OrderBy(0, false, TestUtil.scan(left)), 0));
+    assertFalse(Operator.isSortedOn(sortedLeft, 1));
+    assertFalse(Operator.isSortedOn(TestUtil.scan(left), 0));
+
+    SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        sortedLeft, sortedRight);
+    assertFalse(join.sortsLeft());
+    assertFalse(join.sortsRight());
+    assertTrue(Operator.isSortedOn(join, 0));
+    assertTrue(Operator.isSortedOn(join, 2));
+    assertFalse(Operator.isSortedOn(join, 1));
+    join.open();
+    checkJoin(join, Predicate.Op.EQUALS, left, right);
+    join.close();
+
+    SortMergeJoin range = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+        sortedLeft, sortedRight);
+    assertTrue(Operator.isSortedOn(range, 0));
+    assertFalse(Operator.isSortedOn(range, 2));
+  }
+
+  /**
+   * The order is declared by each operator: Limit, TopN and Project keep
+   * or map it, while a hash join or a nested-loops join has no known order
+   */
+  @Test
+  public void orderDeclaredByOperators() throws Exception {
+    Random r = new Random(4);
+    ArrayList<Tuple> left = TestUtil.joinTuples(50, 2, 10, 0, r);
+    DbIterator sorted = new OrderBy(1, true, TestUtil.scan(left));
+    assertTrue(Operator.isSortedOn(new Limit(5, 0, sorted), 1));
+    assertTrue(Operator.isSortedOn(new TopN(new int[] { 1 }, new boolean[] { true }, 5, 0,
+        TestUtil.scan(left)), 1));
+
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    fields.add(0);
+    Project project = new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE }, sorted);
+    assertTrue(Operator.isSortedOn(project, 0));
+    assertFalse(Operator.isSortedOn(project, 1));
+
+    JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+    assertFalse(Operator.isSortedOn(new HybridHashJoin(p, sorted,
+        new OrderBy(1, true, TestUtil.scan(left))), 1));
+    assertFalse(Operator.isSortedOn(new Join(p, sorted, new OrderBy(1, true, TestUtil.scan(left))), 1));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test
+  public void rewind() throws Exception {
+    Random r = new Random(3);
+    ArrayList<Tuple> left = TestUtil.joinTuples(100, 2, 20, 0, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(100, 2, 20, 0, r);
+    for (Predicate.Op op : OPS) {
+      SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0), TestUtil.scan(left),
+          TestUtil.scan(right));
+      join.open();
+      for (int i = 0; i < 10 && join.hasNext(); i++) {
+        join.next();
+      }
+      join.rewind();
+      checkJoin(join, op, left, right);
+      join.rewind();
+      checkJoin(join, op, left, right);
+      join.close();
+    }
+  }
+
+  /**
+   * A window larger than the memory budget is spilled to disk, and the
+   * result is still complete and in order, also after a rewind
+   */
+  @Test
+  public void spillsWindow() throws Exception {
+    Random r = new Random(5);
+    ArrayList<Tuple> left = TestUtil.joinTuples(300, 2, 30, 0.5, r);
+    ArrayList<Tuple> right = TestUtil.joinTuples(2000, 2, 30, 0.5, r);
+    long memory = 100 * MemoryBudget.estimateTupleBytes(Utility.getTupleDesc(2));
+    for (Predicate.Op op : OPS) {
+      SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0), TestUtil.scan(left),
+          TestUtil.scan(right), memory);
+      join.open();
+      checkJoin(join, op, left, right);
+      assertTrue(op + ": nothing spilled", join.getSpilledTupleCount() > 0);
+      assertTrue(join.getPeakMemory() <= memory);
+      join.rewind();
+      checkJoin(join, op, left, right);
+      join.close();
+    }
+  }
+
+  /**
+   * Range joins and equi-joins over sorted inputs use a sort-merge join
+   */
+  @Test
+  public void chosenByOptimizer() throws Exception {
+    TupleDesc ltd = new TupleDesc(Utility.getTypes(2), new String[] { "a.field0", "a.field1" });
+    TupleDesc rtd = new TupleDesc(Utility.getTypes(2), new String[] { "b.field0", "b.field1" });
+    DbIterator left = new TupleIterator(ltd, new ArrayList<Tuple>());
+    DbIterator right = new TupleIterator(rtd, new ArrayList<Tuple>());
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "a.field0", "b.field0", Predicate.Op.LESS_THAN);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, left, right) instanceof SortMergeJoin);
+    lj = new LogicalJoinNode("a", "b", "a.field0", "b.field0", Predicate.Op.EQUALS);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, left, right) instanceof HybridHashJoin);
+    assertTrue(JoinOptimizer.instantiateJoin(lj, new OrderBy(0, true, left),
+        new OrderBy(0, true, right)) instanceof SortMergeJoin);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,333 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TableStatsTest extends SimpleDbTestBase {
+
+  /**
+   * The fraction of rows whose column col satisfies op v
+   */
+  private static double actual(ArrayList<ArrayList<Integer>> rows, int col, Predicate.Op op, int v) {
+    int n = 0;
+    for (ArrayList<Integer> row : rows) {
+      if (new IntField(row.get(col)).compare(op, new IntField(v))) {
+        n++;
+      }
+    }
+    return (double) n / rows.size();
+  }
+
+  /**
+   * Row count, scan cost and selectivities of a table scanned by several
+   * threads
+   */
+  @Test
+  public void parallelScan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(3, 30000, 1000, null, rows);
+    TableStats stats = new TableStats(table.getId(), 1000, 4);
+    assertEquals(30000, stats.totalTuples());
+    assertEquals(table.numPages() * 1000.0, stats.estimateScanCost(), 1e-9);
+    assertEquals(15000, stats.estimateTableCardinality(0.5));
+
+    Predicate.Op[] ops = { Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+        Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS };
+    for (int col = 0; col < 3; col++) {
+      for (Predicate.Op op : ops) {
+        for (int v = -100; v <= 1100; v += 100) {
+          assertEquals(op + " " + v, actual(rows, col, op, v),
+              stats.estimateSelectivity(col, op, new IntField(v)), 0.02);
+        }
+      }
+    }
+    assertEquals(0.001, stats.avgSelectivity(0, Predicate.Op.EQUALS), 0.001);
+  }
+
+  /**
+   * One thread and several threads compute the same statistics
+   */
+  @Test
+  public void sameWithOneThread() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, null);
+    TableStats one = new TableStats(table.getId(), 1000, 1);
+    TableStats many = new TableStats(table.getId(), 1000, 8);
+    assertEquals(one.totalTuples(), many.totalTuples());
+    for (int v = 0; v <= 5000; v += 250) {
+      assertEquals(one.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(v)),
+          many.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(v)), 1e-9);
+    }
+  }
+
+  /**
+   * Statistics of an empty table
+   */
+  @Test
+  public void emptyTable() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+    TableStats stats = new TableStats(table.getId(), 1000);
+    assertEquals(0, stats.totalTuples());
+    assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1)), 1e-9);
+  }
+
+  /**
+   * Inserts and deletes through the BufferPool update the statistics right
+   * away; after enough of them the table is scanned again in the background
+   */
+  @Test
+  public void incrementalUpdates() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, null);
+    TableStats stats = new TableStats(table.getId(), 1000);
+    TableStats.setTableStats(Database.getCatalog().getTableName(table.getId()), stats);
+    assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(500)), 1e-9);
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 500; i++) {
+      Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 1000, i }));
+    }
+    assertEquals(2500, stats.totalTuples());
+    assertEquals(500, stats.getModifications());
+    assertFalse(stats.isStale());
+    assertEquals(0.2, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(500)), 1e-9);
+    assertTrue(stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1000)) > 0.02);
+
+    ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+    DbFileIterator it = table.iterator(tid);
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      if (((IntField) t.getField(0)).getValue() == 1000) {
+        inserted.add(t);
+      }
+    }
+    it.close();
+    assertEquals(500, inserted.size());
+    for (int i = 0; i < 250; i++) {
+      Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+    }
+    assertEquals(2250, stats.totalTuples());
+    assertEquals(250.0 / 2250, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(500)), 1e-9);
+
+    // 750 modifications so far; 1000 make the statistics stale
+    for (int i = 0; i < 250; i++) {
+      Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 2000, i }));
+    }
+    stats.awaitRefresh();
+    assertFalse(stats.isStale());
+    assertEquals(0, stats.getModifications());
+    assertEquals(2500, stats.totalTuples());
+    assertEquals(0.1, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(1500)), 1e-9);
+    assertEquals(table.numPages(), stats.numPages());
+  }
+
+  /**
+   * A table of 100000 rows: column 0 is 7 in 30% of the rows and otherwise
+   * drawn from [0, 20000); column 1 is drawn from [0, 1000)
+   */
+  private static HeapFile skewedTable(String name) throws Exception {
+    Random r = new Random(3);
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 100000; i++) {
+      ArrayList<Integer> row = new ArrayList<Integer>();
+      row.add(r.nextInt(10) < 3 ? 7 : r.nextInt(20000));
+      row.add(r.nextInt(1000));
+      rows.add(row);
+    }
+    File f = File.createTempFile("table", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(rows, f, BufferPool.PAGE_SIZE, 2);
+    HeapFile table = new HeapFile(f, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(table, name);
+    return table;
+  }
+
+  /**
+   * Statistics from a sample of the pages: row count, distinct values and
+   * the most common values
+   */
+  @Test
+  public void analyzeSample() throws Exception {
+    HeapFile table = skewedTable("skewed");
+    TableStats full = new TableStats(table.getId(), 1000);
+    assertFalse(full.isSampled());
+    // 70000 draws from 20000 values hit about 19400 of them
+    assertEquals(19400, full.estimateDistinct(0), 1000);
+    assertEquals(1000, full.estimateDistinct(1), 50);
+    assertEquals(new IntField(7), full.mostCommonValues(0)[0]);
+
+    TableStats sampled = TableStats.analyze(table.getId(), 1000, table.numPages() / 5);
+    assertTrue(sampled.isSampled());
+    assertEquals(100000, sampled.totalTuples(), 5000);
+    assertEquals(table.numPages(), sampled.numPages());
+    // the sample has about half of the values of column 0
+    assertEquals(19400, sampled.estimateDistinct(0), 3000);
+    assertEquals(1000, sampled.estimateDistinct(1), 50);
+    assertEquals(new IntField(7), sampled.mostCommonValues(0)[0]);
+    assertEquals(0.3, sampled.mostCommonFrequencies(0)[0], 0.03);
+    assertEquals(0.3, sampled.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7)), 0.03);
+    assertEquals(0.7, sampled.estimateSelectivity(0, Predicate.Op.NOT_EQUALS, new IntField(7)), 0.03);
+    assertTrue(sampled.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(8)) < 0.001);
+
+    // a sample at least as large as the table reads all of it
+    assertFalse(TableStats.analyze(table.getId(), 1000, table.numPages()).isSampled());
+  }
+
+  /**
+   * Join cardinality uses the distinct values of the join fields
+   */
+  @Test
+  public void joinCardinality() throws Exception {
+    HeapFile table = skewedTable("joined");
+    TableStats stats = new TableStats(table.getId(), 1000);
+    HashMap<String, TableStats> statsMap = new HashMap<String, TableStats>();
+    statsMap.put("joined", stats);
+    HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+    aliases.put("a", table.getId());
+    aliases.put("b", table.getId());
+
+    // 100000 * 100000 / ~1000 distinct values
+    int card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS, "a", "b",
+        "c1", "c1", 100000, 100000, false, false, statsMap, aliases);
+    assertEquals(10000000, card, 1000000);
+    // after a selection leaves 500 rows, at most 500 distinct values are left
+    card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS, "a", "b",
+        "c1", "c1", 500, 100000, false, false, statsMap, aliases);
+    assertEquals(50000, card, 5000);
+    // a primary key on one side: every row of the other side matches once
+    card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS, "a", "b",
+        "c1", "c1", 1000, 100000, true, false, statsMap, aliases);
+    assertEquals(100000, card, 5000);
+    // no statistics
+    card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS, "x", "y",
+        "c1", "c1", 300, 2000, false, false, statsMap, aliases);
+    assertEquals(2000, card);
+    assertEquals(Integer.MAX_VALUE, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.NOT_EQUALS,
+        "a", "b", "c1", "c1", 100000, 100000, false, false, statsMap, aliases));
+  }
+
+  /**
+   * ANALYZE t SAMPLE n replaces the statistics of t
+   */
+  @Test
+  public void analyzeStatement() throws Exception {
+    HeapFile table = skewedTable("analyzed");
+    Parser p = new Parser();
+    assertFalse(p.handleAnalyzeStatement("select * from analyzed;"));
+    assertTrue(p.handleAnalyzeStatement("ANALYZE analyzed SAMPLE 20;"));
+    TableStats stats = TableStats.getTableStats("analyzed");
+    assertTrue(stats.isSampled());
+    assertEquals(100000, stats.totalTuples(), 10000);
+    assertTrue(p.handleAnalyzeStatement("analyze analyzed"));
+    assertFalse(TableStats.getTableStats("analyzed").isSampled());
+    try {
+      p.handleAnalyzeStatement("analyze nosuchtable;");
+      fail("expected ParsingException");
+    } catch (ParsingException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Statistics saved to a file are loaded without scanning unchanged
+   * tables; changed tables are scanned again in the background and
+   * tables missing from the file right away
+   */
+  @Test
+  public void saveAndLoad() throws Exception {
+    HeapFile table = skewedTable("saved");
+    HeapFile changed = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+    TableStats.computeStatistics();
+    File f = File.createTempFile("catalog", ".stats");
+    f.deleteOnExit();
+    TableStats.saveStatistics(f);
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 2000; i++) {
+      Database.getBufferPool().insertTuple(tid, changed.getId(), Utility.getHeapTuple(new int[] { i, i }));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+    HeapFile added = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+
+    TableStats before = TableStats.getTableStats("saved");
+    TableStats.loadStatistics(f);
+    TableStats after = TableStats.getTableStats("saved");
+    assertNotSame(before, after);
+    assertEquals(before.totalTuples(), after.totalTuples());
+    assertEquals(before.numPages(), after.numPages());
+    assertEquals(before.estimateScanCost(), after.estimateScanCost(), 1e-9);
+    assertEquals(before.estimateDistinct(0), after.estimateDistinct(0));
+    assertArrayEquals(before.mostCommonValues(0), after.mostCommonValues(0));
+    for (int v = -100; v <= 21000; v += 700) {
+      for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+        assertEquals(before.estimateSelectivity(0, op, new IntField(v)),
+            after.estimateSelectivity(0, op, new IntField(v)), 1e-12);
+      }
+    }
+
+    // the table that was scanned when the file was written is used until
+    // the background scan replaces it
+    TableStats stale = TableStats.getTableStats(Database.getCatalog().getTableName(changed.getId()));
+    stale.awaitRefresh();
+    assertEquals(3000, stale.totalTuples());
+    assertEquals(500, TableStats.getTableStats(Database.getCatalog().getTableName(added.getId())).totalTuples());
+  }
+
+  /**
+   * Saves from several threads at once, like the background refresh and a
+   * statement finishing together, all succeed and leave one readable file
+   */
+  @Test
+  public void concurrentSaves() throws Exception {
+    skewedTable("saved");
+    TableStats.computeStatistics();
+    final File f = File.createTempFile("catalog", ".stats");
+    f.deleteOnExit();
+    final ArrayList<Exception> failures = new ArrayList<Exception>();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++) {
+              TableStats.saveStatistics(f);
+            }
+          } catch (Exception e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(new ArrayList<Exception>(), failures);
+
+    int total = TableStats.getTableStats("saved").totalTuples();
+    TableStats.loadStatistics(f);
+    assertEquals(total, TableStats.getTableStats("saved").totalTuples());
+    File[] leftovers = f.getAbsoluteFile().getParentFile().listFiles();
+    for (File l : leftovers) {
+      assertFalse(l.getName(), l.getName().startsWith(f.getName()) && l.getName().endsWith(".tmp"));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsTest.class);
+  }
+}
@@ -5,7 +5,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -172,6 +174,81 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Random int tuples of the given width. Field i, for i below
+     * bounds.length, is drawn from [mins[i], mins[i] + bounds[i]); the other
+     * fields hold the row number.
+     */
+    public static ArrayList<Tuple> randomTuples(int n, int width, int[] mins, int[] bounds, Random r) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            int[] data = new int[width];
+            for (int j = 0; j < width; j++) {
+                data[j] = j < bounds.length ? mins[j] + r.nextInt(bounds[j]) : i;
+            }
+            tuples.add(Utility.getHeapTuple(data));
+        }
+        return tuples;
+    }
+
+    /**
+     * Random int tuples whose first bounds.length fields are drawn from
+     * [0, bounds[i]) and whose other fields hold the row number.
+     */
+    public static ArrayList<Tuple> randomTuples(int n, int width, int[] bounds, Random r) {
+        return randomTuples(n, width, new int[bounds.length], bounds, r);
+    }
+
+    /**
+     * Random join input of the given width. The first field is the join
+     * key: a skew fraction of the tuples share key 0 and the rest are drawn
+     * from [0, keys). The other fields hold the row number.
+     */
+    public static ArrayList<Tuple> joinTuples(int n, int width, int keys, double skew, Random r) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            int[] data = new int[width];
+            data[0] = r.nextDouble() < skew ? 0 : r.nextInt(keys);
+            for (int j = 1; j < width; j++) {
+                data[j] = i;
+            }
+            tuples.add(Utility.getHeapTuple(data));
+        }
+        return tuples;
+    }
+
+    /**
+     * @return an iterator over the tuples, which must not be empty
+     */
+    public static DbIterator scan(ArrayList<Tuple> tuples) {
+        return new TupleIterator(tuples.get(0).getTupleDesc(), tuples);
+    }
+
+    /**
+     * @return the fields of the tuple as one string, for counting rows in a
+     * multiset with {@link #count}
+     */
+    public static String row(Tuple t) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            sb.append(t.getField(i)).append('\t');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds delta to the count of row, removing rows whose count drops to 0
+     */
+    public static void count(HashMap<String, Integer> rows, String row, int delta) {
+        Integer c = rows.get(row);
+        int n = (c == null ? 0 : c) + delta;
+        if (n == 0) {
+            rows.remove(row);
+        } else {
+            rows.put(row, n);
+        }
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -385,6 +462,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.fileFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
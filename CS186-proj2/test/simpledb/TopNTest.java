@@ -0,0 +1,183 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  static final int[] FIELDS = { 0, 1 };
+  static final boolean[] ASCS = { false, true };
+
+  /**
+   * Checks that op returns the tuples offset+1 to offset+limit of a full
+   * (stable) sort of the input
+   */
+  private static void checkTopN(DbIterator op, ArrayList<Tuple> input, int limit, int offset)
+      throws Exception {
+    OrderBy sorted = new OrderBy(FIELDS, ASCS, TestUtil.scan(input));
+    sorted.open();
+    for (int i = 0; i < offset && sorted.hasNext(); i++) {
+      sorted.next();
+    }
+    for (int i = 0; i < limit && sorted.hasNext(); i++) {
+      assertTrue(op.hasNext());
+      assertTrue(TestUtil.compareTuples(sorted.next(), op.next()));
+    }
+    assertFalse(op.hasNext());
+    sorted.close();
+  }
+
+  /**
+   * The bounded heap returns the same tuples as a full sort, ties in input
+   * order
+   */
+  @Test
+  public void heap() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(2000, 3, new int[] { 30, 30 }, new Random(1));
+    TopN op = new TopN(FIELDS, ASCS, 50, 20, TestUtil.scan(input));
+    op.open();
+    assertFalse(op.usedExternalSort());
+    checkTopN(op, input, 50, 20);
+    op.rewind();
+    checkTopN(op, input, 50, 20);
+    op.close();
+  }
+
+  /**
+   * Limits larger than the input, and LIMIT 0
+   */
+  @Test
+  public void edgeCases() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(30, 3, new int[] { 5, 5 }, new Random(2));
+    TopN op = new TopN(FIELDS, ASCS, 100, 0, TestUtil.scan(input));
+    op.open();
+    checkTopN(op, input, 100, 0);
+    op.close();
+
+    op = new TopN(FIELDS, ASCS, 10, 25, TestUtil.scan(input));
+    op.open();
+    checkTopN(op, input, 10, 25);
+    op.close();
+
+    op = new TopN(FIELDS, ASCS, 0, 0, TestUtil.scan(input));
+    op.open();
+    assertFalse(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * When the kept tuples do not fit in memory an external sort is used
+   */
+  @Test
+  public void external() throws Exception {
+    ArrayList<Tuple> input = TestUtil.randomTuples(3000, 3, new int[] { 100, 100 }, new Random(3));
+    TopN op = new TopN(FIELDS, ASCS, 200, 100, TestUtil.scan(input), 4096);
+    op.open();
+    assertTrue(op.usedExternalSort());
+    checkTopN(op, input, 200, 100);
+    op.rewind();
+    checkTopN(op, input, 200, 100);
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit, with and without an offset
+   */
+  @Test
+  public void limit() throws Exception {
+    Limit op = new Limit(3, 2, new TestUtil.MockScan(0, 10, 2));
+    op.open();
+    for (int i = 2; i < 5; i++) {
+      assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(i, 2), op.next()));
+    }
+    assertFalse(op.hasNext());
+    op.rewind();
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(2, 2), op.next()));
+    op.close();
+
+    op = new Limit(20, 0, new TestUtil.MockScan(0, 10, 2));
+    op.open();
+    TestUtil.compareDbIterators(op, new TestUtil.MockScan(0, 10, 2));
+    op.close();
+  }
+
+  /**
+   * The parser removes a trailing LIMIT clause before Zql sees the statement,
+   * and rejects one on statements other than SELECT
+   */
+  @Test
+  public void stripLimitClause() throws Exception {
+    Parser p = new Parser();
+    assertEquals("select * from t order by t.a;",
+        p.stripLimitClause("select * from t order by t.a LIMIT 50;"));
+    assertEquals("select * from t;", p.stripLimitClause("select * from t limit 5 offset 10"));
+    assertEquals("select * from t;", p.stripLimitClause("select * from t;"));
+    assertEquals("select * from limits;", p.stripLimitClause("select * from limits;"));
+    for (String s : new String[] { "insert into u select * from t limit 5;",
+        "delete from t where t.a = 1 limit 5;" }) {
+      try {
+        p.stripLimitClause(s);
+        fail("LIMIT accepted on: " + s);
+      } catch (ParsingException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * ORDER BY with a LIMIT becomes a TopN, a LIMIT alone a Limit
+   */
+  @Test
+  public void logicalPlan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, rows, "c");
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(table.getId(), "t");
+    lp.addProjectField("t.c0", null);
+    lp.addOrderBy("t.c0", false);
+    lp.setLimit(10, 5);
+    DbIterator plan = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+    int[] values = new int[rows.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = rows.get(i).get(0);
+    }
+    java.util.Arrays.sort(values);
+    plan.open();
+    for (int i = 0; i < 10; i++) {
+      Tuple t = plan.next();
+      assertEquals(values[values.length - 6 - i], ((IntField) t.getField(0)).getValue());
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+
+    lp = new LogicalPlan();
+    lp.addScan(table.getId(), "t");
+    lp.addProjectField("t.c1", null);
+    lp.setLimit(7, 0);
+    plan = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+    plan.open();
+    for (int i = 0; i < 7; i++) {
+      assertTrue(plan.hasNext());
+      plan.next();
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -0,0 +1,56 @@
+package simpledb.perf;
+
+import simpledb.*;
+
+import java.io.File;
+
+/**
+ * Standalone benchmark of GROUP BY aggregation over a HeapFile with 1, 2, 4,
+ * ... threads up to the number of processors. Every run reads the pages
+ * through a buffer pool that holds the whole table, so after the first run
+ * the times show the aggregation itself rather than the disk.
+ * <p>
+ * Usage: AggregateBenchmark [rows] [groups].
+ */
+public class AggregateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        File f = File.createTempFile("aggregate-bench", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(hf, "bench");
+        BulkLoader loader = new BulkLoader(hf);
+        for (int i = 0; i < rows; i++) {
+            loader.add(Utility.getHeapTuple(new int[]{i % groups, i, i % 1000}));
+        }
+        loader.finish();
+        Database.resetBufferPool(hf.numPages() + 16);
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d rows, %d groups, %d pages, %d processors%n",
+                rows, groups, hf.numPages(), processors);
+
+        int[] afields = {1, 2, 2};
+        Aggregator.Op[] ops = {Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MAX};
+        for (int run = 0; run < 3; run++) {
+            for (int threads = 1; threads <= processors; threads *= 2) {
+                TransactionId tid = new TransactionId();
+                long start = System.nanoTime();
+                Aggregate agg = new Aggregate(new SeqScan(tid, hf.getId(), ""), afields, ops,
+                        new int[]{0}, threads);
+                agg.open();
+                int count = 0;
+                while (agg.hasNext()) {
+                    agg.next();
+                    count++;
+                }
+                agg.close();
+                long total = System.nanoTime() - start;
+                Database.getBufferPool().transactionComplete(tid);
+                System.out.printf("%2d threads: %d groups in %8.2f ms%n", threads, count, total / 1e6);
+            }
+        }
+    }
+}
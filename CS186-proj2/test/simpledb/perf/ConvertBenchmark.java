@@ -0,0 +1,60 @@
+package simpledb.perf;
+
+import simpledb.BufferPool;
+import simpledb.HeapFileEncoder;
+import simpledb.ParallelHeapFileEncoder;
+import simpledb.Type;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Standalone throughput benchmark of HeapFileEncoder.convert against
+ * ParallelHeapFileEncoder.convert on a generated CSV file.
+ * <p>
+ * Usage: ConvertBenchmark [rows] [threads] [runs]
+ */
+public class ConvertBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE};
+
+        File input = File.createTempFile("convert-bench", ".txt");
+        File serialOut = File.createTempFile("convert-bench", ".serial.dat");
+        File parallelOut = File.createTempFile("convert-bench", ".parallel.dat");
+        input.deleteOnExit();
+        serialOut.deleteOnExit();
+        parallelOut.deleteOnExit();
+
+        Random r = new Random(42);
+        BufferedWriter w = new BufferedWriter(new FileWriter(input), 1 << 20);
+        for (int i = 0; i < rows; i++) {
+            w.write(i + "," + r.nextInt() + "," + r.nextInt(1000) + ",name" + r.nextInt(100000) + "\n");
+        }
+        w.close();
+        double mb = input.length() / (1024.0 * 1024.0);
+        System.out.printf("%d rows, %.1f MB of CSV, %d threads%n", rows, mb, threads);
+
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            HeapFileEncoder.convert(input, serialOut, BufferPool.PAGE_SIZE, types.length, types, ',');
+            double serial = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            ParallelHeapFileEncoder.convert(input, parallelOut, BufferPool.PAGE_SIZE, types.length, types, ',', threads);
+            double parallel = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("run %d: convert %.2fs (%.1f MB/s), parallel %.2fs (%.1f MB/s), speedup %.1fx%n",
+                    run, serial, mb / serial, parallel, mb / parallel, serial / parallel);
+        }
+
+        if (!Arrays.equals(Files.readAllBytes(serialOut.toPath()), Files.readAllBytes(parallelOut.toPath()))) {
+            throw new AssertionError("parallel output differs from convert");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package simpledb.perf;
+
+import simpledb.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+
+/**
+ * Standalone benchmark of the streaming Filter against materializing the
+ * filtered child into a list first (what Filter.open() used to do).
+ * Reports the time to the first tuple, the time to drain the filter and
+ * the peak heap used by each.
+ * <p>
+ * Usage: FilterBenchmark [rows]. A small young generation (e.g. -Xmn16m)
+ * keeps short-lived garbage out of the peak heap figures.
+ */
+public class FilterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        File f = File.createTempFile("filter-bench", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "bench");
+        BulkLoader loader = new BulkLoader(hf);
+        for (int i = 0; i < rows; i++) {
+            loader.add(Utility.getHeapTuple(new int[]{i, i % 100}));
+        }
+        loader.finish();
+        Database.resetBufferPool(50);
+        System.out.printf("%d rows, %d pages%n", rows, hf.numPages());
+
+        //about half of the rows pass
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50));
+        for (int run = 0; run < 3; run++) {
+            measure("materialized", hf, p, true);
+            measure("streaming   ", hf, p, false);
+        }
+    }
+
+    private static void measure(String name, HeapFile hf, Predicate p, boolean materialize) throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long baseline = usedHeap();
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        DbIterator it = new Filter(p, new SeqScan(tid, hf.getId(), ""));
+        it.open();
+        if (materialize) {
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+            while (it.hasNext()) {
+                tuples.add(it.next());
+            }
+            it.close();
+            it = new TupleIterator(hf.getTupleDesc(), tuples);
+            it.open();
+        }
+        it.hasNext();
+        long first = System.nanoTime() - start;
+        long count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        long total = System.nanoTime() - start;
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("%s: first tuple %8.2f ms, all %d tuples %8.2f ms, peak heap +%d MB%n",
+                name, first / 1e6, count, total / 1e6, (peakHeap() - baseline) >> 20);
+    }
+
+    private static long usedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -84,6 +84,12 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            @Override
+            protected boolean supportsReadAhead() {
+                // prefetching would bypass readPage and the count
+                return false;
+            }
+
             public int readCount = 0;
         }
 
@@ -105,6 +111,36 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Scans a memory mapped table bigger than the buffer pool, then grows
+     * it with inserts and scans it again. */
+    @Test
+    public void testMemoryMapped() throws IOException, DbException, TransactionAbortedException {
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(1), true);
+        assertTrue(table.isMemoryMapped());
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(10);
+
+        SystemTestUtil.matchTuples(table, tuples);
+
+        // every page is full, so this adds two pages
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 992 + 10; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            tuples.add(row);
+        }
+        assertEquals(PAGES + 2, table.numPages());
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(10);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);